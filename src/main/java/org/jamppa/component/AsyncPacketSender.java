@@ -8,4 +8,11 @@ public interface AsyncPacketSender extends PacketSender {
 	
 	public void addPacketCallback(Packet packet, PacketCallback packetCallback);
 
+	/**
+	 * Drops the callback of a packet whose response is no longer awaited.
+	 * 
+	 * @param packet
+	 */
+	public void removePacketCallback(Packet packet);
+
 }
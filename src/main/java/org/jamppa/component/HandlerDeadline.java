@@ -0,0 +1,235 @@
+package org.jamppa.component;
+
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jamppa.component.handler.QueryHandler;
+import org.jamppa.component.utils.XMPPUtils;
+import org.jivesoftware.smack.util.ConcurrentCache;
+import org.jivesoftware.whack.util.TaskEngine;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.PacketError.Condition;
+import org.xmpp.packet.PacketError.Type;
+
+/**
+ * The time a {@link QueryHandler} has to answer a query. If the handler is
+ * still running when the deadline passes, the requester is sent an error
+ * right away, the handler thread is interrupted and the result the handler
+ * eventually returns is dropped.
+ * <p>
+ *
+ * Handlers answering asynchronously, by returning <tt>null</tt> and sending
+ * the response later, are held to the same deadline as long as the response
+ * goes through {@link Calls#answer(Packet)}: a response sent after the
+ * requester was sent the error is dropped.
+ */
+class HandlerDeadline {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(HandlerDeadline.class);
+
+    private final long deadline;
+    private final Condition condition;
+    private final AtomicLong timeouts;
+    private final Calls calls;
+
+    HandlerDeadline(long deadline, Condition condition, AtomicLong timeouts,
+            Calls calls) {
+        if (deadline <= 0) {
+            throw new IllegalArgumentException("Deadline must be positive");
+        }
+        if (condition == null) {
+            throw new IllegalArgumentException("Condition cannot be null");
+        }
+        this.deadline = deadline;
+        this.condition = condition;
+        this.timeouts = timeouts;
+        this.calls = calls;
+    }
+
+    /**
+     * Runs the handler on the calling thread within the deadline.
+     *
+     * @return the result of the handler, or <tt>null</tt> if the requester
+     *         was already answered with an error or will be answered
+     *         asynchronously.
+     */
+    IQ handle(QueryHandler queryHandler, IQ query, PacketSender packetSender) {
+        Call call = new Call(query, packetSender);
+        calls.add(call);
+        TaskEngine.getInstance().schedule(call, deadline);
+        IQ result = null;
+        try {
+            result = queryHandler.handle(query);
+        } finally {
+            if (!call.finish(result != null)) {
+                LOGGER.debug("Dropping late result of query " + query.getID());
+                result = null;
+            }
+        }
+        return result;
+    }
+
+    private static String key(Object requester, String id) {
+        return requester + "\u0000" + id;
+    }
+
+    /**
+     * The queries of a component that are still waiting for their answer,
+     * and those recently answered with an error because their deadline
+     * passed.
+     */
+    static class Calls {
+
+        private static final int MAX_TIMED_OUT = 10000;
+        private static final long TIMED_OUT_LIFETIME = 300000;
+
+        private final ConcurrentMap<String, Call> waiting = new ConcurrentHashMap<String, Call>();
+        private final ConcurrentCache<String, Boolean> timedOut = new ConcurrentCache<String, Boolean>(
+                MAX_TIMED_OUT, TIMED_OUT_LIFETIME);
+
+        private void add(Call call) {
+            if (waiting.putIfAbsent(call.key, call) != null) {
+                // Same id reused by the same requester, leave it untracked
+                call.tracked = false;
+            }
+        }
+
+        private void remove(Call call) {
+            if (call.tracked) {
+                waiting.remove(call.key, call);
+            }
+        }
+
+        private void timedOut(Call call) {
+            remove(call);
+            if (call.tracked) {
+                timedOut.put(call.key, Boolean.TRUE);
+            }
+        }
+
+        /**
+         * Called with every packet about to be sent asynchronously.
+         *
+         * @return <tt>false</tt> if the packet answers a query that was
+         *         already answered with an error and must be dropped.
+         */
+        boolean answer(Packet packet) {
+            if (!(packet instanceof IQ)
+                    || (waiting.isEmpty() && timedOut.isEmpty())) {
+                return true;
+            }
+            IQ response = (IQ) packet;
+            if (!response.isResponse()) {
+                return true;
+            }
+            String key = key(response.getTo(), response.getID());
+            Call call = waiting.get(key);
+            if (call != null) {
+                return call.answer(response);
+            }
+            if (timedOut.get(key) != null) {
+                LOGGER.debug("Dropping late response to query "
+                        + response.getID());
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A query being handled. Whichever comes first of the query being
+     * answered and the deadline passing decides how the query is answered.
+     */
+    private class Call extends TimerTask {
+
+        private final IQ query;
+        private final String key;
+        private final PacketSender packetSender;
+        private final Thread thread = Thread.currentThread();
+        private boolean tracked = true;
+        private boolean running = true;
+        private boolean answered;
+        private IQ timeout;
+
+        Call(IQ query, PacketSender packetSender) {
+            this.query = query;
+            this.key = key(query.getFrom(), query.getID());
+            this.packetSender = packetSender;
+        }
+
+        /**
+         * Called by the handler thread once the handler returns.
+         *
+         * @param result
+         *            whether the handler returned a result, rather than
+         *            answering asynchronously.
+         * @return <tt>false</tt> if the deadline passed before.
+         */
+        synchronized boolean finish(boolean result) {
+            running = false;
+            if (timeout != null) {
+                // Clear the interrupt meant for the handler
+                Thread.interrupted();
+                return false;
+            }
+            if (result || !tracked) {
+                done();
+            }
+            return true;
+        }
+
+        /**
+         * Called when a response to the query is sent asynchronously.
+         *
+         * @return <tt>false</tt> if the deadline passed before.
+         */
+        synchronized boolean answer(IQ response) {
+            if (response == timeout) {
+                return true;
+            }
+            if (timeout != null) {
+                LOGGER.debug("Dropping late response to query "
+                        + query.getID());
+                return false;
+            }
+            done();
+            return true;
+        }
+
+        private void done() {
+            answered = true;
+            TaskEngine.getInstance().cancelScheduledTask(this);
+            calls.remove(this);
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (answered) {
+                    return;
+                }
+                timeout = XMPPUtils.createErrorResponse(query, null,
+                        condition, Type.wait);
+                if (running) {
+                    thread.interrupt();
+                }
+            }
+            timeouts.incrementAndGet();
+            LOGGER.warn("Query " + query.getID() + " from " + query.getFrom()
+                    + " not answered within " + deadline + " ms");
+            try {
+                packetSender.sendPacket(timeout);
+            } catch (RuntimeException e) {
+                LOGGER.error("Could not send timeout for query "
+                        + query.getID(), e);
+            } finally {
+                calls.timedOut(this);
+            }
+        }
+    }
+}
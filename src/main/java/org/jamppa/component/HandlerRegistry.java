@@ -0,0 +1,51 @@
+package org.jamppa.component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.dom4j.QName;
+
+/**
+ * Handlers keyed by the payload element they handle. Lookups read an immutable
+ * snapshot without locking, while updates copy the snapshot and swap it in
+ * one volatile write. Handlers can therefore be added, replaced and removed
+ * while stanzas are being handled, and a lookup sees either the old or the
+ * new set of handlers, never one in between.
+ */
+class HandlerRegistry<H> {
+
+    private volatile Map<QName, H> handlers = Collections.emptyMap();
+
+    H get(QName payload) {
+        return handlers.get(payload);
+    }
+
+    /**
+     * Registers the handler, replacing the one registered for the same
+     * payload if any.
+     *
+     * @return the replaced handler, or <tt>null</tt>.
+     */
+    synchronized H put(QName payload, H handler) {
+        Map<QName, H> copy = new HashMap<QName, H>(handlers);
+        H previous = copy.put(payload, handler);
+        handlers = Collections.unmodifiableMap(copy);
+        return previous;
+    }
+
+    /**
+     * Unregisters the handler of the given payload.
+     *
+     * @return the removed handler, or <tt>null</tt> if there was none.
+     */
+    synchronized H remove(QName payload) {
+        if (!handlers.containsKey(payload)) {
+            return null;
+        }
+        Map<QName, H> copy = new HashMap<QName, H>(handlers);
+        H previous = copy.remove(payload);
+        handlers = Collections.unmodifiableMap(copy);
+        return previous;
+    }
+}
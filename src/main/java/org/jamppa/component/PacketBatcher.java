@@ -0,0 +1,150 @@
+package org.jamppa.component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+import org.jamppa.component.handler.BatchHandler;
+import org.jamppa.component.handler.MessageHandler;
+import org.jamppa.component.handler.PresenceHandler;
+import org.jivesoftware.whack.util.TaskEngine;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Collects stanzas for a {@link BatchHandler}. A batch is handed over as soon
+ * as it holds the maximum number of stanzas, on the thread adding the last
+ * one, or once the maximum delay has passed since its first stanza arrived,
+ * on a whack pool thread.
+ * <p>
+ *
+ * A batcher is registered as the message or presence handler of its payload,
+ * depending on the kind of stanzas its batch handler takes.
+ */
+class PacketBatcher<T extends Packet> implements MessageHandler,
+        PresenceHandler {
+
+    private static final Logger LOGGER = Logger.getLogger(PacketBatcher.class);
+
+    private final BatchHandler<T> handler;
+    private final XMPPComponent component;
+    private final int maxBatchSize;
+    private final long maxDelay;
+
+    private List<T> pending;
+    private TimerTask flushTask;
+
+    PacketBatcher(BatchHandler<T> handler, XMPPComponent component,
+            int maxBatchSize, long maxDelay) {
+        if (handler == null) {
+            throw new IllegalArgumentException("Handler cannot be null");
+        }
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum batch size must be positive");
+        }
+        if (maxDelay <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum delay must be positive");
+        }
+        this.handler = handler;
+        this.component = component;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        this.pending = new ArrayList<T>(maxBatchSize);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void handle(Message message) {
+        add((T) message);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void handle(Presence presence) {
+        add((T) presence);
+    }
+
+    @Override
+    public void setPacketSender(PacketSender packetSender) {
+        handler.setPacketSender(packetSender);
+    }
+
+    void add(T packet) {
+        List<T> batch = null;
+        synchronized (this) {
+            pending.add(packet);
+            if (pending.size() >= maxBatchSize) {
+                batch = takePending();
+            } else if (flushTask == null) {
+                flushTask = new TimerTask() {
+                    @Override
+                    public void run() {
+                        flush(this);
+                    }
+                };
+                TaskEngine.getInstance().schedule(flushTask, maxDelay);
+            }
+        }
+        if (batch != null) {
+            handle(batch);
+        }
+    }
+
+    /**
+     * Hands over the stanzas collected so far, if any.
+     */
+    void flush() {
+        List<T> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = takePending();
+        }
+        handle(batch);
+    }
+
+    /**
+     * Hands over the batch the given timer was scheduled for, unless it was
+     * handed over already.
+     */
+    void flush(TimerTask task) {
+        List<T> batch;
+        synchronized (this) {
+            // The batch this task was scheduled for may be gone already
+            if (flushTask != task) {
+                return;
+            }
+            batch = takePending();
+        }
+        handle(batch);
+    }
+
+    private List<T> takePending() {
+        List<T> batch = pending;
+        pending = new ArrayList<T>(maxBatchSize);
+        if (flushTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(flushTask);
+            flushTask = null;
+        }
+        return batch;
+    }
+
+    private void handle(List<T> batch) {
+        List<? extends Packet> replies;
+        try {
+            replies = handler.handle(batch);
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not handle batch of " + batch.size()
+                    + " stanzas", e);
+            return;
+        }
+        if (replies != null && !replies.isEmpty()) {
+            component.sendPackets(replies);
+        }
+    }
+}
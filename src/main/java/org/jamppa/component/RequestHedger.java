@@ -0,0 +1,367 @@
+package org.jamppa.component;
+
+import java.util.Arrays;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.whack.CircuitBreakers;
+import org.jivesoftware.whack.util.PacketIDs;
+import org.jivesoftware.whack.util.TaskEngine;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.PacketError;
+
+/**
+ * Sends requests to replicated services through an {@link AsyncPacketSender},
+ * sending a duplicate to another replica if the first one is slow to answer.
+ * The duplicate is sent once the request has waited longer than a given
+ * percentile of the latencies observed lately, so only the slowest requests
+ * are hedged, and whichever replica answers first wins. The callback of the
+ * other request is then dropped, and a late answer to it is ignored. If
+ * neither is answered in time, the callback gets a
+ * <tt>remote-server-timeout</tt> error, as if sent by the recipient.
+ * <p>
+ *
+ * A failure, like the <tt>service-unavailable</tt> error of an open circuit
+ * breaker (see {@link CircuitBreakers#isFailure(IQ)}), does not win: if the
+ * first replica fails before the duplicate was sent, the duplicate is sent
+ * right away if the budget allows, and a failure is only passed on if no
+ * request does better.
+ * <p>
+ *
+ * Latencies are measured from the first send, whichever request answers,
+ * and a request that times out counts with the full timeout, so the
+ * percentile does not look better than what callers wait. Failures are not
+ * counted, since they are often answered locally at once.
+ * <p>
+ *
+ * Hedging is capped by a budget: each request earns a fraction of a
+ * duplicate, and a duplicate is only sent if enough was earned. A budget of
+ * 0.05 adds at most about 5% of requests, even if every replica gets slow.
+ */
+public class RequestHedger {
+
+    /**
+     * The number of last latencies the percentile is computed over.
+     */
+    private static final int SAMPLES = 128;
+    /**
+     * The number of latencies after which the percentile is computed again.
+     */
+    private static final int RECOMPUTE_INTERVAL = 16;
+    /**
+     * The most duplicates saved up while replicas are fast.
+     */
+    private static final double MAX_BALANCE = 10;
+    /**
+     * The default time in ms after which a request and its duplicate are given
+     * up on.
+     */
+    private static final long DEFAULT_TIMEOUT = 5000;
+
+    private final AsyncPacketSender packetSender;
+    private final double percentile;
+    private final double budget;
+    private final long timeout;
+
+    private final long[] latencies = new long[SAMPLES];
+    private int sampleCount;
+    private long delay;
+    private double balance;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * Creates a hedger.
+     *
+     * @param packetSender
+     *            the sender of the requests.
+     * @param percentile
+     *            the percentile of the latencies after which a duplicate is
+     *            sent, e.g. 0.95.
+     * @param budget
+     *            the most duplicates sent per request, e.g. 0.05.
+     * @param initialDelay
+     *            the delay in ms after which a duplicate is sent until enough
+     *            latencies were observed.
+     */
+    public RequestHedger(AsyncPacketSender packetSender, double percentile,
+            double budget, long initialDelay) {
+        this(packetSender, percentile, budget, initialDelay, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a hedger.
+     *
+     * @param packetSender
+     *            the sender of the requests.
+     * @param percentile
+     *            the percentile of the latencies after which a duplicate is
+     *            sent, e.g. 0.95.
+     * @param budget
+     *            the most duplicates sent per request, e.g. 0.05.
+     * @param initialDelay
+     *            the delay in ms after which a duplicate is sent until enough
+     *            latencies were observed.
+     * @param timeout
+     *            the time in ms after which the callback gets a timeout
+     *            error if neither request was answered.
+     */
+    public RequestHedger(AsyncPacketSender packetSender, double percentile,
+            double budget, long initialDelay, long timeout) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException(
+                    "Percentile must be in (0, 1)");
+        }
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget cannot be negative");
+        }
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive");
+        }
+        this.packetSender = packetSender;
+        this.percentile = percentile;
+        this.budget = budget;
+        this.delay = initialDelay;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sends the given request to its recipient, and a copy of it to the
+     * given alternate recipient if it is not answered in time and the budget
+     * allows.
+     *
+     * @param request
+     *            the request.
+     * @param alternate
+     *            another replica of the recipient of the request.
+     * @param callback
+     *            called with the first answer, or with a
+     *            <tt>remote-server-timeout</tt> error if none arrives in
+     *            time.
+     */
+    public void send(IQ request, JID alternate, PacketCallback callback) {
+        requests.incrementAndGet();
+        long hedgeDelay;
+        synchronized (this) {
+            balance = Math.min(MAX_BALANCE, balance + budget);
+            hedgeDelay = delay;
+        }
+        Hedge hedge = new Hedge(request, alternate, callback);
+        packetSender.addPacketCallback(request, hedge.primary);
+        // Scheduled before sending, so an answer always finds them to cancel
+        TaskEngine.getInstance().schedule(hedge, hedgeDelay);
+        TaskEngine.getInstance().schedule(hedge.expiry, timeout);
+        packetSender.sendPacket(request);
+    }
+
+    private synchronized boolean spend() {
+        if (balance < 1) {
+            return false;
+        }
+        balance--;
+        return true;
+    }
+
+    private synchronized void recordLatency(long latency) {
+        latencies[sampleCount % SAMPLES] = latency;
+        sampleCount++;
+        if (sampleCount >= RECOMPUTE_INTERVAL
+                && sampleCount % RECOMPUTE_INTERVAL == 0) {
+            long[] sorted = Arrays.copyOf(latencies,
+                    Math.min(sampleCount, SAMPLES));
+            Arrays.sort(sorted);
+            delay = sorted[(int) (percentile * (sorted.length - 1))];
+        }
+    }
+
+    /**
+     * Returns the delay after which a duplicate is sent.
+     *
+     * @return the delay in ms.
+     */
+    public synchronized long getDelay() {
+        return delay;
+    }
+
+    /**
+     * Returns the number of requests sent.
+     *
+     * @return the number of requests, without duplicates.
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of duplicates sent.
+     *
+     * @return the number of duplicates.
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * Returns the number of duplicates answered before the request they
+     * duplicate.
+     *
+     * @return the number of duplicates that won.
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Returns the time after which a request and its duplicate are given up
+     * on.
+     *
+     * @return the timeout in ms.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * A request and its duplicate, if sent. Runs when the duplicate is due.
+     */
+    private class Hedge extends TimerTask {
+
+        private final IQ request;
+        private final JID alternate;
+        private final PacketCallback callback;
+        private final long sentAt = System.currentTimeMillis();
+
+        private boolean done;
+        private IQ duplicate;
+        private boolean primaryPending = true;
+        private boolean duplicatePending;
+        private IQ failure;
+
+        final PacketCallback primary = new PacketCallback() {
+            @Override
+            public void handle(Packet packet) {
+                answered((IQ) packet, false);
+            }
+        };
+
+        final TimerTask expiry = new TimerTask() {
+            @Override
+            public void run() {
+                expired();
+            }
+        };
+
+        Hedge(IQ request, JID alternate, PacketCallback callback) {
+            this.request = request;
+            this.alternate = alternate;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (done || duplicate != null || !spend()) {
+                    return;
+                }
+                createDuplicate();
+            }
+            hedges.incrementAndGet();
+            packetSender.sendPacket(duplicate);
+        }
+
+        private void createDuplicate() {
+            duplicate = request.createCopy();
+            duplicate.setTo(alternate);
+            duplicate.setID(PacketIDs.next());
+            duplicatePending = true;
+            packetSender.addPacketCallback(duplicate, new PacketCallback() {
+                @Override
+                public void handle(Packet packet) {
+                    answered((IQ) packet, true);
+                }
+            });
+        }
+
+        private void answered(IQ response, boolean byDuplicate) {
+            boolean failed = CircuitBreakers.isFailure(response);
+            boolean hedgeNow = false;
+            IQ loser;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                if (byDuplicate) {
+                    duplicatePending = false;
+                } else {
+                    primaryPending = false;
+                }
+                if (failed) {
+                    failure = response;
+                    if (primaryPending || duplicatePending) {
+                        // The other request may still do better
+                        return;
+                    }
+                    if (duplicate == null && spend()) {
+                        createDuplicate();
+                        hedgeNow = true;
+                    }
+                }
+                done = !hedgeNow;
+                loser = byDuplicate ? request : duplicate;
+            }
+            if (hedgeNow) {
+                TaskEngine.getInstance().cancelScheduledTask(this);
+                hedges.incrementAndGet();
+                packetSender.sendPacket(duplicate);
+                return;
+            }
+            TaskEngine.getInstance().cancelScheduledTask(this);
+            TaskEngine.getInstance().cancelScheduledTask(expiry);
+            if (loser != null) {
+                packetSender.removePacketCallback(loser);
+            }
+            if (!failed) {
+                if (byDuplicate) {
+                    hedgeWins.incrementAndGet();
+                }
+                recordLatency(System.currentTimeMillis() - sentAt);
+            }
+            callback.handle(response);
+        }
+
+        private void expired() {
+            IQ sent;
+            IQ failed;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                sent = duplicate;
+                failed = failure;
+            }
+            TaskEngine.getInstance().cancelScheduledTask(this);
+            packetSender.removePacketCallback(request);
+            if (sent != null) {
+                packetSender.removePacketCallback(sent);
+            }
+            recordLatency(System.currentTimeMillis() - sentAt);
+            if (failed != null) {
+                // A replica failed and the other one never answered
+                callback.handle(failed);
+                return;
+            }
+            IQ error = new IQ(IQ.Type.error, request.getID());
+            error.setFrom(request.getTo());
+            error.setTo(request.getFrom());
+            error.setError(new PacketError(
+                    PacketError.Condition.remote_server_timeout,
+                    PacketError.Type.wait));
+            callback.handle(error);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.jamppa.component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.jivesoftware.whack.util.PacketIDs;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Packet;
+
+/**
+ * Sends a number of IQs concurrently through an {@link AsyncPacketSender} and
+ * gathers their responses against a single deadline, so that querying many
+ * entities takes about as long as the slowest round trip rather than the sum
+ * of all of them. At most a given number of requests are awaiting a response
+ * at a time, so that large sweeps do not flood the connection.
+ * <p>
+ *
+ * The outcome of each request is returned, whatever happened to the others:
+ * a result, an error, or a timeout if no response arrived before the
+ * deadline, including requests that could not even be sent in time.
+ */
+public final class ScatterGather {
+
+    /**
+     * What became of a request.
+     */
+    public enum Status {
+        RESULT, ERROR, TIMEOUT
+    }
+
+    /**
+     * The outcome of a request.
+     */
+    public static class Outcome {
+
+        private final IQ request;
+        private final IQ response;
+
+        Outcome(IQ request, IQ response) {
+            this.request = request;
+            this.response = response;
+        }
+
+        /**
+         * @return the request
+         */
+        public IQ getRequest() {
+            return request;
+        }
+
+        /**
+         * @return the response, or <tt>null</tt> if the request timed out
+         */
+        public IQ getResponse() {
+            return response;
+        }
+
+        /**
+         * @return what became of the request
+         */
+        public Status getStatus() {
+            if (response == null) {
+                return Status.TIMEOUT;
+            }
+            return response.getType() == IQ.Type.error ? Status.ERROR
+                    : Status.RESULT;
+        }
+
+        @Override
+        public String toString() {
+            return request.getID() + "@" + request.getTo() + ": "
+                    + getStatus();
+        }
+    }
+
+    /**
+     * Marks the requests that are no longer awaited.
+     */
+    private static final IQ TIMED_OUT = new IQ();
+
+    private ScatterGather() {
+        // Not instantiable.
+    }
+
+    /**
+     * Sends the given requests and waits for their responses until all of
+     * them arrived or the timeout elapsed. Each request must have a
+     * recipient, and is given a new id when sent, so that copies of the same
+     * request can be sent to many recipients at once.
+     *
+     * @param packetSender
+     *            the sender of the requests.
+     * @param requests
+     *            the requests to send.
+     * @param timeout
+     *            the time to wait for all responses, in ms.
+     * @param maxConcurrency
+     *            the maximum number of requests awaiting a response at a
+     *            time.
+     * @return the outcomes, in the order of the requests.
+     */
+    public static List<Outcome> sendAll(AsyncPacketSender packetSender,
+            List<IQ> requests, long timeout, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum concurrency must be positive");
+        }
+        int count = requests.size();
+        final AtomicReferenceArray<IQ> responses = new AtomicReferenceArray<IQ>(
+                count);
+        final Semaphore permits = new Semaphore(maxConcurrency);
+        final CountDownLatch pending = new CountDownLatch(count);
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        int sent = 0;
+        try {
+            for (; sent < count; sent++) {
+                long remaining = deadline - System.nanoTime();
+                if (!permits.tryAcquire(remaining, TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+                final int index = sent;
+                IQ request = requests.get(index);
+                request.setID(PacketIDs.next());
+                packetSender.addPacketCallback(request, new PacketCallback() {
+                    @Override
+                    public void handle(Packet packet) {
+                        if (responses.compareAndSet(index, null, (IQ) packet)) {
+                            permits.release();
+                            pending.countDown();
+                        }
+                    }
+                });
+                packetSender.sendPacket(request);
+            }
+            if (sent == count) {
+                pending.await(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Outcome> outcomes = new ArrayList<Outcome>(count);
+        for (int i = 0; i < count; i++) {
+            IQ request = requests.get(i);
+            if (responses.compareAndSet(i, null, TIMED_OUT)) {
+                if (i < sent) {
+                    packetSender.removePacketCallback(request);
+                }
+                outcomes.add(new Outcome(request, null));
+            } else {
+                outcomes.add(new Outcome(request, responses.get(i)));
+            }
+        }
+        return outcomes;
+    }
+}
@@ -15,44 +15,85 @@
  */
 package org.jamppa.component;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.TimerTask;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.dom4j.Element;
 import org.dom4j.Namespace;
+import org.dom4j.QName;
 import org.jamppa.XMPPBase;
+import org.jamppa.component.handler.BatchHandler;
+import org.jamppa.component.handler.MessageHandler;
+import org.jamppa.component.handler.PresenceHandler;
 import org.jamppa.component.handler.QueryHandler;
 import org.jamppa.component.utils.XMPPUtils;
+import org.jivesoftware.whack.ExternalComponent;
 import org.jivesoftware.whack.ExternalComponentManager;
+import org.jivesoftware.whack.CircuitBreaker;
+import org.jivesoftware.whack.CircuitBreakers;
+import org.jivesoftware.whack.InlineComponent;
+import org.jivesoftware.whack.Priority;
+import org.jivesoftware.whack.util.PacketIDs;
+import org.jivesoftware.whack.util.PendingTable;
+import org.jivesoftware.whack.util.TaskEngine;
 import org.xmpp.component.AbstractComponent;
 import org.xmpp.component.ComponentException;
 import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
+import org.xmpp.packet.PacketError;
+import org.xmpp.packet.PacketError.Condition;
+import org.xmpp.packet.Presence;
 
 /**
  * @author Abmar
  * 
  */
-public class XMPPComponent extends AbstractComponent implements AsyncPacketSender {
+public class XMPPComponent extends AbstractComponent implements
+        AsyncPacketSender, InlineComponent, Executor {
 
     private static final Logger LOGGER = Logger.getLogger(XMPPComponent.class);
 
-    private final Map<String, QueryHandler> queryGetHandlers = new HashMap<String, QueryHandler>();
-    private final Map<String, QueryHandler> querySetHandlers = new HashMap<String, QueryHandler>();
+    private final HandlerRegistry<QueryHandler> queryGetHandlers = new HandlerRegistry<QueryHandler>();
+    private final HandlerRegistry<QueryHandler> querySetHandlers = new HandlerRegistry<QueryHandler>();
+    private final HandlerRegistry<MessageHandler> messageHandlers = new HandlerRegistry<MessageHandler>();
+    private final HandlerRegistry<PresenceHandler> presenceHandlers = new HandlerRegistry<PresenceHandler>();
+    private final List<PacketBatcher<?>> batchers = new CopyOnWriteArrayList<PacketBatcher<?>>();
+    private final ConcurrentMap<String, HandlerDeadline> deadlines = new ConcurrentHashMap<String, HandlerDeadline>();
+    private final HandlerDeadline.Calls deadlineCalls = new HandlerDeadline.Calls();
+    private final AtomicLong timeouts = new AtomicLong();
     private final long timeOutMilliSeconds;
 
     private static final long DEFAULT_TIME_OUT_MILLISECONDS = 5000;
+    private static final int QUEUED_PROCESSING_THREADS = 20;
+    private static final int QUEUED_PROCESSING_QUEUE_SIZE = 1000;
+    private static final long CALLBACK_TIME_OUT_MILLISECONDS = 300000;
+    private static final long CALLBACK_SWEEP_MILLISECONDS = 2000;
 
     private String description;
     private String name;
     private String discoInfoIdentityCategory;
     private String discoInfoIdentityCategoryType;
 
-    private Map<String, PacketCallback> packetCallbacks = new HashMap<String, PacketCallback>();
+    private final PendingTable<PendingCallback> packetCallbacks = new PendingTable<PendingCallback>();
+    private final ConcurrentMap<String, PendingCallback> foreignPacketCallbacks = new ConcurrentHashMap<String, PendingCallback>();
+    private TimerTask callbackTimeoutTask;
+    private volatile CircuitBreakers circuitBreakers;
+    private volatile RequestHedger requestHedger;
+
+    private volatile boolean inlineProcessing = true;
 
     private String jid;
     private String password;
@@ -60,9 +101,13 @@ public class XMPPComponent extends AbstractComponent implements AsyncPacketSende
     private int port;
 
     private ExternalComponentManager componentManager;
+    private volatile ExternalComponent externalComponent;
 
     public XMPPComponent(String jid, String password, String server, int port, long timeOutMilliSeconds) {
-        super(20, 1000, false);
+        // Tinder's final initialize() always creates its executor, but its
+        // threads only start once a packet is queued to it, which happens
+        // only while inline processing is turned off
+        super(QUEUED_PROCESSING_THREADS, QUEUED_PROCESSING_QUEUE_SIZE, false);
 
         if (timeOutMilliSeconds <= 0) {
             throw new IllegalArgumentException("Timeout must be positive");
@@ -87,14 +132,177 @@ public class XMPPComponent extends AbstractComponent implements AsyncPacketSende
         new XMPPBase().process(block);
     }
 
+    /**
+     * Registers a handler for IQ sets whose child element is a
+     * <tt>query</tt> in the handler's namespace.
+     * 
+     * @param queryHandler
+     */
     public void addSetHandler(QueryHandler queryHandler) {
-        queryHandler.setPacketSender(this);
-        querySetHandlers.put(queryHandler.getNamespace(), queryHandler);
+        addSetHandler(queryQName(queryHandler), queryHandler);
     }
 
+    /**
+     * Registers a handler for IQ gets whose child element is a
+     * <tt>query</tt> in the handler's namespace.
+     * 
+     * @param queryHandler
+     */
     public void addGetHandler(QueryHandler queryHandler) {
+        addGetHandler(queryQName(queryHandler), queryHandler);
+    }
+
+    /**
+     * Registers a handler for IQ sets whose child element has the given name
+     * and namespace, e.g. <tt>pubsub</tt> or <tt>command</tt> payloads.
+     * Handlers can be added, replaced and removed at any time, also while the
+     * component is connected.
+     * 
+     * @param payload
+     * @param queryHandler
+     */
+    public void addSetHandler(QName payload, QueryHandler queryHandler) {
+        queryHandler.setPacketSender(this);
+        querySetHandlers.put(payload, queryHandler);
+    }
+
+    /**
+     * Registers a handler for IQ gets whose child element has the given name
+     * and namespace, e.g. <tt>vCard</tt> or <tt>pubsub</tt> payloads. Gets
+     * that tinder answers by itself (disco, ping, last activity and entity
+     * time) are routed to the handler too, if one is registered. Handlers can
+     * be added, replaced and removed at any time, also while the component
+     * is connected.
+     * 
+     * @param payload
+     * @param queryHandler
+     */
+    public void addGetHandler(QName payload, QueryHandler queryHandler) {
         queryHandler.setPacketSender(this);
-        queryGetHandlers.put(queryHandler.getNamespace(), queryHandler);
+        queryGetHandlers.put(payload, queryHandler);
+    }
+
+    /**
+     * Unregisters the handler for IQ sets with the given child element.
+     * 
+     * @param payload
+     * @return the removed handler, or <tt>null</tt> if there was none
+     */
+    public QueryHandler removeSetHandler(QName payload) {
+        return querySetHandlers.remove(payload);
+    }
+
+    /**
+     * Unregisters the handler for IQ gets with the given child element.
+     * 
+     * @param payload
+     * @return the removed handler, or <tt>null</tt> if there was none
+     */
+    public QueryHandler removeGetHandler(QName payload) {
+        return queryGetHandlers.remove(payload);
+    }
+
+    /**
+     * Registers a handler for messages carrying a child element with the
+     * given name and namespace. A message is handled by the handler of its
+     * first child element that has one.
+     * 
+     * @param payload
+     * @param messageHandler
+     */
+    public void addMessageHandler(QName payload, MessageHandler messageHandler) {
+        messageHandler.setPacketSender(this);
+        retire(messageHandlers.put(payload, messageHandler));
+    }
+
+    /**
+     * Registers a handler for presences carrying a child element with the
+     * given name and namespace. A presence is handled by the handler of its
+     * first child element that has one.
+     * 
+     * @param payload
+     * @param presenceHandler
+     */
+    public void addPresenceHandler(QName payload,
+            PresenceHandler presenceHandler) {
+        presenceHandler.setPacketSender(this);
+        retire(presenceHandlers.put(payload, presenceHandler));
+    }
+
+    /**
+     * Registers a handler for batches of messages carrying a child element
+     * with the given name and namespace. Messages are handed over once
+     * <tt>maxBatchSize</tt> of them are collected, or <tt>maxDelay</tt> ms
+     * after the first one of the batch arrived, whichever comes first.
+     * 
+     * @param payload
+     * @param batchHandler
+     * @param maxBatchSize
+     * @param maxDelay
+     */
+    public void addMessageHandler(QName payload,
+            BatchHandler<Message> batchHandler, int maxBatchSize,
+            long maxDelay) {
+        addMessageHandler(payload, createBatcher(batchHandler, maxBatchSize,
+                maxDelay));
+    }
+
+    /**
+     * Registers a handler for batches of presences carrying a child element
+     * with the given name and namespace. Presences are handed over once
+     * <tt>maxBatchSize</tt> of them are collected, or <tt>maxDelay</tt> ms
+     * after the first one of the batch arrived, whichever comes first.
+     * 
+     * @param payload
+     * @param batchHandler
+     * @param maxBatchSize
+     * @param maxDelay
+     */
+    public void addPresenceHandler(QName payload,
+            BatchHandler<Presence> batchHandler, int maxBatchSize,
+            long maxDelay) {
+        addPresenceHandler(payload, createBatcher(batchHandler, maxBatchSize,
+                maxDelay));
+    }
+
+    /**
+     * Unregisters the handler for messages with the given child element. The
+     * messages a batch handler still collects are handed over first.
+     * 
+     * @param payload
+     */
+    public void removeMessageHandler(QName payload) {
+        retire(messageHandlers.remove(payload));
+    }
+
+    /**
+     * Unregisters the handler for presences with the given child element. The
+     * presences a batch handler still collects are handed over first.
+     * 
+     * @param payload
+     */
+    public void removePresenceHandler(QName payload) {
+        retire(presenceHandlers.remove(payload));
+    }
+
+    private <T extends Packet> PacketBatcher<T> createBatcher(
+            BatchHandler<T> batchHandler, int maxBatchSize, long maxDelay) {
+        PacketBatcher<T> batcher = new PacketBatcher<T>(batchHandler, this,
+                maxBatchSize, maxDelay);
+        batchers.add(batcher);
+        return batcher;
+    }
+
+    private void retire(Object handler) {
+        if (handler instanceof PacketBatcher) {
+            PacketBatcher<?> batcher = (PacketBatcher<?>) handler;
+            batchers.remove(batcher);
+            batcher.flush();
+        }
+    }
+
+    private static QName queryQName(QueryHandler queryHandler) {
+        return QName.get("query", Namespace.get(queryHandler.getNamespace()));
     }
 
     /*
@@ -112,22 +320,281 @@ public class XMPPComponent extends AbstractComponent implements AsyncPacketSende
         return handle(iq, queryGetHandlers);
     }
 
-    private IQ handle(IQ iq, Map<String, QueryHandler> handlers) {
-        Element queryElement = iq.getElement().element("query");
-        if (queryElement == null) {
-            return XMPPUtils.error(iq, "IQ does not contain query element.",
+    private IQ handle(IQ iq, HandlerRegistry<QueryHandler> handlers) {
+        Element payload = iq.getChildElement();
+        if (payload == null) {
+            return XMPPUtils.error(iq, "IQ does not contain a child element.",
                     LOGGER);
         }
 
-        Namespace namespace = queryElement.getNamespace();
-
-        QueryHandler queryHandler = handlers.get(namespace.getURI());
+        QueryHandler queryHandler = handlers.get(payload.getQName());
         if (queryHandler == null) {
-            return XMPPUtils.error(iq, "QueryHandler not found for namespace: "
-                    + namespace, LOGGER);
+            return XMPPUtils.error(iq, "QueryHandler not found for element: "
+                    + payload.getQualifiedName() + " in namespace: "
+                    + payload.getNamespaceURI(), LOGGER);
         }
 
-        return queryHandler.handle(iq);
+        return invoke(queryHandler, iq);
+    }
+
+    private IQ invoke(QueryHandler queryHandler, IQ iq) {
+        if (deadlines.isEmpty()) {
+            return queryHandler.handle(iq);
+        }
+        HandlerDeadline deadline = deadlines.get(iq.getChildElement()
+                .getNamespaceURI());
+        return deadline == null ? queryHandler.handle(iq) : deadline.handle(
+                queryHandler, iq, this);
+    }
+
+    /**
+     * Sets the time handlers have to answer queries in the given namespace.
+     * Once it passes, the requester is answered with a
+     * <tt>remote-server-timeout</tt> error, the handler thread is interrupted
+     * and the result of the handler is dropped. Handlers answering
+     * asynchronously through {@link #sendPacket(Packet)} are held to it as
+     * well: their response is dropped if it comes too late.
+     * 
+     * @param namespace
+     * @param deadline
+     *            the deadline in ms, or zero to remove it
+     */
+    public void setDeadline(String namespace, long deadline) {
+        setDeadline(namespace, deadline, Condition.remote_server_timeout);
+    }
+
+    /**
+     * Sets the time handlers have to answer queries in the given namespace,
+     * and the error condition the requester is answered with once it passes.
+     * 
+     * @param namespace
+     * @param deadline
+     *            the deadline in ms, or zero to remove it
+     * @param condition
+     */
+    public void setDeadline(String namespace, long deadline,
+            Condition condition) {
+        if (deadline <= 0) {
+            deadlines.remove(namespace);
+        } else {
+            deadlines.put(namespace, new HandlerDeadline(deadline, condition,
+                    timeouts, deadlineCalls));
+        }
+    }
+
+    /**
+     * @return the number of queries answered with an error because their
+     *         handler missed its deadline
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    private QueryHandler getHandler(IQ iq) {
+        Element payload = iq.getChildElement();
+        return payload == null ? null : queryGetHandlers.get(payload
+                .getQName());
+    }
+
+    @Override
+    protected IQ handleDiscoInfo(IQ iq) {
+        QueryHandler queryHandler = getHandler(iq);
+        return queryHandler != null ? invoke(queryHandler, iq) : super
+                .handleDiscoInfo(iq);
+    }
+
+    @Override
+    protected IQ handleDiscoItems(IQ iq) {
+        QueryHandler queryHandler = getHandler(iq);
+        return queryHandler != null ? invoke(queryHandler, iq) : super
+                .handleDiscoItems(iq);
+    }
+
+    @Override
+    protected IQ handlePing(IQ iq) {
+        QueryHandler queryHandler = getHandler(iq);
+        return queryHandler != null ? invoke(queryHandler, iq) : super
+                .handlePing(iq);
+    }
+
+    @Override
+    protected IQ handleLastActivity(IQ iq) {
+        QueryHandler queryHandler = getHandler(iq);
+        return queryHandler != null ? invoke(queryHandler, iq) : super
+                .handleLastActivity(iq);
+    }
+
+    @Override
+    protected IQ handleEntityTime(IQ iq) {
+        QueryHandler queryHandler = getHandler(iq);
+        return queryHandler != null ? invoke(queryHandler, iq) : super
+                .handleEntityTime(iq);
+    }
+
+    @Override
+    protected void handleMessage(Message message) {
+        for (Object o : message.getElement().elements()) {
+            MessageHandler messageHandler = messageHandlers.get(((Element) o)
+                    .getQName());
+            if (messageHandler != null) {
+                messageHandler.handle(message);
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected void handlePresence(Presence presence) {
+        for (Object o : presence.getElement().elements()) {
+            PresenceHandler presenceHandler = presenceHandlers
+                    .get(((Element) o).getQName());
+            if (presenceHandler != null) {
+                presenceHandler.handle(presence);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Processes the packet on the calling thread, i.e. on a thread of the
+     * {@link ExternalComponent} pool, rather than queuing it again to the pool
+     * of {@link AbstractComponent}. Packets are routed to the same handle
+     * methods, but cannot be dropped because that pool's queue is full.
+     */
+    @Override
+    public boolean processInline(Packet packet) {
+        if (!inlineProcessing) {
+            return false;
+        }
+        try {
+            if (packet instanceof IQ) {
+                processIQ((IQ) packet);
+            } else if (packet instanceof Message) {
+                if (acceptFrom(packet)) {
+                    handleMessage((Message) packet);
+                }
+            } else if (packet instanceof Presence) {
+                if (acceptFrom(packet)) {
+                    handlePresence((Presence) packet);
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Unexpected exception while processing stanza: "
+                    + packet.toXML(), e);
+        }
+        return true;
+    }
+
+    /*
+     * processIQ, processIQRequest and acceptFrom mirror the private dispatch
+     * of tinder 1.2.3's AbstractComponent (processIQ, processIQRequest and
+     * sentByLocalEntity), which cannot be called from here, so that inline
+     * and queued processing behave the same. Keep them in sync when
+     * upgrading tinder. Only the logging differs, and enforceIQResult is left
+     * out since this component turns it off.
+     */
+    private void processIQ(IQ iq) {
+        IQ response = null;
+        try {
+            switch (iq.getType()) {
+            case get:
+            case set:
+                response = processIQRequest(iq);
+                if (response != null
+                        && (!response.isResponse() || !iq.getID().equals(
+                                response.getID()))) {
+                    throw new IllegalStateException(
+                            "Response is not a result or error with the id "
+                                    + "of the request: " + response.toXML());
+                }
+                break;
+            case result:
+                if (acceptFrom(iq)) {
+                    handleIQResult(iq);
+                }
+                break;
+            case error:
+                if (acceptFrom(iq)) {
+                    handleIQError(iq);
+                }
+                break;
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Unexpected exception while processing IQ stanza: "
+                    + iq.toXML(), e);
+            if (iq.isRequest()) {
+                response = IQ.createResultIQ(iq);
+                response.setError(Condition.internal_server_error);
+            }
+        }
+        if (response != null) {
+            send(response);
+        }
+    }
+
+    private IQ processIQRequest(IQ iq) throws Exception {
+        Element child = iq.getChildElement();
+        String namespace = child == null ? null : child.getNamespaceURI();
+        if (namespace == null) {
+            IQ response = IQ.createResultIQ(iq);
+            response.setError(Condition.bad_request);
+            return response;
+        }
+        if (!acceptFrom(iq)) {
+            IQ response = IQ.createResultIQ(iq);
+            response.setError(Condition.not_authorized);
+            return response;
+        }
+        if (iq.getType() == IQ.Type.set) {
+            return handleIQSet(iq);
+        }
+        if (NAMESPACE_DISCO_INFO.equals(namespace)) {
+            return handleDiscoInfo(iq);
+        } else if (NAMESPACE_DISCO_ITEMS.equals(namespace)) {
+            return handleDiscoItems(iq);
+        } else if (NAMESPACE_XMPP_PING.equals(namespace)) {
+            return handlePing(iq);
+        } else if (NAMESPACE_LAST_ACTIVITY.equals(namespace)) {
+            return handleLastActivity(iq);
+        } else if (NAMESPACE_ENTITY_TIME.equals(namespace)) {
+            return handleEntityTime(iq);
+        }
+        return handleIQGet(iq);
+    }
+
+    /**
+     * Returns whether a stanza from the given sender is processed, see
+     * {@link #servesLocalUsersOnly()}.
+     */
+    private boolean acceptFrom(Packet packet) {
+        if (!servesLocalUsersOnly()) {
+            return true;
+        }
+        JID from = packet.getFrom();
+        if (from == null) {
+            return true;
+        }
+        String domain = from.getDomain();
+        return domain.equals(getDomain())
+                || domain.endsWith("." + getDomain());
+    }
+
+    /**
+     * Turns inline processing on or off. When off, received packets are
+     * queued to the thread pool of {@link AbstractComponent} as usual, whose
+     * threads are only started then. On by default.
+     * 
+     * @param inlineProcessing
+     */
+    public void setInlineProcessing(boolean inlineProcessing) {
+        this.inlineProcessing = inlineProcessing;
+    }
+
+    /**
+     * @return whether received packets are processed inline
+     */
+    public boolean isInlineProcessing() {
+        return inlineProcessing;
     }
 
     /**
@@ -202,13 +669,156 @@ public class XMPPComponent extends AbstractComponent implements AsyncPacketSende
      */
     @Override
     public void sendPacket(Packet packet) {
-        send(packet);
+        if (!rejectedByBreaker(packet) && deadlineCalls.answer(packet)) {
+            send(packet);
+        }
+    }
+
+    /**
+     * Answers the callback of the given request right away instead of
+     * sending it if the circuit breaker of its recipient is open. Only
+     * requests with a callback go through breakers, since the outcome of
+     * the others is unknown.
+     */
+    private boolean rejectedByBreaker(Packet packet) {
+        if (circuitBreakers == null || !(packet instanceof IQ)
+                || !((IQ) packet).isRequest()) {
+            return false;
+        }
+        PendingCallback pending = getPendingCallback(packet.getID());
+        if (pending == null || pending.breaker == null
+                || pending.breaker.allowRequest()) {
+            return false;
+        }
+        if (removePendingCallback(packet.getID(), pending)) {
+            pending.callback.handle(CircuitBreakers
+                    .createRejection((IQ) packet));
+        }
+        return true;
+    }
+
+    /**
+     * Sets the circuit breakers of the recipients of requests sent with a
+     * callback, see {@link #syncSendPacket(Packet)} and
+     * {@link #addPacketCallback(Packet, PacketCallback)}. While the breaker
+     * of a recipient is open, requests to it are not sent and get a
+     * <tt>service-unavailable</tt> error right away.
+     * 
+     * @param circuitBreakers
+     *            the breakers, or <tt>null</tt> to always send requests.
+     */
+    public void setCircuitBreakers(CircuitBreakers circuitBreakers) {
+        this.circuitBreakers = circuitBreakers;
+    }
+
+    /**
+     * @return the circuit breakers of the recipients of requests, if any
+     */
+    public CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    /**
+     * Sends the given packet unless the connection is congested, i.e. the
+     * server reads slower than packets are sent, see
+     * {@link ExternalComponentManager#setWriteWatermarks(long, long)}.
+     * 
+     * @param packet
+     * @return <tt>false</tt> if the packet was not sent, and should be sent
+     *         again later or dropped
+     */
+    public boolean trySendPacket(Packet packet) {
+        ExternalComponent connection = getExternalComponent();
+        if (connection == null) {
+            sendPacket(packet);
+            return true;
+        }
+        return connection.trySend(packet);
+    }
+
+    /**
+     * Sends the given packets in order, flushing the connection only once
+     * when connected through an {@link ExternalComponentManager}.
+     * 
+     * @param packets
+     */
+    public void sendPackets(Collection<? extends Packet> packets) {
+        ExternalComponent connection = getExternalComponent();
+        if (connection == null) {
+            for (Packet packet : packets) {
+                send(packet);
+            }
+            return;
+        }
+        try {
+            connection.send(packets);
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not send " + packets.size() + " packets", e);
+        }
+    }
+
+    /**
+     * Sends the packet straight through the connection of this component when
+     * connected through an {@link ExternalComponentManager}, rather than
+     * looking the component up in the manager for each packet.
+     */
+    @Override
+    protected void send(Packet packet) {
+        ExternalComponent connection = getExternalComponent();
+        if (connection == null) {
+            super.send(packet);
+        } else {
+            connection.send(packet);
+        }
+    }
+
+    /**
+     * Runs the given task on the threads handling the queries of this
+     * component, or on the {@link TaskEngine} when not connected through an
+     * {@link ExternalComponentManager}. Lets handlers hand work back to the
+     * pool instead of holding the thread of the query they handle.
+     * 
+     * @param task
+     */
+    @Override
+    public void execute(Runnable task) {
+        ExternalComponent connection = getExternalComponent();
+        if (connection == null) {
+            TaskEngine.getInstance().submit(task);
+        } else {
+            connection.execute(Priority.INTERACTIVE, task);
+        }
+    }
+
+    private ExternalComponent getExternalComponent() {
+        ExternalComponent connection = externalComponent;
+        if (connection == null && compMan instanceof ExternalComponentManager) {
+            connection = ((ExternalComponentManager) compMan)
+                    .getExternalComponent(this);
+            externalComponent = connection;
+        }
+        return connection;
+    }
+
+    /**
+     * Hands the stanzas still collected for batch handlers over before the
+     * component goes away.
+     */
+    @Override
+    public void preComponentShutdown() {
+        if (callbackTimeoutTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(callbackTimeoutTask);
+            callbackTimeoutTask = null;
+        }
+        for (PacketBatcher<?> batcher : batchers) {
+            batcher.flush();
+        }
     }
 
     public void connect() throws ComponentException {
         LOGGER.debug("Initializing XMPP component...");
 
-        this.componentManager = new ExternalComponentManager(server, port);
+        this.componentManager = createComponentManager();
         componentManager.setSecretKey(jid, password);
 
         try {
@@ -221,7 +831,18 @@ public class XMPPComponent extends AbstractComponent implements AsyncPacketSende
         LOGGER.debug("XMPP component initialized.");
     }
 
+    /**
+     * Creates the manager connecting this component. Subclasses may override
+     * this to configure the connection, e.g. its write watermarks.
+     * 
+     * @return the manager
+     */
+    protected ExternalComponentManager createComponentManager() {
+        return new ExternalComponentManager(server, port);
+    }
+
     public void disconnect() throws ComponentException {
+        externalComponent = null;
         componentManager.removeComponent(jid);
     }
 
@@ -233,12 +854,11 @@ public class XMPPComponent extends AbstractComponent implements AsyncPacketSende
      */
     @Override
     protected void handleIQResult(IQ iq) {
-    	String packetCallbackId = iq.getID() + "@"
-                + iq.getFrom().toBareJID();
-		PacketCallback callback = packetCallbacks.get(packetCallbackId);
-        if (callback != null) {
-            callback.handle(iq);
-            packetCallbacks.remove(packetCallbackId);
+        PendingCallback pending = getPendingCallback(iq.getID());
+        if (pending != null && pending.isAnsweredBy(iq.getFrom())
+                && removePendingCallback(iq.getID(), pending)) {
+            CircuitBreakers.record(pending.breaker, iq);
+            pending.callback.handle(iq);
         }
     }
     
@@ -255,27 +875,301 @@ public class XMPPComponent extends AbstractComponent implements AsyncPacketSende
      */
     @Override
     public Packet syncSendPacket(Packet packet) {
+        assignID(packet);
         final BlockingQueue<Packet> queue = new ArrayBlockingQueue<Packet>(1);
-        packetCallbacks.put(packet.getID() + "@" + packet.getTo().toBareJID(),
-                new PacketCallback() {
-                    @Override
-                    public void handle(Packet packet) {
-                        queue.add(packet);
-                    }
-                });
-        send(packet);
+        // Given up below before the sweep would answer it with a timeout
+        String id = register(packet, new PacketCallback() {
+            @Override
+            public void handle(Packet packet) {
+                queue.offer(packet);
+            }
+        }, timeOutMilliSeconds + 2 * CALLBACK_SWEEP_MILLISECONDS);
+        if (!rejectedByBreaker(packet)) {
+            send(packet);
+        }
         try {
             return queue.poll(timeOutMilliSeconds, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } finally {
-            packetCallbacks.remove(packet.getID());
+            giveUp(id);
         }
     }
-    
+
+    /**
+     * Registers a callback for the response to the given packet, matched by
+     * the id of the packet, which is given one from {@link PacketIDs} if it
+     * has none. The packet may be sent before or after. If no response
+     * arrives within 5 minutes, the callback of an IQ is called with a
+     * <tt>remote-server-timeout</tt> error, as if sent by the recipient.
+     * <p>
+     * 
+     * Ids from {@link PacketIDs}, e.g. set with {@link PacketIDs#next()},
+     * are matched by number; others, like the random ids tinder gives new
+     * IQs, through a map of strings.
+     */
+    @Override
+    public void addPacketCallback(Packet packet, PacketCallback packetCallback) {
+        register(packet, packetCallback, CALLBACK_TIME_OUT_MILLISECONDS);
+    }
+
+    /**
+     * Drops the callback of a packet, e.g. once another replica answered. This
+     * does not count as a failure for circuit breakers.
+     */
     @Override
-	public void addPacketCallback(Packet packet, PacketCallback packetCallback) {
-		packetCallbacks.put(packet.getID() + "@" + packet.getTo().toBareJID(),
-				packetCallback);
-	}
+    public void removePacketCallback(Packet packet) {
+        removePendingCallback(packet.getID());
+    }
+
+    /**
+     * Sends a request to a replicated service, and a copy of it to the
+     * alternate replica if the first one is slow to answer, see
+     * {@link RequestHedger}. By default, copies are sent after the 95th
+     * percentile of the observed latencies and add at most 5% of requests,
+     * and both are given up on after the timeout of this component. The
+     * request is given an id from {@link PacketIDs} unless it has one.
+     * 
+     * @param request
+     * @param alternate
+     * @param callback
+     *            called with the first answer
+     */
+    public void sendHedged(IQ request, JID alternate, PacketCallback callback) {
+        assignID(request);
+        getRequestHedger().send(request, alternate, callback);
+    }
+
+    /**
+     * @param requestHedger
+     *            the hedger of {@link #sendHedged(IQ, JID, PacketCallback)}
+     */
+    public void setRequestHedger(RequestHedger requestHedger) {
+        this.requestHedger = requestHedger;
+    }
+
+    /**
+     * @return the hedger of {@link #sendHedged(IQ, JID, PacketCallback)},
+     *         created on first use so it never sees a partly constructed
+     *         component
+     */
+    public RequestHedger getRequestHedger() {
+        RequestHedger hedger = requestHedger;
+        if (hedger == null) {
+            synchronized (this) {
+                hedger = requestHedger;
+                if (hedger == null) {
+                    hedger = new RequestHedger(this, 0.95, 0.05,
+                            timeOutMilliSeconds / 5, timeOutMilliSeconds);
+                    requestHedger = hedger;
+                }
+            }
+        }
+        return hedger;
+    }
+
+    /**
+     * Stops waiting for the response to a packet, which counts as a timeout
+     * for the breaker of its recipient if it was not answered.
+     */
+    private void giveUp(String id) {
+        PendingCallback pending = removePendingCallback(id);
+        if (pending != null && pending.breaker != null) {
+            pending.breaker.recordFailure();
+        }
+    }
+
+    /**
+     * Gives the packet an id from {@link PacketIDs}, so that its response is
+     * matched by number, unless it has one already. Tinder gives new IQs
+     * random ids.
+     */
+    private static void assignID(Packet packet) {
+        if (PacketIDs.decode(packet.getID()) == 0) {
+            packet.setID(PacketIDs.next());
+        }
+    }
+
+    /**
+     * @return the number of callbacks awaiting the response to a packet with
+     *         an id from {@link PacketIDs}
+     */
+    int getNumberedCallbackCount() {
+        return packetCallbacks.size();
+    }
+
+    private String register(Packet packet, PacketCallback packetCallback,
+            long timeout) {
+        String id = packet.getID();
+        if (id == null) {
+            id = PacketIDs.next();
+            packet.setID(id);
+        }
+        CircuitBreakers breakers = circuitBreakers;
+        CircuitBreaker breaker = null;
+        if (breakers != null && packet instanceof IQ) {
+            breaker = breakers.get(packet.getTo());
+        }
+        long expiresAt = System.currentTimeMillis() + timeout;
+        PendingCallback pending = new PendingCallback(packetCallback, packet,
+                breaker, expiresAt);
+        long key = PacketIDs.decode(id);
+        if (key != 0) {
+            packetCallbacks.put(key, pending, expiresAt);
+        } else {
+            foreignPacketCallbacks.put(id, pending);
+        }
+        return id;
+    }
+
+    private PendingCallback getPendingCallback(String id) {
+        long key = PacketIDs.decode(id);
+        if (key != 0) {
+            return packetCallbacks.get(key);
+        }
+        if (id == null || foreignPacketCallbacks.isEmpty()) {
+            return null;
+        }
+        return foreignPacketCallbacks.get(id);
+    }
+
+    private PendingCallback removePendingCallback(String id) {
+        long key = PacketIDs.decode(id);
+        if (key != 0) {
+            return packetCallbacks.remove(key);
+        }
+        return id == null ? null : foreignPacketCallbacks.remove(id);
+    }
+
+    private boolean removePendingCallback(String id, PendingCallback pending) {
+        long key = PacketIDs.decode(id);
+        if (key != 0) {
+            return packetCallbacks.remove(key, pending);
+        }
+        return foreignPacketCallbacks.remove(id, pending);
+    }
+
+    @Override
+    public void postComponentStart() {
+        callbackTimeoutTask = new TimerTask() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                packetCallbacks.expire(now,
+                        new PendingTable.ExpiryListener<PendingCallback>() {
+                            @Override
+                            public void expired(long key,
+                                    PendingCallback pending) {
+                                timedOut(PacketIDs.encode(key), pending);
+                            }
+                        });
+                for (Map.Entry<String, PendingCallback> entry : foreignPacketCallbacks
+                        .entrySet()) {
+                    PendingCallback pending = entry.getValue();
+                    if (pending.expiresAt <= now
+                            && foreignPacketCallbacks.remove(entry.getKey(),
+                                    pending)) {
+                        timedOut(entry.getKey(), pending);
+                    }
+                }
+            }
+        };
+        TaskEngine.getInstance().scheduleAtFixedRate(callbackTimeoutTask,
+                CALLBACK_SWEEP_MILLISECONDS, CALLBACK_SWEEP_MILLISECONDS);
+    }
+
+    /**
+     * Answers the callback of a packet whose response did not arrive in time
+     * with a <tt>remote-server-timeout</tt> error, if the packet is an IQ.
+     */
+    private void timedOut(String id, PendingCallback pending) {
+        if (pending.breaker != null) {
+            pending.breaker.recordFailure();
+        }
+        LOGGER.debug("No response to packet " + id);
+        IQ timeout = pending.createTimeout(id);
+        if (timeout == null) {
+            return;
+        }
+        try {
+            pending.callback.handle(timeout);
+        } catch (RuntimeException e) {
+            LOGGER.error("Error notifying the callback of packet " + id, e);
+        }
+    }
+
+    /**
+     * A callback waiting for the response to a packet.
+     */
+    private static class PendingCallback {
+
+        private final PacketCallback callback;
+        private final JID recipient;
+        private final JID sender;
+        private final boolean request;
+        private final CircuitBreaker breaker;
+        private final long expiresAt;
+
+        PendingCallback(PacketCallback callback, Packet packet,
+                CircuitBreaker breaker, long expiresAt) {
+            this.callback = callback;
+            this.recipient = packet.getTo();
+            this.sender = packet.getFrom();
+            this.request = packet instanceof IQ && ((IQ) packet).isRequest();
+            this.breaker = breaker;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Returns the error the callback is answered with once the response
+         * is given up on, as if sent by the recipient, or <tt>null</tt> if
+         * the packet was not an IQ request.
+         */
+        IQ createTimeout(String id) {
+            if (!request) {
+                return null;
+            }
+            IQ timeout = new IQ(IQ.Type.error, id);
+            timeout.setFrom(recipient);
+            timeout.setTo(sender);
+            timeout.setError(new PacketError(
+                    PacketError.Condition.remote_server_timeout,
+                    PacketError.Type.wait));
+            return timeout;
+        }
+
+        /**
+         * Returns whether a response from the given address may be the
+         * response to the packet, i.e. whether it comes from the bare JID the
+         * packet was sent to.
+         */
+        boolean isAnsweredBy(JID from) {
+            if (recipient == null) {
+                return true;
+            }
+            if (from == null) {
+                return false;
+            }
+            return recipient.getDomain().equals(from.getDomain())
+                    && (recipient.getNode() == null ? from.getNode() == null
+                            : recipient.getNode().equals(from.getNode()));
+        }
+    }
+
+    /**
+     * Sends the given IQs concurrently and gathers their responses until all
+     * of them arrived or the timeout elapsed, see
+     * {@link ScatterGather#sendAll(AsyncPacketSender, List, long, int)}.
+     * 
+     * @param requests
+     * @param timeout
+     *            the time to wait for all responses, in ms
+     * @param maxConcurrency
+     *            the maximum number of requests awaiting a response at a time
+     * @return the outcome of each request, in order
+     */
+    public List<ScatterGather.Outcome> sendAll(List<IQ> requests,
+            long timeout, int maxConcurrency) {
+        return ScatterGather.sendAll(this, requests, timeout, maxConcurrency);
+    }
 }
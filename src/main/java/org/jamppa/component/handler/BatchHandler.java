@@ -0,0 +1,38 @@
+package org.jamppa.component.handler;
+
+import java.util.List;
+
+import org.jamppa.component.PacketSender;
+import org.xmpp.packet.Packet;
+
+/**
+ * Handles messages or presences carrying a given payload element in batches,
+ * see
+ * {@link org.jamppa.component.XMPPComponent#addMessageHandler(org.dom4j.QName, BatchHandler, int, long)}
+ * and
+ * {@link org.jamppa.component.XMPPComponent#addPresenceHandler(org.dom4j.QName, BatchHandler, int, long)}.
+ * <p>
+ *
+ * Meant for handlers that persist or forward traffic, so that a database
+ * write or a downstream call can cover a whole batch instead of a single
+ * stanza.
+ */
+public interface BatchHandler<T extends Packet> {
+
+    /**
+     * Handles a batch of stanzas, in the order they were received. Batches may
+     * be handled concurrently.
+     *
+     * @param batch
+     *            the stanzas of the batch, never empty.
+     * @return the packets to send in reply, written to the connection in one
+     *         go, or <tt>null</tt> if there are none.
+     */
+    List<? extends Packet> handle(List<T> batch);
+
+    /**
+     * @param packetSender
+     *            the packetSender to set
+     */
+    void setPacketSender(PacketSender packetSender);
+}
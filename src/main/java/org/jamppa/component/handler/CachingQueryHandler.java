@@ -0,0 +1,199 @@
+package org.jamppa.component.handler;
+
+import java.util.Iterator;
+
+import org.dom4j.Element;
+import org.jamppa.component.PacketSender;
+import org.jamppa.component.utils.XMPPUtils;
+import org.jivesoftware.smack.util.ConcurrentCache;
+import org.jivesoftware.whack.WritablePacket;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+/**
+ * A QueryHandler that caches the results of another one. Equivalent queries,
+ * i.e. queries to the same address whose child elements have the same
+ * canonical form (see {@link XMPPUtils#canonicalize(Element)}), are answered
+ * from the cache
+ * without calling the wrapped handler: only the id, to and from of the cached
+ * result are rewritten for each requester.
+ * <p>
+ *
+ * Only meant for idempotent queries whose answer may be served stale for up
+ * to the cache lifetime, typically IQ gets:
+ *
+ * <pre>
+ * addGetHandler(new CachingQueryHandler(new ItemsQueryHandler(), 1000, 60000));
+ * </pre>
+ *
+ * Error results, asynchronous handlers (returning <tt>null</tt>) and
+ * {@link StreamingResultIQ}s are never cached. Queries can be keyed by
+ * requester too, for handlers whose answer depends on who asks. Entries can be
+ * dropped before they expire with the invalidate methods.
+ */
+public class CachingQueryHandler implements QueryHandler {
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final QueryHandler handler;
+    private final ConcurrentCache<String, IQ> cache;
+    private final boolean perRequester;
+
+    /**
+     * Creates a cache shared by all requesters.
+     *
+     * @param handler
+     *            the handler to cache the results of.
+     * @param maxSize
+     *            the maximum number of cached results.
+     * @param lifetime
+     *            the amount of time (in ms) results are cached.
+     */
+    public CachingQueryHandler(QueryHandler handler, int maxSize,
+            long lifetime) {
+        this(handler, maxSize, lifetime, false);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param handler
+     *            the handler to cache the results of.
+     * @param maxSize
+     *            the maximum number of cached results.
+     * @param lifetime
+     *            the amount of time (in ms) results are cached.
+     * @param perRequester
+     *            whether results are cached per requester (bare JID) rather
+     *            than shared by all requesters.
+     */
+    public CachingQueryHandler(QueryHandler handler, int maxSize,
+            long lifetime, boolean perRequester) {
+        if (handler == null) {
+            throw new IllegalArgumentException("Handler cannot be null");
+        }
+        if (lifetime <= 0) {
+            throw new IllegalArgumentException("Lifetime must be positive");
+        }
+        this.handler = handler;
+        this.cache = new ConcurrentCache<String, IQ>(maxSize, lifetime);
+        this.perRequester = perRequester;
+    }
+
+    @Override
+    public IQ handle(IQ query) {
+        String key = key(query);
+        if (key == null) {
+            return handler.handle(query);
+        }
+        IQ cached = cache.get(key);
+        if (cached != null) {
+            return XMPPUtils.answer(cached.createCopy(), query);
+        }
+        IQ result = handler.handle(query);
+        if (isCacheable(result)) {
+            cache.put(key, prototype(result));
+        }
+        return result;
+    }
+
+    private static boolean isCacheable(IQ result) {
+        return result != null && result.getType() == IQ.Type.result
+                && !(result instanceof StreamingResultIQ);
+    }
+
+    /**
+     * Returns a detached copy of the result whose copies are cheap to make.
+     */
+    static IQ prototype(IQ result) {
+        if (result instanceof WritablePacket) {
+            return result.createCopy();
+        }
+        return new SharedResultIQ(result);
+    }
+
+    private String key(IQ query) {
+        return key(query, perRequester);
+    }
+
+    /**
+     * Returns the key of equivalent queries, or <tt>null</tt> if the query
+     * cannot be keyed. Queries to different addresses served by the same
+     * component are never equivalent.
+     */
+    static String key(IQ query, boolean perRequester) {
+        Element child = query.getChildElement();
+        if (child == null) {
+            return null;
+        }
+        JID to = query.getTo();
+        StringBuilder key = new StringBuilder();
+        if (to != null) {
+            key.append(to.toString());
+        }
+        key.append(SEPARATOR).append(XMPPUtils.canonicalize(child));
+        if (perRequester) {
+            JID from = query.getFrom();
+            if (from == null) {
+                return null;
+            }
+            key.append(SEPARATOR).append(from.toBareJID());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Drops the cached result for the given query, if any.
+     *
+     * @param query
+     *            the query whose result is stale.
+     */
+    public void invalidate(IQ query) {
+        String key = key(query);
+        if (key != null) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Drops all cached results for the given requester. Only useful if
+     * results are cached per requester.
+     *
+     * @param requester
+     *            the requester whose results are stale.
+     */
+    public void invalidate(JID requester) {
+        String suffix = SEPARATOR + requester.toBareJID();
+        for (Iterator<String> it = cache.keySet().iterator(); it.hasNext();) {
+            if (it.next().endsWith(suffix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all cached results.
+     */
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    /**
+     * Returns the counters of the result cache.
+     *
+     * @return the cache statistics.
+     */
+    public ConcurrentCache.Stats getStats() {
+        return cache.getStats();
+    }
+
+    @Override
+    public String getNamespace() {
+        return handler.getNamespace();
+    }
+
+    @Override
+    public void setPacketSender(PacketSender packetSender) {
+        handler.setPacketSender(packetSender);
+    }
+}
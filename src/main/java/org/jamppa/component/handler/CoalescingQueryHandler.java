@@ -0,0 +1,223 @@
+package org.jamppa.component.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.jamppa.component.PacketSender;
+import org.jamppa.component.utils.XMPPUtils;
+import org.jivesoftware.whack.util.TaskEngine;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.PacketError.Condition;
+import org.xmpp.packet.PacketError.Type;
+
+/**
+ * A QueryHandler that runs another one only once for equivalent queries
+ * arriving while it is already handling one of them. Queries are equivalent
+ * when their child elements have the same canonical form (see
+ * {@link XMPPUtils#canonicalize(org.dom4j.Element)}).
+ * <p>
+ *
+ * The first query of a burst is handled as usual. Equivalent queries arriving
+ * before it is done return <tt>null</tt> right away, like an asynchronous
+ * handler, so they do not hold a component thread. Once the first query is
+ * handled, its result is sent through the packet sender, then each of the
+ * waiting queries is sent a copy of it with its own id, to and from. Nothing
+ * is kept afterwards, so results are never served stale, unlike with
+ * {@link CachingQueryHandler}.
+ * <p>
+ *
+ * If the wrapped handler answers asynchronously or with a
+ * {@link StreamingResultIQ}, whose result cannot be shared, the waiting
+ * queries are handled separately instead, on the packet sender if it is an
+ * {@link Executor}, like {@link org.jamppa.component.XMPPComponent}, or on
+ * the {@link TaskEngine} otherwise. If it fails, the first query and the
+ * waiting ones are answered with an internal-server-error.
+ */
+public class CoalescingQueryHandler implements QueryHandler {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(CoalescingQueryHandler.class);
+
+    private final QueryHandler handler;
+    private final boolean perRequester;
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+    private final AtomicLong coalesced = new AtomicLong();
+    private volatile PacketSender packetSender;
+
+    /**
+     * Creates a handler coalescing equivalent queries from all requesters.
+     *
+     * @param handler
+     *            the handler to run.
+     */
+    public CoalescingQueryHandler(QueryHandler handler) {
+        this(handler, false);
+    }
+
+    /**
+     * Creates a handler coalescing equivalent queries.
+     *
+     * @param handler
+     *            the handler to run.
+     * @param perRequester
+     *            whether only queries from the same requester (bare JID) are
+     *            coalesced.
+     */
+    public CoalescingQueryHandler(QueryHandler handler, boolean perRequester) {
+        if (handler == null) {
+            throw new IllegalArgumentException("Handler cannot be null");
+        }
+        this.handler = handler;
+        this.perRequester = perRequester;
+    }
+
+    @Override
+    public IQ handle(IQ query) {
+        String key = CachingQueryHandler.key(query, perRequester);
+        if (key == null || packetSender == null) {
+            return handler.handle(query);
+        }
+        Flight flight = new Flight();
+        while (true) {
+            Flight current = inFlight.putIfAbsent(key, flight);
+            if (current == null) {
+                break;
+            }
+            if (current.join(query)) {
+                coalesced.incrementAndGet();
+                return null;
+            }
+            // The flight just landed, try to lead a new one
+            inFlight.remove(key, current);
+        }
+
+        IQ result = null;
+        RuntimeException failure = null;
+        List<IQ> followers;
+        try {
+            result = handler.handle(query);
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            inFlight.remove(key, flight);
+            followers = flight.land();
+        }
+        if (followers.isEmpty()) {
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+
+        if (failure != null) {
+            LOGGER.error("Could not handle query " + query.getID(), failure);
+            send(internalServerError(query));
+            for (IQ follower : followers) {
+                send(internalServerError(follower));
+            }
+            return null;
+        }
+        if (result == null || result instanceof StreamingResultIQ) {
+            for (IQ follower : followers) {
+                handleLater(follower);
+            }
+            return result;
+        }
+        // The leader is answered first, as it asked first
+        send(result);
+        IQ prototype = CachingQueryHandler.prototype(result);
+        for (IQ follower : followers) {
+            send(XMPPUtils.answer(prototype.createCopy(), follower));
+        }
+        return null;
+    }
+
+    /**
+     * Hands a query whose leader's result cannot be shared back to the
+     * threads of the component, if the packet sender runs tasks, so the
+     * leader's thread is not held while they are handled one by one.
+     */
+    private void handleLater(final IQ query) {
+        Runnable task = new Runnable() {
+            public void run() {
+                IQ response;
+                try {
+                    response = handler.handle(query);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Could not handle query " + query.getID(), e);
+                    response = internalServerError(query);
+                }
+                if (response != null) {
+                    send(response);
+                }
+            }
+        };
+        PacketSender sender = packetSender;
+        if (sender instanceof Executor) {
+            ((Executor) sender).execute(task);
+        } else {
+            TaskEngine.getInstance().submit(task);
+        }
+    }
+
+    private static IQ internalServerError(IQ query) {
+        return XMPPUtils.createErrorResponse(query, null,
+                Condition.internal_server_error, Type.wait);
+    }
+
+    private void send(IQ response) {
+        try {
+            packetSender.sendPacket(response);
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not send response " + response.getID(), e);
+        }
+    }
+
+    /**
+     * Returns the number of queries that were answered with the result of an
+     * equivalent query instead of being handled.
+     *
+     * @return the number of coalesced queries.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    @Override
+    public String getNamespace() {
+        return handler.getNamespace();
+    }
+
+    @Override
+    public void setPacketSender(PacketSender packetSender) {
+        this.packetSender = packetSender;
+        handler.setPacketSender(packetSender);
+    }
+
+    /**
+     * The queries waiting for the result of an in-flight query.
+     */
+    private static class Flight {
+
+        private final List<IQ> followers = new ArrayList<IQ>();
+        private boolean landed;
+
+        synchronized boolean join(IQ query) {
+            if (landed) {
+                return false;
+            }
+            followers.add(query);
+            return true;
+        }
+
+        synchronized List<IQ> land() {
+            landed = true;
+            return followers;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.jamppa.component.handler;
+
+import java.util.TimerTask;
+import java.util.concurrent.TimeoutException;
+
+import org.jamppa.component.utils.XMPPUtils;
+import org.jivesoftware.whack.util.TaskEngine;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.PacketError.Condition;
+import org.xmpp.packet.PacketError.Type;
+
+/**
+ * A QueryHandler that answers queries asynchronously through an
+ * {@link IQFuture}, e.g. one completed by a non-blocking client. Unlike with
+ * {@link AsyncQueryHandler}, subclasses do not send the reply themselves:
+ * once the future is done, its result is sent to the requester, or an error
+ * if it failed. The component thread is released as soon as
+ * {@link #handleFuture(IQ)} returns.
+ * <p>
+ *
+ * If a deadline is set and the future is not done in time, the requester is
+ * answered with a <tt>remote-server-timeout</tt> error and the result the
+ * future eventually gets is dropped.
+ */
+public abstract class FutureQueryHandler extends AbstractQueryHandler {
+
+    private final long deadline;
+
+    /**
+     * Creates a handler without a deadline.
+     *
+     * @param namespace
+     */
+    public FutureQueryHandler(String namespace) {
+        this(namespace, 0);
+    }
+
+    /**
+     * Creates a handler whose futures must be done within the given time.
+     *
+     * @param namespace
+     * @param deadline
+     *            the deadline in ms, or zero for none.
+     */
+    public FutureQueryHandler(String namespace, long deadline) {
+        super(namespace);
+        this.deadline = deadline;
+    }
+
+    @Override
+    public final IQ handle(final IQ query) {
+        IQFuture future;
+        try {
+            future = handleFuture(query);
+            if (future == null) {
+                future = IQFuture.failed(new IllegalStateException(
+                        "No future returned"));
+            }
+        } catch (RuntimeException e) {
+            future = IQFuture.failed(e);
+        }
+        TimerTask scheduled = null;
+        if (deadline > 0 && !future.isDone()) {
+            scheduled = scheduleTimeout(future);
+        }
+        final TimerTask timeout = scheduled;
+        future.addListener(new IQFuture.Listener() {
+            @Override
+            public void done(IQ result, Throwable failure) {
+                if (timeout != null) {
+                    TaskEngine.getInstance().cancelScheduledTask(timeout);
+                }
+                reply(query, result, failure);
+            }
+        });
+        return null;
+    }
+
+    private TimerTask scheduleTimeout(final IQFuture future) {
+        TimerTask timeout = new TimerTask() {
+            @Override
+            public void run() {
+                future.fail(new TimeoutException("Not answered within "
+                        + deadline + " ms"));
+            }
+        };
+        TaskEngine.getInstance().schedule(timeout, deadline);
+        return timeout;
+    }
+
+    private void reply(IQ query, IQ result, Throwable failure) {
+        IQ response;
+        if (failure != null) {
+            response = createErrorResponse(query, failure);
+        } else if (result == null) {
+            getLogger().error("Query " + query.getID() + " got no result");
+            response = XMPPUtils.createErrorResponse(query, null,
+                    Condition.internal_server_error, Type.wait);
+        } else {
+            response = result;
+        }
+        try {
+            getPacketSender().sendPacket(response);
+        } catch (RuntimeException e) {
+            getLogger().error("Could not send response " + response.getID(),
+                    e);
+        }
+    }
+
+    /**
+     * Returns the error the requester is answered with when the future
+     * failed. Timeouts are answered with <tt>remote-server-timeout</tt>, other
+     * failures with <tt>internal-server-error</tt>.
+     *
+     * @param query
+     * @param failure
+     * @return the error response
+     */
+    protected IQ createErrorResponse(IQ query, Throwable failure) {
+        if (failure instanceof TimeoutException) {
+            getLogger().warn("Query " + query.getID() + " timed out");
+            return XMPPUtils.createErrorResponse(query, null,
+                    Condition.remote_server_timeout, Type.wait);
+        }
+        getLogger().error("Could not handle query " + query.getID(), failure);
+        return XMPPUtils.createErrorResponse(query, null,
+                Condition.internal_server_error, Type.wait);
+    }
+
+    /**
+     * Starts handling the query.
+     *
+     * @param query
+     * @return the future of the result, sent to the requester once done
+     */
+    protected abstract IQFuture handleFuture(IQ query);
+}
@@ -0,0 +1,173 @@
+package org.jamppa.component.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.xmpp.packet.IQ;
+
+/**
+ * The IQ an asynchronous operation will eventually produce. A future is
+ * completed once, either with a result or with a failure, by whichever
+ * thread finishes the operation. Listeners are then called on that thread,
+ * or right away on the thread adding them if the future is already done.
+ * Completing a future that is already done has no effect.
+ */
+public class IQFuture {
+
+    private static final Logger LOGGER = Logger.getLogger(IQFuture.class);
+
+    /**
+     * Called once a future is done.
+     */
+    public interface Listener {
+
+        /**
+         * @param result
+         *            the result, <tt>null</tt> if the operation failed.
+         * @param failure
+         *            the failure, <tt>null</tt> if the operation succeeded.
+         */
+        void done(IQ result, Throwable failure);
+    }
+
+    private IQ result;
+    private Throwable failure;
+    private boolean done;
+    private List<Listener> listeners = new ArrayList<Listener>(1);
+
+    /**
+     * Returns a future already completed with the given result.
+     *
+     * @param result
+     *            the result.
+     * @return the completed future.
+     */
+    public static IQFuture completed(IQ result) {
+        IQFuture future = new IQFuture();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * Returns a future that already failed with the given cause.
+     *
+     * @param failure
+     *            the cause of the failure.
+     * @return the failed future.
+     */
+    public static IQFuture failed(Throwable failure) {
+        IQFuture future = new IQFuture();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Completes this future with the given result.
+     *
+     * @param result
+     *            the result.
+     * @return <tt>false</tt> if the future was already done.
+     */
+    public boolean complete(IQ result) {
+        return finish(result, null);
+    }
+
+    /**
+     * Completes this future with the given failure.
+     *
+     * @param failure
+     *            the cause of the failure.
+     * @return <tt>false</tt> if the future was already done.
+     */
+    public boolean fail(Throwable failure) {
+        if (failure == null) {
+            throw new IllegalArgumentException("Failure cannot be null");
+        }
+        return finish(null, failure);
+    }
+
+    private boolean finish(IQ result, Throwable failure) {
+        List<Listener> toNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.result = result;
+            this.failure = failure;
+            this.done = true;
+            toNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        for (Listener listener : toNotify) {
+            notify(listener);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a listener called once this future is done.
+     *
+     * @param listener
+     *            the listener.
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notify(listener);
+    }
+
+    private void notify(Listener listener) {
+        try {
+            listener.done(result, failure);
+        } catch (RuntimeException e) {
+            LOGGER.error("Error notifying listener of IQ future", e);
+        }
+    }
+
+    /**
+     * @return whether this future is completed or failed.
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Waits for this future to be done and returns its result.
+     *
+     * @param timeout
+     *            the maximum time to wait.
+     * @param unit
+     *            the unit of the timeout.
+     * @return the result.
+     * @throws ExecutionException
+     *             if the future failed.
+     * @throws TimeoutException
+     *             if the future is not done in time.
+     * @throws InterruptedException
+     *             if the thread was interrupted while waiting.
+     */
+    public synchronized IQ get(long timeout, TimeUnit unit)
+            throws ExecutionException, TimeoutException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,19 @@
+package org.jamppa.component.handler;
+
+import org.jamppa.component.PacketSender;
+import org.xmpp.packet.Message;
+
+/**
+ * Handles messages carrying a given payload element, see
+ * {@link org.jamppa.component.XMPPComponent#addMessageHandler(org.dom4j.QName, MessageHandler)}.
+ */
+public interface MessageHandler {
+
+    void handle(Message message);
+
+    /**
+     * @param packetSender
+     *            the packetSender to set
+     */
+    void setPacketSender(PacketSender packetSender);
+}
@@ -0,0 +1,19 @@
+package org.jamppa.component.handler;
+
+import org.jamppa.component.PacketSender;
+import org.xmpp.packet.Presence;
+
+/**
+ * Handles presences carrying a given payload element, see
+ * {@link org.jamppa.component.XMPPComponent#addPresenceHandler(org.dom4j.QName, PresenceHandler)}.
+ */
+public interface PresenceHandler {
+
+    void handle(Presence presence);
+
+    /**
+     * @param packetSender
+     *            the packetSender to set
+     */
+    void setPacketSender(PacketSender packetSender);
+}
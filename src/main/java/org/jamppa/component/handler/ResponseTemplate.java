@@ -0,0 +1,216 @@
+package org.jamppa.component.handler;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.Attribute;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.whack.WritablePacket;
+import org.xmpp.packet.IQ;
+
+/**
+ * A fixed IQ result payload compiled once into literal segments and value
+ * slots. Handlers that answer the same shape over and over can return
+ * {@link #createResult(IQ, String...)} instead of building a result DOM: the
+ * returned IQ only carries the stanza attributes (id, to, from, type) and the
+ * component writer emits the payload straight from the compiled segments.
+ * <p>
+ *
+ * Slots are written as <tt>{0}</tt>, <tt>{1}</tt>, ... and may appear both in
+ * text and in attribute values. Values are XML-escaped when written, with
+ * {@link StringUtils#escapeForXML(String, Appendable)}, which leaves
+ * character references such as <tt>&amp;#235;</tt> as they are.
+ *
+ * <pre>
+ * ResponseTemplate template = ResponseTemplate
+ *         .compile(&quot;&lt;query xmlns='uppercase'&gt;&lt;content&gt;{0}&lt;/content&gt;&lt;/query&gt;&quot;);
+ * ...
+ * return template.createResult(query, content.toUpperCase());
+ * </pre>
+ */
+public class ResponseTemplate {
+
+    private final char[][] segments;
+    private final int[] slots;
+    private final int slotCount;
+
+    private ResponseTemplate(char[][] segments, int[] slots, int slotCount) {
+        this.segments = segments;
+        this.slots = slots;
+        this.slotCount = slotCount;
+    }
+
+    /**
+     * Compiles a payload template.
+     *
+     * @param payload
+     *            the XML of the IQ child element, with <tt>{n}</tt> slots.
+     * @return the compiled template.
+     * @throws IllegalArgumentException
+     *             if the payload is not well-formed XML.
+     */
+    public static ResponseTemplate compile(String payload) {
+        if (payload == null) {
+            throw new IllegalArgumentException("Payload cannot be null");
+        }
+        List<char[]> segments = new ArrayList<char[]>();
+        List<Integer> slots = new ArrayList<Integer>();
+        StringBuilder stripped = new StringBuilder(payload.length());
+        int slotCount = 0;
+        int last = 0;
+        int i = 0;
+        while (i < payload.length()) {
+            int end = slotEnd(payload, i);
+            if (end < 0) {
+                i++;
+                continue;
+            }
+            int slot = Integer.parseInt(payload.substring(i + 1, end));
+            segments.add(payload.substring(last, i).toCharArray());
+            stripped.append(payload, last, i);
+            slots.add(slot);
+            slotCount = Math.max(slotCount, slot + 1);
+            last = end + 1;
+            i = last;
+        }
+        segments.add(payload.substring(last).toCharArray());
+        stripped.append(payload, last, payload.length());
+
+        try {
+            DocumentHelper.parseText(stripped.toString());
+        } catch (DocumentException e) {
+            throw new IllegalArgumentException("Payload is not well-formed: "
+                    + payload, e);
+        }
+
+        int[] slotArray = new int[slots.size()];
+        for (int j = 0; j < slotArray.length; j++) {
+            slotArray[j] = slots.get(j);
+        }
+        return new ResponseTemplate(segments.toArray(new char[segments.size()][]),
+                slotArray, slotCount);
+    }
+
+    /**
+     * Returns the index of the closing brace if a <tt>{n}</tt> slot starts at
+     * the given position, or -1 otherwise.
+     */
+    private static int slotEnd(String payload, int start) {
+        if (payload.charAt(start) != '{') {
+            return -1;
+        }
+        int i = start + 1;
+        while (i < payload.length() && Character.isDigit(payload.charAt(i))) {
+            i++;
+        }
+        if (i == start + 1 || i >= payload.length()
+                || payload.charAt(i) != '}') {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the number of values this template expects.
+     *
+     * @return the number of slot values.
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Creates a result IQ answering the given request whose payload is this
+     * template filled with the given values.
+     *
+     * @param request
+     *            the IQ being answered.
+     * @param values
+     *            the slot values, <tt>null</tt> values are written as empty.
+     * @return the result IQ.
+     */
+    public IQ createResult(IQ request, String... values) {
+        if (values.length < slotCount) {
+            throw new IllegalArgumentException("Template expects "
+                    + slotCount + " values, got " + values.length);
+        }
+        TemplatedIQ result = new TemplatedIQ(this, values);
+        result.setID(request.getID());
+        result.setTo(request.getFrom());
+        result.setFrom(request.getTo());
+        return result;
+    }
+
+    void write(Writer writer, String[] values) throws IOException {
+        for (int i = 0; i < slots.length; i++) {
+            writer.write(segments[i]);
+            StringUtils.escapeForXML(values[slots[i]], writer);
+        }
+        writer.write(segments[slots.length]);
+    }
+
+    /**
+     * An IQ whose payload is rendered from a {@link ResponseTemplate}. Its
+     * element only holds the stanza attributes, so id, to and from can still
+     * be read and rewritten through the usual {@link IQ} accessors.
+     */
+    private static class TemplatedIQ extends IQ implements WritablePacket {
+
+        private final ResponseTemplate template;
+        private final String[] values;
+
+        TemplatedIQ(ResponseTemplate template, String[] values) {
+            super(Type.result);
+            this.template = template;
+            this.values = values;
+        }
+
+        @Override
+        public void writeTo(Writer writer) throws IOException {
+            writer.write("<iq");
+            for (Object o : element.attributes()) {
+                Attribute attribute = (Attribute) o;
+                writer.write(' ');
+                writer.write(attribute.getQualifiedName());
+                writer.write("=\"");
+                StringUtils.escapeForXML(attribute.getValue(), writer);
+                writer.write('"');
+            }
+            writer.write('>');
+            template.write(writer, values);
+            writer.write("</iq>");
+        }
+
+        @Override
+        public String toXML() {
+            StringWriter writer = new StringWriter();
+            try {
+                writeTo(writer);
+            } catch (IOException e) {
+                // StringWriter does not throw
+            }
+            return writer.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toXML();
+        }
+
+        @Override
+        public IQ createCopy() {
+            TemplatedIQ copy = new TemplatedIQ(template, values);
+            for (Object o : element.attributes()) {
+                Attribute attribute = (Attribute) o;
+                copy.getElement().addAttribute(attribute.getQName(),
+                        attribute.getValue());
+            }
+            return copy;
+        }
+    }
+}
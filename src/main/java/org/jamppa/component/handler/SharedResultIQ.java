@@ -0,0 +1,103 @@
+package org.jamppa.component.handler;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.dom4j.Attribute;
+import org.dom4j.Node;
+import org.dom4j.io.XMLWriter;
+import org.jivesoftware.whack.WritablePacket;
+import org.jivesoftware.whack.util.StringUtils;
+import org.xmpp.packet.IQ;
+
+/**
+ * An IQ whose content is shared with other instances answering the same
+ * query. Its element only holds the stanza attributes, so id, to and from can
+ * be rewritten for each requester through the usual {@link IQ} accessors,
+ * while the content nodes are written straight from the shared copy. The
+ * shared content must not be modified.
+ */
+class SharedResultIQ extends IQ implements WritablePacket {
+
+    private final List<Node> content;
+
+    /**
+     * Creates a prototype holding a detached copy of the content and the
+     * attributes of the given IQ.
+     */
+    SharedResultIQ(IQ result) {
+        this(copyContent(result));
+        copyAttributes(result, this);
+    }
+
+    private SharedResultIQ(List<Node> content) {
+        super(Type.result);
+        this.content = content;
+    }
+
+    private static List<Node> copyContent(IQ result) {
+        List<Node> content = new ArrayList<Node>();
+        for (Object o : result.getElement().content()) {
+            content.add((Node) ((Node) o).clone());
+        }
+        return Collections.unmodifiableList(content);
+    }
+
+    private static void copyAttributes(IQ from, IQ to) {
+        for (Object o : from.getElement().attributes()) {
+            Attribute attribute = (Attribute) o;
+            to.getElement().addAttribute(attribute.getQName(),
+                    attribute.getValue());
+        }
+    }
+
+    @Override
+    public void writeTo(Writer writer) throws IOException {
+        writer.write("<iq");
+        for (Object o : element.attributes()) {
+            Attribute attribute = (Attribute) o;
+            writer.write(' ');
+            writer.write(attribute.getQualifiedName());
+            writer.write("=\"");
+            StringUtils.escapeForXML(attribute.getValue(), writer);
+            writer.write('"');
+        }
+        writer.write('>');
+        XMLWriter xmlWriter = new XMLWriter(writer);
+        for (Node node : content) {
+            xmlWriter.write(node);
+        }
+        writer.write("</iq>");
+    }
+
+    @Override
+    public String toXML() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeTo(writer);
+        } catch (IOException e) {
+            // StringWriter does not throw
+        }
+        return writer.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toXML();
+    }
+
+    /**
+     * Returns a new IQ sharing the content of this one, with a copy of its
+     * attributes.
+     */
+    @Override
+    public IQ createCopy() {
+        SharedResultIQ copy = new SharedResultIQ(content);
+        copyAttributes(this, copy);
+        return copy;
+    }
+}
@@ -0,0 +1,268 @@
+package org.jamppa.component.handler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+import org.dom4j.Comment;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.io.XMLWriter;
+import org.jivesoftware.whack.WritablePacket;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.PacketError;
+
+/**
+ * An IQ result whose child element is filled from an iterator while the
+ * stanza is being written to the connection. Handlers returning very large
+ * result sets can hand over a lazy iterator (e.g. backed by a database
+ * cursor) instead of building the whole result element in memory, so only
+ * the items currently being written are held at any time.
+ * <p>
+ *
+ * The items are obtained when the stanza is written. If their iterator
+ * implements {@link Closeable} it is closed afterwards. Results created from
+ * an {@link Iterable} obtain a new iterator each time they are written, so
+ * they can be copied and written again. Results created from an
+ * {@link Iterator} consume it once: copies share it, and only the first one
+ * written gets the items.
+ * <p>
+ *
+ * The first item is obtained before anything is written, so an iterator
+ * failing right away, or already consumed, is answered with an
+ * <tt>internal-server-error</tt> instead. Should the iterator fail midway,
+ * the items already sent cannot be taken back: the stanza is closed properly
+ * as a result holding the items written so far, and {@link #getFailure()}
+ * returns what cut it short. The connection writer is held for the whole
+ * duration of the streaming, so iterators should not block for long between
+ * items.
+ */
+public class StreamingResultIQ extends IQ implements WritablePacket {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(StreamingResultIQ.class);
+
+    private static final int DEFAULT_FLUSH_INTERVAL = 64;
+
+    private final Element payload;
+    private final Comment marker;
+    private final Iterable<? extends Element> source;
+    private final int flushInterval;
+    private volatile RuntimeException failure;
+
+    /**
+     * Creates a result IQ answering the given request.
+     *
+     * @param request
+     *            the IQ being answered.
+     * @param payload
+     *            the detached child element of the result. Any content it
+     *            already has is written before the streamed items.
+     * @param items
+     *            the elements to append to the payload.
+     */
+    public StreamingResultIQ(IQ request, Element payload,
+            Iterator<? extends Element> items) {
+        this(request, payload, items, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Creates a result IQ answering the given request, which can be copied.
+     *
+     * @param request
+     *            the IQ being answered.
+     * @param payload
+     *            the detached child element of the result. Any content it
+     *            already has is written before the streamed items.
+     * @param source
+     *            the elements to append to the payload, iterated each time
+     *            the result is written.
+     */
+    public StreamingResultIQ(IQ request, Element payload,
+            Iterable<? extends Element> source) {
+        this(request, payload, source, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Creates a result IQ answering the given request.
+     *
+     * @param request
+     *            the IQ being answered.
+     * @param payload
+     *            the detached child element of the result. Any content it
+     *            already has is written before the streamed items.
+     * @param items
+     *            the elements to append to the payload.
+     * @param flushInterval
+     *            the number of items written between two flushes of the
+     *            connection writer.
+     */
+    public StreamingResultIQ(IQ request, Element payload,
+            Iterator<? extends Element> items, int flushInterval) {
+        this(request, payload, once(items), flushInterval);
+    }
+
+    /**
+     * Creates a result IQ answering the given request, which can be copied.
+     *
+     * @param request
+     *            the IQ being answered.
+     * @param payload
+     *            the detached child element of the result. Any content it
+     *            already has is written before the streamed items.
+     * @param source
+     *            the elements to append to the payload, iterated each time
+     *            the result is written.
+     * @param flushInterval
+     *            the number of items written between two flushes of the
+     *            connection writer.
+     */
+    public StreamingResultIQ(IQ request, Element payload,
+            Iterable<? extends Element> source, int flushInterval) {
+        super(Type.result, request.getID());
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException(
+                    "Flush interval must be positive");
+        }
+        setTo(request.getFrom());
+        setFrom(request.getTo());
+        this.payload = payload;
+        this.source = source;
+        this.flushInterval = flushInterval;
+        // Keeps the payload non-empty so the writer always reaches
+        // writeElementContent, and shows up in toXML() for logging
+        this.marker = DocumentHelper.createComment("streamed items");
+        payload.add(marker);
+        element.add(payload);
+    }
+
+    private StreamingResultIQ(StreamingResultIQ original) {
+        super(original.element.createCopy());
+        this.payload = (Element) element.node(original.element
+                .indexOf(original.payload));
+        this.marker = (Comment) payload.node(original.payload
+                .indexOf(original.marker));
+        this.source = original.source;
+        this.flushInterval = original.flushInterval;
+    }
+
+    private static <T> Iterable<T> once(final Iterator<T> items) {
+        return new Iterable<T>() {
+            private boolean consumed;
+
+            @Override
+            public synchronized Iterator<T> iterator() {
+                if (consumed) {
+                    throw new IllegalStateException(
+                            "Streamed items were already written");
+                }
+                consumed = true;
+                return items;
+            }
+        };
+    }
+
+    @Override
+    public void writeTo(Writer writer) throws IOException {
+        failure = null;
+        Iterator<? extends Element> items = null;
+        try {
+            Element first;
+            try {
+                items = source.iterator();
+                first = items.hasNext() ? items.next() : null;
+            } catch (RuntimeException e) {
+                failure = e;
+                LOGGER.error("Streamed result " + getID()
+                        + " failed before its first item", e);
+                writeError(writer);
+                return;
+            }
+            new StreamingWriter(writer, items, first).write(element);
+        } finally {
+            if (items instanceof Closeable) {
+                try {
+                    ((Closeable) items).close();
+                } catch (IOException e) {
+                    LOGGER.warn("Could not close streamed result items", e);
+                }
+            }
+        }
+    }
+
+    private void writeError(Writer writer) throws IOException {
+        IQ error = new IQ(Type.error, getID());
+        error.setTo(getTo());
+        error.setFrom(getFrom());
+        error.setError(PacketError.Condition.internal_server_error);
+        new XMLWriter(writer).write(error.getElement());
+    }
+
+    /**
+     * Returns the exception thrown by the streamed items the last time this
+     * result was written.
+     *
+     * @return the exception, or <tt>null</tt> if all items were written.
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Copies this result, sharing its streamed items.
+     *
+     * @return a copy of this result.
+     */
+    @Override
+    public IQ createCopy() {
+        return new StreamingResultIQ(this);
+    }
+
+    private class StreamingWriter extends XMLWriter {
+
+        private final Iterator<? extends Element> items;
+        private final Element first;
+
+        StreamingWriter(Writer writer, Iterator<? extends Element> items,
+                Element first) {
+            super(writer);
+            this.items = items;
+            this.first = first;
+        }
+
+        @Override
+        protected void writeElementContent(Element element) throws IOException {
+            if (element != payload) {
+                super.writeElementContent(element);
+                return;
+            }
+            for (int i = 0; i < element.nodeCount(); i++) {
+                Node node = element.node(i);
+                if (node != marker) {
+                    writeNode(node);
+                }
+            }
+            if (first == null) {
+                return;
+            }
+            writeElement(first);
+            int written = 1;
+            try {
+                while (items.hasNext()) {
+                    if (written % flushInterval == 0) {
+                        flush();
+                    }
+                    writeElement(items.next());
+                    written++;
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+                LOGGER.error("Streamed result " + getID()
+                        + " was cut short after " + written + " items", e);
+            }
+        }
+    }
+}
@@ -15,7 +15,17 @@
  */
 package org.jamppa.component.utils;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 import org.apache.log4j.Logger;
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.jivesoftware.whack.util.StringUtils;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.PacketError.Condition;
@@ -23,6 +33,14 @@ import org.xmpp.packet.PacketError.Type;
 
 public class XMPPUtils {
 
+    private static final Comparator<Attribute> ATTRIBUTE_ORDER = new Comparator<Attribute>() {
+        @Override
+        public int compare(Attribute a1, Attribute a2) {
+            int result = a1.getNamespaceURI().compareTo(a2.getNamespaceURI());
+            return result != 0 ? result : a1.getName().compareTo(a2.getName());
+        }
+    };
+
     /**
      * Logs the error and returns an IQ error response
      * 
@@ -102,4 +120,79 @@ public class XMPPUtils {
         return result;
     }
 
+    /**
+     * Turns a response into the answer of the given request, by setting its
+     * id, to and from. The rest of the response is left untouched.
+     * 
+     * @param response
+     * @param request
+     * @return the response
+     */
+    public static IQ answer(IQ response, IQ request) {
+        response.setID(request.getID());
+        response.setTo(request.getFrom());
+        response.setFrom(request.getTo());
+        return response;
+    }
+
+    /**
+     * Returns a canonical string form of an element, so that elements that
+     * only differ in attribute order, namespace prefixes or whitespace between
+     * child elements have the same form. Used as a key for equivalent
+     * queries.
+     * 
+     * @param element
+     * @return the canonical form of the element
+     */
+    public static String canonicalize(Element element) {
+        StringBuilder builder = new StringBuilder();
+        try {
+            canonicalize(element, builder);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        return builder.toString();
+    }
+
+    private static void canonicalize(Element element, StringBuilder builder)
+            throws IOException {
+        builder.append('<').append('{').append(element.getNamespaceURI())
+                .append('}').append(element.getName());
+        if (element.attributeCount() > 0) {
+            List<Attribute> attributes = new ArrayList<Attribute>();
+            for (Object o : element.attributes()) {
+                attributes.add((Attribute) o);
+            }
+            Collections.sort(attributes, ATTRIBUTE_ORDER);
+            for (Attribute attribute : attributes) {
+                builder.append(' ').append('{')
+                        .append(attribute.getNamespaceURI()).append('}')
+                        .append(attribute.getName()).append("=\"");
+                StringUtils.escapeForXML(attribute.getValue(), builder);
+                builder.append('"');
+            }
+        }
+        builder.append('>');
+        for (int i = 0; i < element.nodeCount(); i++) {
+            Node node = element.node(i);
+            switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                canonicalize((Element) node, builder);
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                String text = node.getText();
+                if (text.trim().length() > 0) {
+                    StringUtils.escapeForXML(text, builder);
+                }
+                break;
+            default:
+                // Comments and processing instructions do not change the
+                // meaning of a query
+                break;
+            }
+        }
+        builder.append("</>");
+    }
+
 }
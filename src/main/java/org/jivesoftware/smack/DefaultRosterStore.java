@@ -27,11 +27,11 @@ import java.util.Collection;
 import java.util.List;
 
 import org.jivesoftware.smack.util.Base32Encoder;
+import org.jivesoftware.smack.util.JIDCache;
 import org.jivesoftware.smack.util.StringUtils;
 import org.xmlpull.mxp1.MXParser;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmpp.packet.JID;
 import org.xmpp.packet.Roster;
 import org.xmpp.packet.Roster.Ask;
 import org.xmpp.packet.Roster.Item;
@@ -261,32 +261,32 @@ public class DefaultRosterStore implements RosterStore {
         }
 
         Roster roster = new Roster();
-        roster.addItem(new JID(user), name, ask, subscription, groupNames);
+        roster.addItem(JIDCache.getJID(user), name, ask, subscription,
+                groupNames);
         return roster.getItems().iterator().next();
     }
 
     private boolean addEntryRaw(Item item) {
-        StringBuilder s = new StringBuilder();
+        StringBuilder s = new StringBuilder(128);
         s.append("<item ");
-        s.append(StringUtils.xmlAttrib("user", item.getJID().toBareJID()));
+        StringUtils.xmlAttrib(s, "user", item.getJID().toBareJID());
         s.append(" ");
         if (item.getName() != null) {
-            s.append(StringUtils.xmlAttrib("name", item.getName()));
+            StringUtils.xmlAttrib(s, "name", item.getName());
             s.append(" ");
         }
         if (item.getSubscription() != null) {
-            s.append(StringUtils.xmlAttrib("type", item.getSubscription()
-                    .name()));
+            StringUtils.xmlAttrib(s, "type", item.getSubscription().name());
             s.append(" ");
         }
         if (item.getAsk() != null) {
-            s.append(StringUtils.xmlAttrib("status", item.getAsk().toString()));
+            StringUtils.xmlAttrib(s, "status", item.getAsk().toString());
             s.append(" ");
         }
         s.append(">");
         for (String group : item.getGroups()) {
             s.append("<group ");
-            s.append(StringUtils.xmlAttrib("name", group));
+            StringUtils.xmlAttrib(s, "name", group);
             s.append(" />");
         }
         s.append("</item>");
@@ -24,6 +24,7 @@ import java.util.concurrent.BlockingQueue;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.jivesoftware.smack.util.StringUtils;
 import org.xmpp.packet.Packet;
 
 /**
@@ -229,8 +230,8 @@ class PacketWriter {
     void openStream() throws IOException {
         StringBuilder stream = new StringBuilder();
         stream.append("<stream:stream");
-        stream.append(" to=\"").append(connection.getServiceName())
-                .append("\"");
+        StringUtils.xmlAttrib(stream.append(' '), "to",
+                connection.getServiceName());
         stream.append(" xmlns=\"jabber:client\"");
         stream.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
         stream.append(" version=\"1.0\">");
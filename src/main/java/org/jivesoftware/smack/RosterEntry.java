@@ -23,8 +23,8 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
+import org.jivesoftware.smack.util.JIDCache;
 import org.xmpp.packet.IQ;
-import org.xmpp.packet.JID;
 import org.xmpp.packet.Roster;
 import org.xmpp.packet.Roster.Ask;
 import org.xmpp.packet.Roster.Subscription;
@@ -101,7 +101,8 @@ public class RosterEntry {
         this.name = name;
         Roster packet = new Roster();
         packet.setType(IQ.Type.set);
-        packet.addItem(new JID(user), name, ask, subscription, getGroupNames());
+        packet.addItem(JIDCache.getJID(user), name, ask, subscription,
+                getGroupNames());
         connection.sendPacket(packet);
     }
 
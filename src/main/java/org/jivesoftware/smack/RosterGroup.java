@@ -26,9 +26,9 @@ import java.util.List;
 import java.util.Set;
 
 import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.util.JIDCache;
 import org.jivesoftware.smack.util.StringUtils;
 import org.xmpp.packet.IQ;
-import org.xmpp.packet.JID;
 import org.xmpp.packet.Roster;
 
 /**
@@ -85,8 +85,9 @@ public class RosterGroup {
                         entry.getGroupNames());
                 groupNames.remove(this.name);
                 groupNames.add(name);
-                packet.addItem(new JID(entry.getUser()), entry.getName(),
-                        entry.getAsk(), entry.getSubscription(), groupNames);
+                packet.addItem(JIDCache.getJID(entry.getUser()),
+                        entry.getName(), entry.getAsk(),
+                        entry.getSubscription(), groupNames);
                 connection.sendPacket(packet);
             }
         }
@@ -188,8 +189,9 @@ public class RosterGroup {
                 List<String> groupNames = new LinkedList<String>(
                         entry.getGroupNames());
                 groupNames.add(getName());
-                packet.addItem(new JID(entry.getUser()), entry.getName(),
-                        entry.getAsk(), entry.getSubscription(), groupNames);
+                packet.addItem(JIDCache.getJID(entry.getUser()),
+                        entry.getName(), entry.getAsk(),
+                        entry.getSubscription(), groupNames);
                 // Wait up to a certain number of seconds for a reply from the
                 // server.
                 collector = connection
@@ -240,8 +242,9 @@ public class RosterGroup {
                 List<String> groupNames = new LinkedList<String>(
                         entry.getGroupNames());
                 groupNames.remove(this.getName());
-                packet.addItem(new JID(entry.getUser()), entry.getName(),
-                        entry.getAsk(), entry.getSubscription(), groupNames);
+                packet.addItem(JIDCache.getJID(entry.getUser()),
+                        entry.getName(), entry.getAsk(),
+                        entry.getSubscription(), groupNames);
                 // Wait up to a certain number of seconds for a reply from the
                 // server.
                 collector = connection
@@ -33,9 +33,9 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.util.JIDCache;
 import org.jivesoftware.smack.util.StringUtils;
 import org.xmpp.packet.IQ;
-import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
 import org.xmpp.packet.Presence;
 import org.xmpp.packet.Roster;
@@ -311,7 +311,7 @@ public class UserRoster {
         // Create and send roster entry creation packet.
         Roster rosterPacket = new Roster();
         rosterPacket.setType(IQ.Type.set);
-        rosterPacket.addItem(new JID(user), name, null, null,
+        rosterPacket.addItem(JIDCache.getJID(user), name, null, null,
                 Arrays.asList(groups));
         // Wait up to a certain number of seconds for a reply from the server.
         PacketCollector collector = connection
@@ -365,7 +365,7 @@ public class UserRoster {
         }
         Roster packet = new Roster();
         packet.setType(IQ.Type.set);
-        packet.addItem(new JID(entry.getUser()), entry.getName(),
+        packet.addItem(JIDCache.getJID(entry.getUser()), entry.getName(),
                 entry.getAsk(), Subscription.remove, entry.getGroupNames());
         PacketCollector collector = connection
                 .createPacketCollector(new PacketIDFilter(packet.getID()));
@@ -17,7 +17,9 @@
 
 package org.jivesoftware.smack.filter;
 
+import org.jivesoftware.smack.util.JIDCache;
 import org.jivesoftware.smack.util.StringUtils;
+import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
 
 /**
@@ -32,6 +34,11 @@ import org.xmpp.packet.Packet;
 public class FromMatchesFilter implements PacketFilter {
 
     private String address;
+    /**
+     * The prepared form of the address, or <tt>null</tt> if the address is
+     * not a valid JID and has to be compared as a plain string.
+     */
+    private JID preparedAddress;
     /**
      * Flag that indicates if the checking will be done against bare JID
      * addresses or full JIDs.
@@ -55,11 +62,34 @@ public class FromMatchesFilter implements PacketFilter {
         }
         this.address = address.toLowerCase();
         matchBareJID = "".equals(StringUtils.parseResource(address));
+        try {
+            preparedAddress = JIDCache.getJID(address);
+        } catch (IllegalArgumentException e) {
+            preparedAddress = null;
+        }
     }
 
     public boolean accept(Packet packet) {
-        if (packet.getFrom() == null) {
+        String from = packet.getElement().attributeValue("from");
+        if (from == null || from.length() == 0) {
             return false;
+        }
+        if (preparedAddress != null) {
+            // Compare the prepared parts, which are already normalized
+            JID sender;
+            try {
+                sender = JIDCache.getJID(from);
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            if (!preparedAddress.getDomain().equals(sender.getDomain())
+                    || !equals(preparedAddress.getNode(), sender.getNode())) {
+                return false;
+            }
+            // Resources are matched ignoring case, as full JIDs always were
+            return matchBareJID
+                    || equalsIgnoreCase(preparedAddress.getResource(),
+                            sender.getResource());
         } else if (matchBareJID) {
             // Check if the bare JID of the sender of the packet matches the
             // specified JID
@@ -68,10 +98,18 @@ public class FromMatchesFilter implements PacketFilter {
         } else {
             // Check if the full JID of the sender of the packet matches the
             // specified JID
-            return address.equals(packet.getFrom().toFullJID().toLowerCase());
+            return address.equals(packet.getFrom().toString().toLowerCase());
         }
     }
 
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean equalsIgnoreCase(String a, String b) {
+        return a == null ? b == null : a.equalsIgnoreCase(b);
+    }
+
     public String toString() {
         return "FromMatchesFilter: " + address;
     }
@@ -56,7 +56,10 @@ import org.jivesoftware.smack.util.collections.AbstractMapEntry;
  * needed.
  * 
  * @author Matt Tucker
+ * @deprecated every method locks the whole cache, use {@link ConcurrentCache}
+ *             instead.
  */
+@Deprecated
 public class Cache<K, V> implements Map<K, V> {
     private static Logger log = Logger.getLogger(Cache.class.getName());
     /**
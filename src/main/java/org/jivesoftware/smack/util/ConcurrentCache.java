@@ -0,0 +1,862 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe, size-limited Map with an optional expiration time for cache
+ * items, meant as a drop-in replacement for {@link Cache}.
+ * <p>
+ *
+ * Entries are kept in a {@link ConcurrentHashMap}, so lookups do not lock.
+ * The eviction policy is <a href="https://arxiv.org/abs/1512.00727">W-TinyLFU
+ * </a>: new entries go to a small LRU window, and when they fall out of it
+ * they only make it into the main LRU area if they have been used more often
+ * than the entry they would push out. Use counts are estimated with a
+ * count-min sketch that is halved periodically, so the cache adapts when the
+ * popular keys change. The main area is split between a probation and a
+ * protected segment, entries hit while on probation are promoted.
+ * <p>
+ *
+ * The policy state is striped over several segments by key hash, each guarded
+ * by its own lock. Writes take the lock of their segment. Reads only record
+ * the access if that lock is free, so a busy segment never makes readers wait;
+ * the policy just misses a few accesses. Caches with a {@link Weigher} keep a
+ * single segment, so that any entry up to the maximum weight fits.
+ * <p>
+ *
+ * Each entry has a weight, 1 by default or given by a {@link Weigher}, and the
+ * cache keeps the total weight under its maximum. Entries may have a lifetime
+ * of their own, set with {@link #put(Object, Object, long)}. Expired entries
+ * are dropped when they are read or reached by eviction, and by
+ * {@link #cleanUp()}. Since they may linger until then, {@link #size()} is an
+ * upper bound.
+ *
+ * @param <K>
+ *            the type of keys.
+ * @param <V>
+ *            the type of values.
+ */
+public class ConcurrentCache<K, V> extends AbstractMap<K, V> {
+
+    /**
+     * Computes the weight of cache entries. Weights are computed once, when an
+     * entry is added or replaced.
+     */
+    public interface Weigher<K, V> {
+
+        /**
+         * Returns the weight of an entry, zero or more.
+         *
+         * @param key
+         *            the key of the entry.
+         * @param value
+         *            the value of the entry.
+         * @return the weight of the entry.
+         */
+        int weigh(K key, V value);
+    }
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_WEIGHT = 32;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+    private final Segment<K, V>[] segments;
+    private final int segmentShift;
+    private final Weigher<? super K, ? super V> weigher;
+
+    private volatile long maxWeight;
+    private volatile long maxLifetime;
+
+    /**
+     * Creates a new cache holding up to a number of objects.
+     *
+     * @param maxSize
+     *            the maximum number of objects the cache will hold. -1 means
+     *            the cache has no max size.
+     * @param maxLifetime
+     *            the maximum amount of time (in ms) objects can exist in cache
+     *            before being deleted. -1 means objects never expire.
+     */
+    public ConcurrentCache(int maxSize, long maxLifetime) {
+        this(maxSize, maxLifetime, null);
+    }
+
+    /**
+     * Creates a new cache holding up to a total weight of objects.
+     *
+     * @param maxWeight
+     *            the maximum total weight of the objects the cache will hold.
+     *            -1 means the cache has no max weight.
+     * @param maxLifetime
+     *            the maximum amount of time (in ms) objects can exist in cache
+     *            before being deleted. -1 means objects never expire.
+     * @param weigher
+     *            computes the weight of entries, or <tt>null</tt> for a weight
+     *            of 1 per entry.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentCache(long maxWeight, long maxLifetime,
+            Weigher<? super K, ? super V> weigher) {
+        if (maxWeight == 0) {
+            throw new IllegalArgumentException("Max cache size cannot be 0.");
+        }
+        int segmentCount = 1;
+        // Weighted entries are only bounded by the weight of the whole cache,
+        // not a share of it, so they all go to a single segment
+        while (weigher == null && segmentCount < MAX_SEGMENTS
+                && (maxWeight < 0 || maxWeight / (segmentCount * 2)
+                        >= MIN_SEGMENT_WEIGHT)) {
+            segmentCount <<= 1;
+        }
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<K, V>(this);
+        }
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        this.data = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f,
+                segmentCount);
+        this.weigher = weigher;
+        this.maxLifetime = maxLifetime;
+        setMaxWeight(maxWeight);
+    }
+
+    @Override
+    public V get(Object key) {
+        Segment<K, V> segment = segmentFor(hash(key));
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            // Not recorded in the sketch, the put that usually follows is
+            // counted instead
+            segment.misses.incrementAndGet();
+            return null;
+        }
+        if (node.isExpired()) {
+            segment.expire(node);
+            segment.misses.incrementAndGet();
+            return null;
+        }
+        segment.recordAccess(node);
+        return node.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Node<K, V> node = data.get(key);
+        return node != null && !node.isExpired();
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, maxLifetime);
+    }
+
+    /**
+     * Associates a value with a key, with an expiration time of its own.
+     *
+     * @param key
+     *            the key.
+     * @param value
+     *            the value.
+     * @param lifetime
+     *            the amount of time (in ms) this object can exist in cache
+     *            before being deleted. -1 means it never expires.
+     * @return the previous value for the key, or <tt>null</tt>.
+     */
+    public V put(K key, V value, long lifetime) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        int hash = hash(key);
+        int weight = weigher == null ? 1 : weigher.weigh(key, value);
+        if (weight < 0) {
+            throw new IllegalArgumentException("Negative weight for " + key);
+        }
+        long expiresAt = lifetime > 0 ? System.currentTimeMillis() + lifetime
+                : 0;
+        return segmentFor(hash).put(key, hash, value, weight, expiresAt);
+    }
+
+    @Override
+    public V remove(Object key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        return segmentFor(node.hash).remove(node) ? node.value : null;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return data.isEmpty();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return data.size();
+            }
+        };
+    }
+
+    /**
+     * Drops all expired entries.
+     */
+    public void cleanUp() {
+        for (Node<K, V> node : data.values()) {
+            if (node.isExpired()) {
+                segmentFor(node.hash).expire(node);
+            }
+        }
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Changes the maximum total weight of the cache, evicting entries if the
+     * cache is now too heavy.
+     *
+     * @param maxWeight
+     *            the maximum total weight. -1 means the cache has no max
+     *            weight.
+     */
+    public void setMaxWeight(long maxWeight) {
+        if (maxWeight == 0) {
+            throw new IllegalArgumentException("Max cache size cannot be 0.");
+        }
+        this.maxWeight = maxWeight;
+        long perSegment = maxWeight < 0 ? -1 : Math.max(1, maxWeight
+                / segments.length);
+        for (Segment<K, V> segment : segments) {
+            segment.setCapacity(perSegment);
+        }
+    }
+
+    /**
+     * Returns the maximum number of objects the cache holds, as
+     * {@link Cache#getMaxCacheSize()} does. For caches with a {@link Weigher},
+     * this is the maximum total weight.
+     *
+     * @return the maximum size, -1 if the cache has no max size, or
+     *         {@link Integer#MAX_VALUE} if it is larger.
+     */
+    public int getMaxCacheSize() {
+        long max = maxWeight;
+        return max > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) max;
+    }
+
+    /**
+     * Changes the maximum number of objects the cache holds, as
+     * {@link Cache#setMaxCacheSize(int)} does, see {@link #setMaxWeight(long)}.
+     *
+     * @param maxCacheSize
+     *            the maximum size. -1 means the cache has no max size.
+     */
+    public void setMaxCacheSize(int maxCacheSize) {
+        setMaxWeight(maxCacheSize);
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * Changes the lifetime given to objects added from now on.
+     *
+     * @param maxLifetime
+     *            the maximum amount of time (in ms) objects can exist in cache
+     *            before being deleted. -1 means objects never expire.
+     */
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public long getCacheHits() {
+        long hits = 0;
+        for (Segment<K, V> segment : segments) {
+            hits += segment.hits.get();
+        }
+        return hits;
+    }
+
+    public long getCacheMisses() {
+        long misses = 0;
+        for (Segment<K, V> segment : segments) {
+            misses += segment.misses.get();
+        }
+        return misses;
+    }
+
+    /**
+     * Returns a snapshot of the cache counters.
+     *
+     * @return the cache statistics.
+     */
+    public Stats getStats() {
+        long evictions = 0;
+        long expirations = 0;
+        for (Segment<K, V> segment : segments) {
+            evictions += segment.evictions.get();
+            expirations += segment.expirations.get();
+        }
+        return new Stats(getCacheHits(), getCacheMisses(), evictions,
+                expirations);
+    }
+
+    /**
+     * Sets all cache counters back to zero.
+     */
+    public void resetStats() {
+        for (Segment<K, V> segment : segments) {
+            segment.hits.set(0);
+            segment.misses.set(0);
+            segment.evictions.set(0);
+            segment.expirations.set(0);
+        }
+    }
+
+    private Segment<K, V> segmentFor(int hash) {
+        return segments.length == 1 ? segments[0]
+                : segments[hash >>> segmentShift];
+    }
+
+    private static int hash(Object key) {
+        // Spreads the bits so both the segment (high bits) and the sketch get
+        // well distributed hashes
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A snapshot of the cache counters.
+     */
+    public static final class Stats {
+
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long expirationCount;
+
+        Stats(long hitCount, long missCount, long evictionCount,
+                long expirationCount) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.expirationCount = expirationCount;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * Returns the number of entries dropped to keep the cache within its
+         * maximum weight.
+         *
+         * @return the number of evictions.
+         */
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * Returns the number of entries dropped because they expired.
+         *
+         * @return the number of expirations.
+         */
+        public long getExpirationCount() {
+            return expirationCount;
+        }
+
+        /**
+         * Returns the ratio of lookups answered from the cache, between 0 and
+         * 1.
+         *
+         * @return the hit rate.
+         */
+        public double getHitRate() {
+            long total = hitCount + missCount;
+            return total == 0 ? 0 : (double) hitCount / total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hitCount + ", misses=" + missCount
+                    + ", evictions=" + evictionCount + ", expirations="
+                    + expirationCount;
+        }
+    }
+
+    private static final class Node<K, V> {
+
+        final K key;
+        final int hash;
+        volatile V value;
+        volatile long expiresAt;
+        int weight;
+
+        // Policy state, guarded by the segment lock
+        int queue;
+        boolean linked;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, int hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+
+        boolean isExpired() {
+            long expires = expiresAt;
+            // Only reads the clock for entries that can expire
+            return expires != 0 && expires <= System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * An intrusive doubly-linked list of nodes, least recently used first.
+     */
+    private static final class AccessQueue<K, V> {
+
+        Node<K, V> head;
+        Node<K, V> tail;
+        long weight;
+
+        void addLast(Node<K, V> node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void unlink(Node<K, V> node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node<K, V> node) {
+            if (tail != node) {
+                unlink(node);
+                addLast(node);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+            weight = 0;
+        }
+    }
+
+    private static final class Segment<K, V> {
+
+        private final ConcurrentCache<K, V> cache;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final FrequencySketch sketch = new FrequencySketch();
+
+        // Counters are kept per segment to spread the contention
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+        final AtomicLong expirations = new AtomicLong();
+
+        private final AccessQueue<K, V> window = new AccessQueue<K, V>();
+        private final AccessQueue<K, V> probation = new AccessQueue<K, V>();
+        private final AccessQueue<K, V> protectedQueue =
+                new AccessQueue<K, V>();
+
+        private long capacity;
+        private long maxWindow;
+        private long maxProtected;
+
+        Segment(ConcurrentCache<K, V> cache) {
+            this.cache = cache;
+        }
+
+        void setCapacity(long capacity) {
+            lock.lock();
+            try {
+                this.capacity = capacity;
+                if (capacity < 0) {
+                    maxWindow = Long.MAX_VALUE;
+                    maxProtected = 0;
+                } else {
+                    // 1% window and 80% of the main area protected, as in
+                    // the W-TinyLFU paper
+                    maxWindow = Math.max(1, capacity / 100);
+                    maxProtected = (capacity - maxWindow) * 8 / 10;
+                    sketch.ensureCapacity(capacity);
+                }
+                evict();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        V put(K key, int hash, V value, int weight, long expiresAt) {
+            lock.lock();
+            try {
+                if (capacity >= 0) {
+                    sketch.increment(hash);
+                }
+                Node<K, V> node = cache.data.get(key);
+                if (node != null && node.linked) {
+                    V old = node.value;
+                    queueOf(node).unlink(node);
+                    node.weight = weight;
+                    node.value = value;
+                    node.expiresAt = expiresAt;
+                    queueOf(node).addLast(node);
+                    evict();
+                    return old;
+                }
+                if (capacity >= 0 && weight > capacity) {
+                    // Would evict everything else, keep it out instead
+                    return null;
+                }
+                node = new Node<K, V>(key, hash);
+                node.value = value;
+                node.weight = weight;
+                node.expiresAt = expiresAt;
+                node.queue = WINDOW;
+                node.linked = true;
+                window.addLast(node);
+                cache.data.put(key, node);
+                evict();
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void recordAccess(Node<K, V> node) {
+            hits.incrementAndGet();
+            if (capacity < 0 || !lock.tryLock()) {
+                return;
+            }
+            try {
+                sketch.increment(node.hash);
+                if (!node.linked) {
+                    return;
+                }
+                switch (node.queue) {
+                case WINDOW:
+                    window.moveToLast(node);
+                    break;
+                case PROBATION:
+                    probation.unlink(node);
+                    node.queue = PROTECTED;
+                    protectedQueue.addLast(node);
+                    demoteProtected();
+                    break;
+                default:
+                    protectedQueue.moveToLast(node);
+                    break;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean remove(Node<K, V> node) {
+            lock.lock();
+            try {
+                if (!node.linked) {
+                    return false;
+                }
+                unlink(node);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void expire(Node<K, V> node) {
+            lock.lock();
+            try {
+                // A put may have given the entry a new value and lifetime
+                // since it was found expired
+                if (!node.linked || !node.isExpired()) {
+                    return;
+                }
+                unlink(node);
+                expirations.incrementAndGet();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                clear(window);
+                clear(probation);
+                clear(protectedQueue);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void clear(AccessQueue<K, V> queue) {
+            for (Node<K, V> node = queue.head; node != null; node = node.next) {
+                node.linked = false;
+                cache.data.remove(node.key, node);
+            }
+            queue.clear();
+        }
+
+        private AccessQueue<K, V> queueOf(Node<K, V> node) {
+            switch (node.queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedQueue;
+            }
+        }
+
+        private void unlink(Node<K, V> node) {
+            queueOf(node).unlink(node);
+            node.linked = false;
+            cache.data.remove(node.key, node);
+        }
+
+        private void evictNode(Node<K, V> node) {
+            unlink(node);
+            evictions.incrementAndGet();
+        }
+
+        private void demoteProtected() {
+            while (protectedQueue.weight > maxProtected
+                    && protectedQueue.head != null) {
+                Node<K, V> node = protectedQueue.head;
+                protectedQueue.unlink(node);
+                node.queue = PROBATION;
+                probation.addLast(node);
+            }
+        }
+
+        private void evict() {
+            if (capacity < 0) {
+                return;
+            }
+            expireHeads(window);
+            expireHeads(probation);
+            expireHeads(protectedQueue);
+            demoteProtected();
+
+            // Entries falling out of the window compete with the probation
+            // victim for a place in the main area
+            long maxMain = capacity - maxWindow;
+            while (window.weight > maxWindow && window.head != null) {
+                Node<K, V> candidate = window.head;
+                window.unlink(candidate);
+                candidate.queue = PROBATION;
+                probation.addLast(candidate);
+                while (probation.weight + protectedQueue.weight > maxMain
+                        && candidate.linked) {
+                    Node<K, V> victim = probation.head;
+                    if (victim == candidate) {
+                        victim = protectedQueue.head != null
+                                ? protectedQueue.head : candidate;
+                    }
+                    if (victim == candidate
+                            || sketch.frequency(candidate.hash) <= sketch
+                                    .frequency(victim.hash)) {
+                        evictNode(candidate);
+                    } else {
+                        evictNode(victim);
+                    }
+                }
+            }
+            // Only happens when the capacity shrinks
+            while (window.weight + probation.weight
+                    + protectedQueue.weight > capacity) {
+                Node<K, V> victim = probation.head != null ? probation.head
+                        : protectedQueue.head != null ? protectedQueue.head
+                                : window.head;
+                evictNode(victim);
+            }
+        }
+
+        private void expireHeads(AccessQueue<K, V> queue) {
+            while (queue.head != null && queue.head.isExpired()) {
+                unlink(queue.head);
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters estimating how often each key was
+     * used recently. Counters are halved once the number of increments
+     * reaches ten times the capacity, so old popularity fades away.
+     */
+    private static final class FrequencySketch {
+
+        private static final int[] SEEDS = { 0x97CB3127, 0xB3CA6F43,
+                0x5B1E3F19, 0xC2B2AE35 };
+        private static final int MAX_COUNT = 15;
+
+        private byte[] table = new byte[16];
+        private int mask = 15;
+        private long sampleSize = 160;
+        private long additions;
+
+        void ensureCapacity(long capacity) {
+            // 16 counters per entry keep collisions rare enough
+            int width = 16;
+            while (width < capacity * 16 && width < (1 << 24)) {
+                width <<= 1;
+            }
+            if (width != table.length) {
+                table = new byte[width];
+                mask = width - 1;
+                additions = 0;
+            }
+            sampleSize = 10L * Math.max(capacity, 16);
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, table[index(hash, i)]);
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = index(hash, i);
+                if (table[index] < MAX_COUNT) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] >>= 1;
+                }
+                additions >>= 1;
+            }
+        }
+
+        private int index(int hash, int i) {
+            int h = hash * SEEDS[i];
+            return (h ^ (h >>> 17)) & mask;
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final Iterator<Node<K, V>> nodes = data.values().iterator();
+        private Node<K, V> next;
+        private Node<K, V> last;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (nodes.hasNext()) {
+                Node<K, V> node = nodes.next();
+                if (!node.isExpired()) {
+                    next = node;
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            advance();
+            return new AbstractMap.SimpleImmutableEntry<K, V>(last.key,
+                    last.value);
+        }
+
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            segmentFor(last.hash).remove(last);
+            last = null;
+        }
+    }
+}
@@ -40,7 +40,7 @@ public class DNSUtil {
      * Create a cache to hold the 100 most recently accessed DNS lookups for a
      * period of 10 minutes.
      */
-    private static Map<String, List<HostAddress>> cache = new Cache<String, List<HostAddress>>(
+    private static Map<String, List<HostAddress>> cache = new ConcurrentCache<String, List<HostAddress>>(
             100, 1000 * 60 * 10);
 
     private static DNSResolver dnsResolver = null;
@@ -126,14 +126,12 @@ public class DNSUtil {
         // lookups
         String key = keyPrefix + domain;
         // Return item from cache if it exists.
-        if (cache.containsKey(key)) {
-            List<HostAddress> addresses = cache.get(key);
-            if (addresses != null) {
-                return addresses;
-            }
+        List<HostAddress> addresses = cache.get(key);
+        if (addresses != null) {
+            return addresses;
         }
 
-        List<HostAddress> addresses = new ArrayList<HostAddress>();
+        addresses = new ArrayList<HostAddress>();
 
         // Step one: Do SRV lookups
         String srvDomain;
@@ -0,0 +1,193 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+
+/**
+ * A shared cache of prepared JIDs, keyed by the address string they were
+ * created from. Creating a {@link JID} from a string runs the stringprep
+ * profiles on each part of the address, which is expensive compared to a map
+ * lookup, while the set of addresses a connection talks to is usually small.
+ * Since JIDs are immutable, the cached instances can be handed out to any
+ * number of threads.
+ * <p>
+ * The cache is a {@link ConcurrentCache} bounded to {@link #getMaxSize()}
+ * entries, so addresses seen only once do not push out the frequent ones. Hit
+ * and miss counters are kept to help sizing it.
+ */
+public final class JIDCache {
+
+    /**
+     * The default maximum number of cached JIDs.
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private static final ConcurrentCache<String, JID> cache = new ConcurrentCache<String, JID>(
+            DEFAULT_MAX_SIZE, -1);
+
+    private static volatile boolean enabled = true;
+
+    private JIDCache() {
+        // Not instantiable.
+    }
+
+    /**
+     * Returns the prepared JID for the given address, which is equal to
+     * <tt>new JID(jid)</tt>.
+     *
+     * @param jid
+     *            the address, may be <tt>null</tt>.
+     * @return the prepared JID or <tt>null</tt> if the address was
+     *         <tt>null</tt>.
+     * @throws IllegalArgumentException
+     *             if the address is not a valid JID.
+     */
+    public static JID getJID(String jid) {
+        if (jid == null) {
+            return null;
+        }
+        if (!enabled) {
+            return new JID(jid);
+        }
+        JID prepared = cache.get(jid);
+        if (prepared == null) {
+            prepared = new JID(jid);
+            cache.put(jid, prepared);
+        }
+        return prepared;
+    }
+
+    /**
+     * Replaces the sender and recipient of a freshly parsed packet with their
+     * prepared JIDs, so that later calls to {@link Packet#getFrom()} and
+     * {@link Packet#getTo()} return shared, normalized instances. As with the
+     * packet constructors that validate addresses, the <tt>from</tt> and
+     * <tt>to</tt> attributes are rewritten in their prepared form. Addresses
+     * that are not valid JIDs are left untouched.
+     * <p>
+     * Meant for packets created without validating their addresses, on the
+     * thread that processes them rather than on the one reading the stream.
+     *
+     * @param packet
+     *            the packet to prepare.
+     */
+    public static void prime(Packet packet) {
+        String from = packet.getElement().attributeValue("from");
+        if (from != null && from.length() > 0) {
+            try {
+                packet.setFrom(getJID(from));
+            } catch (IllegalArgumentException e) {
+                // Leave the address as it was received
+            }
+        }
+        String to = packet.getElement().attributeValue("to");
+        if (to != null && to.length() > 0) {
+            try {
+                packet.setTo(getJID(to));
+            } catch (IllegalArgumentException e) {
+                // Leave the address as it was received
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of cached JIDs.
+     *
+     * @return the maximum size of the cache.
+     */
+    public static int getMaxSize() {
+        return enabled ? (int) cache.getMaxWeight() : 0;
+    }
+
+    /**
+     * Sets the maximum number of cached JIDs. A value of zero or less disables
+     * caching.
+     *
+     * @param maxSize
+     *            the maximum size of the cache.
+     */
+    public static void setMaxSize(int maxSize) {
+        enabled = maxSize > 0;
+        if (enabled) {
+            cache.setMaxWeight(maxSize);
+        } else {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Returns the number of cached JIDs.
+     *
+     * @return the size of the cache.
+     */
+    public static int size() {
+        return cache.size();
+    }
+
+    /**
+     * Removes all cached JIDs and resets the counters.
+     */
+    public static void clear() {
+        cache.clear();
+        cache.resetStats();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return the number of cache hits.
+     */
+    public static long getHits() {
+        return cache.getCacheHits();
+    }
+
+    /**
+     * Returns the number of lookups that had to prepare a new JID.
+     *
+     * @return the number of cache misses.
+     */
+    public static long getMisses() {
+        return cache.getCacheMisses();
+    }
+
+    /**
+     * Returns the number of JIDs dropped to keep the cache within its bounds.
+     *
+     * @return the number of evictions.
+     */
+    public static long getEvictions() {
+        return cache.getStats().getEvictionCount();
+    }
+
+    /**
+     * Returns the counters of the underlying cache.
+     *
+     * @return the cache statistics.
+     */
+    public static ConcurrentCache.Stats getStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Returns the ratio of lookups answered from the cache, between 0 and 1.
+     *
+     * @return the cache hit rate.
+     */
+    public static double getHitRate() {
+        return cache.getStats().getHitRate();
+    }
+}
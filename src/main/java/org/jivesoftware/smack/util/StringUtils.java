@@ -17,6 +17,7 @@
 
 package org.jivesoftware.smack.util;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -53,7 +54,7 @@ public class StringUtils {
      * {@link #formatXEP0082Date(Date)}.
      * 
      * @deprecated This public version will be removed in favor of using the
-     *             methods defined within this class.
+     *             methods defined within this class or {@link XmppDateTime}.
      */
     public static final DateFormat XEP_0082_UTC_FORMAT = new SimpleDateFormat(
             "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
@@ -139,11 +140,12 @@ public class StringUtils {
                 timeNoMillisNoZoneFormatter));
     }
 
-    private static final char[] QUOTE_ENCODE = "&quot;".toCharArray();
-    private static final char[] APOS_ENCODE = "&apos;".toCharArray();
-    private static final char[] AMP_ENCODE = "&amp;".toCharArray();
-    private static final char[] LT_ENCODE = "&lt;".toCharArray();
-    private static final char[] GT_ENCODE = "&gt;".toCharArray();
+    private static final String QUOTE_ENCODE = "&quot;";
+    private static final String APOS_ENCODE = "&apos;";
+    private static final String AMP_ENCODE = "&amp;";
+    private static final String LT_ENCODE = "&lt;";
+    private static final String GT_ENCODE = "&gt;";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
     /**
      * Parses the given date string in the <a
@@ -170,7 +172,9 @@ public class StringUtils {
      * href="http://xmpp.org/extensions/xep-0091.html">XEP-0091 - Legacy Delayed
      * Delivery</a> format.
      * <p>
-     * This method uses internal date formatters and is thus threadsafe.
+     * This method is threadsafe. Well-formed XEP-0082 Date and DateTime
+     * strings are handled by {@link XmppDateTime} without locking, the other
+     * profiles go through internal date formatters.
      * 
      * @param dateString
      *            the date string to parse
@@ -179,6 +183,13 @@ public class StringUtils {
      *             if the specified string cannot be parsed
      */
     public static Date parseDate(String dateString) throws ParseException {
+        if (XmppDateTime.isDateOrDateTime(dateString)) {
+            try {
+                return XmppDateTime.parse(dateString);
+            } catch (ParseException e) {
+                // Fall back to the more lenient formatters below
+            }
+        }
         Matcher matcher = xep0091Pattern.matcher(dateString);
 
         /*
@@ -305,15 +316,14 @@ public class StringUtils {
 
     /**
      * Formats a Date into a XEP-0082 - XMPP Date and Time Profiles string.
+     * The date is written in UTC, e.g. <tt>2014-03-04T12:30:05.123Z</tt>.
      * 
      * @param date
      *            the time value to be formatted into a time string
      * @return the formatted time string in XEP-0082 format
      */
     public static String formatXEP0082Date(Date date) {
-        synchronized (dateTimeFormatter) {
-            return dateTimeFormatter.format(date);
-        }
+        return XmppDateTime.format(date);
     }
 
     public static String formatDate(Date toFormat, DateFormatType type) {
@@ -686,41 +696,93 @@ public class StringUtils {
     }
 
     /**
-     * Encodes a string for use in an XML attribute by escaping characters with
-     * a special meaning. In particular, white spaces are encoded as character
-     * references, such that they are not replaced by ' ' on parsing.
+     * Returns true if the character has to be encoded in an XML attribute
+     * value. White spaces and other control characters are encoded as
+     * character references, such that they are not replaced by ' ' on parsing.
      */
-    private static String xmlAttribEncodeBinary(String value) {
-        StringBuilder s = new StringBuilder();
-        char buf[] = value.toCharArray();
-        for (char c : buf) {
+    private static boolean isAttribEncoded(char c) {
+        switch (c) {
+        case '<':
+        case '>':
+        case '&':
+        case '"':
+        case '\'':
+            return true;
+        default:
+            // includes \t, \n, \r
+            return c <= 0x1f || (0x7f <= c && c <= 0x9f);
+        }
+    }
+
+    /**
+     * Appends the attribute encoding of <tt>value</tt>, starting at
+     * <tt>from</tt>, to the given output.
+     */
+    private static void xmlAttribEncodeBinary(String value, int from,
+            Appendable out) throws IOException {
+        int last = from;
+        int len = value.length();
+        for (int i = from; i < len; i++) {
+            char c = value.charAt(i);
+            if (!isAttribEncoded(c)) {
+                continue;
+            }
+            if (i > last) {
+                out.append(value, last, i);
+            }
+            last = i + 1;
             switch (c) {
             case '<':
-                s.append("&lt;");
+                out.append("&lt;");
                 break;
             case '>':
-                s.append("&gt;");
+                out.append("&gt;");
                 break;
             case '&':
-                s.append("&amp;");
+                out.append("&amp;");
                 break;
             case '"':
-                s.append("&quot;");
+                out.append("&quot;");
                 break;
             case '\'':
-                s.append("&apos;");
+                out.append("&apos;");
                 break;
             default:
-                if (c <= 0x1f || (0x7f <= c && c <= 0x9f)) { // includes \t, \n,
-                                                             // \r
-                    s.append("&#x");
-                    s.append(String.format("%X", (int) c));
-                    s.append(';');
-                } else {
-                    s.append(c);
+                out.append("&#x");
+                if (c >= 0x10) {
+                    out.append(HEX_DIGITS[c >> 4]);
                 }
+                out.append(HEX_DIGITS[c & 0xf]);
+                out.append(';');
             }
         }
+        if (len > last) {
+            out.append(value, last, len);
+        }
+    }
+
+    /**
+     * Encodes a string for use in an XML attribute by escaping characters with
+     * a special meaning. In particular, white spaces are encoded as character
+     * references, such that they are not replaced by ' ' on parsing. The value
+     * itself is returned if nothing needs to be encoded.
+     */
+    private static String xmlAttribEncodeBinary(String value) {
+        int len = value.length();
+        int first = 0;
+        while (first < len && !isAttribEncoded(value.charAt(first))) {
+            first++;
+        }
+        if (first == len) {
+            return value;
+        }
+        StringBuilder s = new StringBuilder(len + 16);
+        s.append(value, 0, first);
+        try {
+            xmlAttribEncodeBinary(value, first, s);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
         return s.toString();
     }
 
@@ -735,15 +797,98 @@ public class StringUtils {
      *            value of the XML attribute
      */
     public static String xmlAttrib(String name, String value) {
-        return name + "=\"" + xmlAttribEncodeBinary(value) + "\"";
+        String encoded = xmlAttribEncodeBinary(value);
+        return new StringBuilder(name.length() + encoded.length() + 3)
+                .append(name).append("=\"").append(encoded).append('"')
+                .toString();
+    }
+
+    /**
+     * Appends a XML attribute to the given output. The value parameter is
+     * escaped as necessary, see {@link #xmlAttrib(String, String)}. No
+     * intermediate strings are created.
+     * 
+     * @param out
+     *            the output to append to
+     * @param name
+     *            name of the XML attribute
+     * @param value
+     *            value of the XML attribute
+     * @return the given output
+     * @throws IOException
+     *             if the output could not be appended to
+     */
+    public static Appendable xmlAttrib(Appendable out, String name,
+            String value) throws IOException {
+        out.append(name).append("=\"");
+        xmlAttribEncodeBinary(value, 0, out);
+        return out.append('"');
+    }
+
+    /**
+     * Appends a XML attribute to the given builder, see
+     * {@link #xmlAttrib(Appendable, String, String)}.
+     * 
+     * @param out
+     *            the builder to append to
+     * @param name
+     *            name of the XML attribute
+     * @param value
+     *            value of the XML attribute
+     * @return the given builder
+     */
+    public static StringBuilder xmlAttrib(StringBuilder out, String name,
+            String value) {
+        try {
+            xmlAttrib((Appendable) out, name, value);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        return out;
+    }
+
+    /**
+     * Returns the index of the first character of the string that
+     * {@link #escapeForXML(String)} would replace, or -1 if there is none.
+     */
+    private static int indexOfXMLEscape(String string, int from) {
+        int len = string.length();
+        for (int i = from; i < len; i++) {
+            char ch = string.charAt(i);
+            if (ch > '>') {
+                continue;
+            }
+            if (ch == '<' || ch == '>' || ch == '"' || ch == '\'') {
+                return i;
+            }
+            if (ch == '&' && !isCharacterReference(string, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the string holds a reference of the form &#235;
+     * (unicode value) at the given index.
+     */
+    private static boolean isCharacterReference(String string, int i) {
+        return string.length() > i + 5 && string.charAt(i + 1) == '#'
+                && Character.isDigit(string.charAt(i + 2))
+                && Character.isDigit(string.charAt(i + 3))
+                && Character.isDigit(string.charAt(i + 4))
+                && string.charAt(i + 5) == ';';
     }
 
     /**
      * Escapes all necessary characters in the String so that it can be used in
-     * an XML doc.
+     * an XML doc. The string itself is returned if nothing needs escaping.
      * 
      * <strong>Warning:</strong> This method does not escape unicode character
-     * references (i.e. references of the from &#235;)
+     * references (i.e. references of the from &#235;), as long as they have
+     * exactly three decimal digits. They are copied once, with the text around
+     * them; versions before this one copied the text before such a reference
+     * twice.
      * 
      * @param string
      *            the string to escape.
@@ -753,63 +898,71 @@ public class StringUtils {
         if (string == null) {
             return null;
         }
-        char ch;
-        int i = 0;
-        int last = 0;
-        char[] input = string.toCharArray();
-        int len = input.length;
-        StringBuilder out = new StringBuilder((int) (len * 1.3));
-        for (; i < len; i++) {
-            ch = input[i];
-            if (ch > '>') {
-            } else if (ch == '<') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                last = i + 1;
+        int first = indexOfXMLEscape(string, 0);
+        if (first < 0) {
+            return string;
+        }
+        StringBuilder out = new StringBuilder(string.length() + 16);
+        out.append(string, 0, first);
+        try {
+            escapeForXML(string, first, out);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        return out.toString();
+    }
+
+    /**
+     * Escapes all necessary characters in the String, see
+     * {@link #escapeForXML(String)}, and appends the result to the given
+     * output without creating intermediate strings.
+     * 
+     * @param string
+     *            the string to escape.
+     * @param out
+     *            the output to append to.
+     * @return the given output.
+     * @throws IOException
+     *             if the output could not be appended to
+     */
+    public static Appendable escapeForXML(String string, Appendable out)
+            throws IOException {
+        if (string != null) {
+            escapeForXML(string, 0, out);
+        }
+        return out;
+    }
+
+    private static void escapeForXML(String string, int from, Appendable out)
+            throws IOException {
+        int last = from;
+        int len = string.length();
+        for (int i = indexOfXMLEscape(string, from); i >= 0; i = indexOfXMLEscape(
+                string, last)) {
+            if (i > last) {
+                out.append(string, last, i);
+            }
+            last = i + 1;
+            switch (string.charAt(i)) {
+            case '<':
                 out.append(LT_ENCODE);
-            } else if (ch == '>') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                last = i + 1;
+                break;
+            case '>':
                 out.append(GT_ENCODE);
-            }
-
-            else if (ch == '&') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                // Do nothing if the string is of the form &#235; (unicode
-                // value)
-                if (!(len > i + 5 && input[i + 1] == '#'
-                        && Character.isDigit(input[i + 2])
-                        && Character.isDigit(input[i + 3])
-                        && Character.isDigit(input[i + 4]) && input[i + 5] == ';')) {
-                    last = i + 1;
-                    out.append(AMP_ENCODE);
-                }
-            } else if (ch == '"') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                last = i + 1;
+                break;
+            case '&':
+                out.append(AMP_ENCODE);
+                break;
+            case '"':
                 out.append(QUOTE_ENCODE);
-            } else if (ch == '\'') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                last = i + 1;
+                break;
+            default:
                 out.append(APOS_ENCODE);
             }
         }
-        if (last == 0) {
-            return string;
-        }
-        if (i > last) {
-            out.append(input, last, i - last);
+        if (len > last) {
+            out.append(string, last, len);
         }
-        return out.toString();
     }
 
     /**
@@ -0,0 +1,266 @@
+/**
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * Parser and formatter for the Date and DateTime profiles of <a
+ * href="http://xmpp.org/extensions/xep-0082.html">XEP-0082 - XMPP Date and
+ * Time Profiles</a>.
+ * <p>
+ * Unlike {@link java.text.SimpleDateFormat}, this class keeps no state, so it
+ * is safe to use from any number of threads without locking. Parsing does not
+ * allocate besides the returned {@link Date}, and {@link #parseMillis(String)}
+ * does not allocate at all.
+ * <p>
+ * Accepted input is <tt>CCYY-MM-DD</tt> or
+ * <tt>CCYY-MM-DDThh:mm:ss[.sss][TZD]</tt>, where the fraction of a second may
+ * have any number of digits (only milliseconds are kept) and the time zone
+ * designator is either <tt>Z</tt> or <tt>(+|-)hh:mm</tt>. A missing time
+ * zone is read as UTC.
+ */
+public final class XmppDateTime {
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+    private XmppDateTime() {
+        // Not instantiable.
+    }
+
+    /**
+     * Returns true if the string has the shape of a XEP-0082 Date or DateTime
+     * profile, i.e. if it is worth handing to {@link #parse(String)}.
+     *
+     * @param string
+     *            the string to check.
+     * @return true if the string starts like a XEP-0082 date.
+     */
+    public static boolean isDateOrDateTime(String string) {
+        int len = string.length();
+        if (len < 10 || string.charAt(4) != '-' || string.charAt(7) != '-') {
+            return false;
+        }
+        return len == 10 || string.charAt(10) == 'T';
+    }
+
+    /**
+     * Parses a XEP-0082 Date or DateTime string.
+     *
+     * @param string
+     *            the string to parse.
+     * @return the parsed date.
+     * @throws ParseException
+     *             if the string is not a valid XEP-0082 date.
+     */
+    public static Date parse(String string) throws ParseException {
+        return new Date(parseMillis(string));
+    }
+
+    /**
+     * Parses a XEP-0082 Date or DateTime string.
+     *
+     * @param string
+     *            the string to parse.
+     * @return the parsed date, in milliseconds since the epoch.
+     * @throws ParseException
+     *             if the string is not a valid XEP-0082 date.
+     */
+    public static long parseMillis(String string) throws ParseException {
+        int len = string.length();
+        if (!isDateOrDateTime(string)) {
+            throw new ParseException("Not a XEP-0082 date: " + string, 0);
+        }
+        int year = digits(string, 0, 4);
+        int month = digits(string, 5, 2);
+        int day = digits(string, 8, 2);
+        if (month < 1 || month > 12 || day < 1
+                || day > daysInMonth(year, month)) {
+            throw new ParseException("Invalid date: " + string, 5);
+        }
+        long millis = daysFromCivil(year, month, day) * MILLIS_PER_DAY;
+        if (len == 10) {
+            return millis;
+        }
+
+        if (len < 19 || string.charAt(13) != ':' || string.charAt(16) != ':') {
+            throw new ParseException("Invalid time: " + string, 11);
+        }
+        int hour = digits(string, 11, 2);
+        int minute = digits(string, 14, 2);
+        int second = digits(string, 17, 2);
+        // 60 allows for leap seconds, which roll over into the next minute
+        if (hour > 23 || minute > 59 || second > 60) {
+            throw new ParseException("Invalid time: " + string, 11);
+        }
+        millis += ((hour * 60L + minute) * 60L + second) * 1000L;
+
+        int pos = 19;
+        if (pos < len && string.charAt(pos) == '.') {
+            int start = ++pos;
+            int fraction = 0;
+            while (pos < len && isDigit(string.charAt(pos))) {
+                if (pos - start < 3) {
+                    fraction = fraction * 10 + (string.charAt(pos) - '0');
+                }
+                pos++;
+            }
+            if (pos == start) {
+                throw new ParseException("Invalid fraction: " + string, pos);
+            }
+            for (int i = pos - start; i < 3; i++) {
+                fraction *= 10;
+            }
+            millis += fraction;
+        }
+
+        if (pos == len) {
+            return millis;
+        }
+        char sign = string.charAt(pos);
+        if (sign == 'Z' && pos + 1 == len) {
+            return millis;
+        }
+        if ((sign != '+' && sign != '-') || len != pos + 6
+                || string.charAt(pos + 3) != ':') {
+            throw new ParseException("Invalid time zone: " + string, pos);
+        }
+        int offsetHours = digits(string, pos + 1, 2);
+        int offsetMinutes = digits(string, pos + 4, 2);
+        if (offsetHours > 23 || offsetMinutes > 59) {
+            throw new ParseException("Invalid time zone: " + string, pos);
+        }
+        long offset = (offsetHours * 60L + offsetMinutes) * MILLIS_PER_MINUTE;
+        return sign == '+' ? millis - offset : millis + offset;
+    }
+
+    /**
+     * Formats a date using the XEP-0082 DateTime profile in UTC, e.g.
+     * <tt>2014-03-04T12:30:05.123Z</tt>.
+     *
+     * @param date
+     *            the date to format.
+     * @return the formatted date.
+     */
+    public static String format(Date date) {
+        return format(date.getTime());
+    }
+
+    /**
+     * Formats a date using the XEP-0082 DateTime profile in UTC, e.g.
+     * <tt>2014-03-04T12:30:05.123Z</tt>.
+     *
+     * @param millis
+     *            the date to format, in milliseconds since the epoch.
+     * @return the formatted date.
+     */
+    public static String format(long millis) {
+        long days = floorDiv(millis, MILLIS_PER_DAY);
+        int millisOfDay = (int) (millis - days * MILLIS_PER_DAY);
+
+        // Civil date from days since the epoch, see daysFromCivil
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] buf = new char[24];
+        put(buf, 0, (int) year, 4);
+        buf[4] = '-';
+        put(buf, 5, month, 2);
+        buf[7] = '-';
+        put(buf, 8, day, 2);
+        buf[10] = 'T';
+        put(buf, 11, millisOfDay / 3600000, 2);
+        buf[13] = ':';
+        put(buf, 14, millisOfDay / 60000 % 60, 2);
+        buf[16] = ':';
+        put(buf, 17, millisOfDay / 1000 % 60, 2);
+        buf[19] = '.';
+        put(buf, 20, millisOfDay % 1000, 3);
+        buf[23] = 'Z';
+        return new String(buf);
+    }
+
+    /**
+     * Number of days between 1970-01-01 and the given proleptic Gregorian
+     * date (H. Hinnant, "chrono-Compatible Low-Level Date Algorithms").
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+                + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+                + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+        case 2:
+            boolean leap = (year % 4 == 0 && year % 100 != 0)
+                    || year % 400 == 0;
+            return leap ? 29 : 28;
+        case 4:
+        case 6:
+        case 9:
+        case 11:
+            return 30;
+        default:
+            return 31;
+        }
+    }
+
+    private static int digits(String string, int start, int count)
+            throws ParseException {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = string.charAt(i);
+            if (!isDigit(c)) {
+                throw new ParseException("Expected a digit: " + string, i);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static void put(char[] buf, int start, int value, int width) {
+        for (int i = start + width - 1; i >= start; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            q--;
+        }
+        return q;
+    }
+}
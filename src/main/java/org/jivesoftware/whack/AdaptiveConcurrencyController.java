@@ -0,0 +1,365 @@
+package org.jivesoftware.whack;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.jivesoftware.whack.util.TaskEngine;
+
+/**
+ * Adjusts the number of threads lanes of a {@link SharedWorkerPool} use at a
+ * time to the load, instead of a fixed number that is too high for handlers
+ * bound by the CPU and too low for handlers waiting on I/O.
+ * <p>
+ *
+ * Every interval, the time the packets of each lane took to process and the
+ * time they waited in the queue are measured. The limit of the lane follows
+ * the gradient between the lowest processing time seen lately and the
+ * current one: while more threads do not make processing slower, a lane
+ * whose packets are queueing gets more of them, and once they do, as when
+ * handlers compete for the CPU or a backend, the limit goes down. The
+ * lowest processing time is measured again from time to time, so that the
+ * limits follow the workload as it changes. Threads of the pool that are no
+ * longer needed time out on their own.
+ * <p>
+ *
+ * The number of threads of a pool handed to
+ * {@link #control(SharedWorkerPool, int, int)} follows the limits of its
+ * lanes within the given bounds, so that lanes of handlers waiting on I/O get
+ * more threads than the pool started with, and threads no longer needed go
+ * away. The limits of lanes of other pools never exceed the threads
+ * available to them (see {@link SharedWorkerPool.Lane#getAvailableThreads()}).
+ * The controller only sets how many threads a lane uses: how many packets it
+ * admits is still bounded by the size of its queue, past which the reader
+ * processes packets itself.
+ */
+public class AdaptiveConcurrencyController {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(AdaptiveConcurrencyController.class);
+
+    /**
+     * The default interval between adjustments, in ms.
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    /**
+     * Number of intervals after which the lowest processing time is measured
+     * again.
+     */
+    private static final int BASELINE_INTERVALS = 60;
+    /**
+     * Weight of a new limit against the current one.
+     */
+    private static final double SMOOTHING = 0.2;
+    /**
+     * The most a single adjustment may lower a limit by, as a fraction.
+     */
+    private static final double MIN_GRADIENT = 0.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final ConcurrentMap<SharedWorkerPool.Lane, LaneState> lanes = new ConcurrentHashMap<SharedWorkerPool.Lane, LaneState>();
+    private final ConcurrentMap<SharedWorkerPool, PoolBounds> pools = new ConcurrentHashMap<SharedWorkerPool, PoolBounds>();
+    private TimerTask adjustTask;
+
+    /**
+     * Creates a controller keeping the limits of its lanes within the given
+     * bounds.
+     *
+     * @param minLimit
+     *            the lowest limit of a lane.
+     * @param maxLimit
+     *            the highest limit of a lane, lowered to the number of
+     *            threads the pool of the lane can make available to it.
+     */
+    public AdaptiveConcurrencyController(int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits " + minLimit
+                    + ", " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Starts adjusting the limits every {@link #DEFAULT_INTERVAL} ms.
+     */
+    public void start() {
+        start(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Starts adjusting the limits at the given interval.
+     *
+     * @param interval
+     *            the interval between adjustments, in ms.
+     */
+    public synchronized void start(long interval) {
+        if (adjustTask != null) {
+            return;
+        }
+        adjustTask = new TimerTask() {
+            @Override
+            public void run() {
+                adjust();
+            }
+        };
+        TaskEngine.getInstance().scheduleAtFixedRate(adjustTask, interval,
+                interval);
+    }
+
+    /**
+     * Stops adjusting the limits. The lanes keep their current limits.
+     */
+    public synchronized void stop() {
+        if (adjustTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(adjustTask);
+            adjustTask = null;
+        }
+    }
+
+    /**
+     * Starts adjusting the limit of the given lane, from its current
+     * maximum concurrency. Lanes are released once shut down.
+     *
+     * @param lane
+     *            the lane.
+     */
+    public void control(SharedWorkerPool.Lane lane) {
+        lanes.putIfAbsent(lane, new LaneState(lane));
+    }
+
+    /**
+     * Stops adjusting the limit of the given lane.
+     *
+     * @param lane
+     *            the lane.
+     */
+    public void release(SharedWorkerPool.Lane lane) {
+        lanes.remove(lane);
+    }
+
+    /**
+     * Starts resizing the given pool to the threads the limits of its lanes
+     * need, within the given bounds. Pools are released once shut down.
+     *
+     * @param pool
+     *            the pool.
+     * @param minThreads
+     *            the fewest threads the pool keeps.
+     * @param maxThreads
+     *            the most threads the pool grows to.
+     */
+    public void control(SharedWorkerPool pool, int minThreads, int maxThreads) {
+        if (minThreads <= 0 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("Invalid bounds " + minThreads
+                    + ", " + maxThreads);
+        }
+        pools.put(pool, new PoolBounds(minThreads, maxThreads));
+    }
+
+    /**
+     * Stops resizing the given pool, which keeps its current size.
+     *
+     * @param pool
+     *            the pool.
+     */
+    public void release(SharedWorkerPool pool) {
+        pools.remove(pool);
+    }
+
+    /**
+     * Returns the lowest limit of a lane.
+     *
+     * @return the lowest limit.
+     */
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * Returns the highest limit of a lane.
+     *
+     * @return the highest limit.
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Returns the current limit of the given lane.
+     *
+     * @param lane
+     *            the lane.
+     * @return the maximum number of threads the lane uses at a time.
+     */
+    public int getLimit(SharedWorkerPool.Lane lane) {
+        return lane.getMaxConcurrency();
+    }
+
+    /**
+     * Returns the average time the packets of the given lane took to process
+     * during the last interval they were any.
+     *
+     * @param lane
+     *            the lane.
+     * @return the latency in ms, or zero if not measured yet.
+     */
+    public double getLatency(SharedWorkerPool.Lane lane) {
+        LaneState state = lanes.get(lane);
+        return state == null ? 0 : state.latency / 1000000;
+    }
+
+    /**
+     * Returns the average time the packets of the given lane waited in its
+     * queue during the last interval they were any.
+     *
+     * @param lane
+     *            the lane.
+     * @return the queueing delay in ms, or zero if not measured yet.
+     */
+    public double getQueueDelay(SharedWorkerPool.Lane lane) {
+        LaneState state = lanes.get(lane);
+        return state == null ? 0 : state.queueDelay / 1000000;
+    }
+
+    /**
+     * Adjusts the limits once. Called every interval once started.
+     */
+    void adjust() {
+        Map<SharedWorkerPool, Integer> needed = new HashMap<SharedWorkerPool, Integer>();
+        for (Map.Entry<SharedWorkerPool.Lane, LaneState> entry : lanes
+                .entrySet()) {
+            SharedWorkerPool.Lane lane = entry.getKey();
+            if (lane.isShutdown()) {
+                lanes.remove(lane);
+            } else {
+                try {
+                    entry.getValue().adjust(lane);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error adjusting concurrency of lane", e);
+                }
+                Integer threads = needed.get(lane.getPool());
+                if (threads == null || threads < lane.getThreadsNeeded()) {
+                    needed.put(lane.getPool(), lane.getThreadsNeeded());
+                }
+            }
+        }
+        for (Map.Entry<SharedWorkerPool, PoolBounds> entry : pools.entrySet()) {
+            SharedWorkerPool pool = entry.getKey();
+            if (pool.isShutdown()) {
+                pools.remove(pool);
+            } else {
+                Integer threads = needed.get(pool);
+                entry.getValue().resize(pool, threads == null ? 0 : threads);
+            }
+        }
+    }
+
+    /**
+     * Returns the most threads the given lane can get, once its pool grew as
+     * far as it may.
+     */
+    private int getAvailableThreads(SharedWorkerPool.Lane lane) {
+        PoolBounds bounds = pools.get(lane.getPool());
+        return bounds == null ? lane.getAvailableThreads() : lane
+                .getAvailableThreads(bounds.maxThreads);
+    }
+
+    /**
+     * The bounds of the size of a pool.
+     */
+    private static class PoolBounds {
+
+        final int minThreads;
+        final int maxThreads;
+
+        PoolBounds(int minThreads, int maxThreads) {
+            this.minThreads = minThreads;
+            this.maxThreads = maxThreads;
+        }
+
+        void resize(SharedWorkerPool pool, int needed) {
+            int threads = Math.max(minThreads, Math.min(maxThreads, needed));
+            if (threads != pool.getThreads()) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Pool threads " + pool.getThreads() + " -> "
+                            + threads);
+                }
+                pool.setThreads(threads);
+            }
+        }
+    }
+
+    /**
+     * The measurements of a lane.
+     */
+    private class LaneState {
+
+        private long completed;
+        private long queueNanos;
+        private long serviceNanos;
+        private int intervals;
+        private double limit;
+        private double minLatency = Double.MAX_VALUE;
+        private volatile double latency;
+        private volatile double queueDelay;
+
+        LaneState(SharedWorkerPool.Lane lane) {
+            this.completed = lane.getCompletedCount();
+            this.queueNanos = lane.getQueueNanos();
+            this.serviceNanos = lane.getServiceNanos();
+            this.limit = Math.min(lane.getMaxConcurrency(),
+                    getAvailableThreads(lane));
+        }
+
+        void adjust(SharedWorkerPool.Lane lane) {
+            long lastCompleted = completed;
+            long lastQueueNanos = queueNanos;
+            long lastServiceNanos = serviceNanos;
+            completed = lane.getCompletedCount();
+            queueNanos = lane.getQueueNanos();
+            serviceNanos = lane.getServiceNanos();
+            int highest = Math.min(maxLimit, getAvailableThreads(lane));
+            long count = completed - lastCompleted;
+            if (count == 0) {
+                if (lane.getMaxConcurrency() > highest) {
+                    limit = highest;
+                    lane.setMaxConcurrency(highest);
+                }
+                return;
+            }
+            latency = (double) (serviceNanos - lastServiceNanos) / count;
+            queueDelay = (double) (queueNanos - lastQueueNanos) / count;
+            if (++intervals % BASELINE_INTERVALS == 0 || latency < minLatency) {
+                minLatency = latency;
+            }
+
+            double gradient = latency == 0 ? 1 : Math.max(MIN_GRADIENT,
+                    Math.min(1, minLatency / latency));
+            double newLimit = limit * gradient;
+            if (queueDelay > latency || lane.getQueueSize() > 0) {
+                // Packets are waiting for threads, so probe for more
+                newLimit += Math.sqrt(limit);
+            }
+            limit = (1 - SMOOTHING) * limit + SMOOTHING * newLimit;
+            limit = Math.max(Math.min(minLimit, highest), Math.min(highest,
+                    limit));
+
+            int rounded = (int) Math.round(limit);
+            if (rounded != lane.getMaxConcurrency()) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Lane limit " + lane.getMaxConcurrency()
+                            + " -> " + rounded + " (latency " + latency
+                            / 1000000 + " ms, queueing " + queueDelay
+                            / 1000000 + " ms)");
+                }
+                lane.setMaxConcurrency(rounded);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.jivesoftware.whack;
+
+/**
+ * Tracks the outcome of the requests sent to one destination, and stops
+ * requests from being sent to it while it does not answer. Requests to a
+ * destination that went dark would otherwise each wait for the full timeout,
+ * holding a thread all along.
+ * <p>
+ *
+ * The breaker is <tt>CLOSED</tt> as long as the destination answers. Once
+ * the share of failures among the last requests reaches a threshold, and at
+ * least half a window of requests got an outcome, it opens and requests fail
+ * right away. After a while, it lets a single probe through: if the probe
+ * succeeds the breaker closes again, otherwise it stays open for another
+ * while.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The state of a breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int windowSize;
+    private final double failureThreshold;
+    private final long openDuration;
+
+    private State state = State.CLOSED;
+    private final boolean[] window;
+    private int position;
+    private int calls;
+    private int failuresInWindow;
+    private long openedAt;
+    private long probeStartedAt;
+
+    private long successes;
+    private long failures;
+    private long rejected;
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param windowSize
+     *            the number of last requests whose outcome is considered.
+     * @param failureThreshold
+     *            the share of failures among them that opens the breaker,
+     *            between 0 and 1.
+     * @param openDuration
+     *            the time in ms the breaker stays open before letting a probe
+     *            through.
+     */
+    public CircuitBreaker(int windowSize, double failureThreshold,
+            long openDuration) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+        if (failureThreshold <= 0 || failureThreshold > 1) {
+            throw new IllegalArgumentException(
+                    "Failure threshold must be in (0, 1]");
+        }
+        this.windowSize = windowSize;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.window = new boolean[windowSize];
+    }
+
+    /**
+     * Returns whether a request may be sent to the destination now. A
+     * request allowed while the breaker is half open is the probe, whose
+     * outcome must be recorded.
+     *
+     * @return <tt>false</tt> if the request must fail right away.
+     */
+    public synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (now - openedAt >= openDuration) {
+                state = State.HALF_OPEN;
+                probeStartedAt = now;
+                return true;
+            }
+            break;
+        case HALF_OPEN:
+            // Let another probe through if the last one never got an outcome
+            if (now - probeStartedAt >= openDuration) {
+                probeStartedAt = now;
+                return true;
+            }
+            break;
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Records that the destination answered a request.
+     */
+    public synchronized void recordSuccess() {
+        successes++;
+        if (state == State.HALF_OPEN) {
+            close();
+        } else {
+            record(false);
+        }
+    }
+
+    /**
+     * Records that the destination did not answer a request in time, or
+     * answered that it could not process it.
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true);
+            // Wait for half a window of outcomes before judging
+            if (calls * 2 >= windowSize
+                    && failuresInWindow >= failureThreshold * calls) {
+                open();
+            }
+        }
+    }
+
+    private void record(boolean failure) {
+        if (calls == windowSize) {
+            if (window[position]) {
+                failuresInWindow--;
+            }
+        } else {
+            calls++;
+        }
+        window[position] = failure;
+        if (failure) {
+            failuresInWindow++;
+        }
+        position = (position + 1) % windowSize;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        position = 0;
+        calls = 0;
+        failuresInWindow = 0;
+    }
+
+    /**
+     * Returns the state of this breaker.
+     *
+     * @return the state.
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN
+                && System.currentTimeMillis() - openedAt >= openDuration) {
+            // Reported as half open once a probe would be let through
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * Returns the share of failures among the last requests.
+     *
+     * @return the failure rate, between 0 and 1.
+     */
+    public synchronized double getFailureRate() {
+        return calls == 0 ? 0 : (double) failuresInWindow / calls;
+    }
+
+    /**
+     * Returns the number of requests the destination answered.
+     *
+     * @return the number of successes.
+     */
+    public synchronized long getSuccessCount() {
+        return successes;
+    }
+
+    /**
+     * Returns the number of requests that failed.
+     *
+     * @return the number of failures.
+     */
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * Returns the number of requests failed right away because the breaker
+     * was open.
+     *
+     * @return the number of rejected requests.
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getState() + " (" + successes + " successes, " + failures
+                + " failures, " + rejected + " rejected)";
+    }
+}
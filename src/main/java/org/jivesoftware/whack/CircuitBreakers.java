@@ -0,0 +1,215 @@
+package org.jivesoftware.whack;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.PacketError;
+
+/**
+ * The {@link CircuitBreaker}s of the destinations requests are sent to, one
+ * per bare JID, all created with the same settings. Every destination keeps
+ * its breaker as long as it is in use, since a cache could evict or refuse to
+ * admit the breaker of a failing destination and let it start over closed.
+ * Once there are more than 1000 destinations, breakers unused for an hour are
+ * dropped.
+ */
+public class CircuitBreakers {
+
+    /**
+     * The default number of last requests whose outcome is considered.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+    /**
+     * The default share of failures that opens a breaker.
+     */
+    public static final double DEFAULT_FAILURE_THRESHOLD = 0.5;
+    /**
+     * The default time in ms a breaker stays open before letting a probe
+     * through.
+     */
+    public static final long DEFAULT_OPEN_DURATION = 30000;
+
+    private static final int MAX_DESTINATIONS = 1000;
+    private static final long IDLE_LIFETIME = 3600000;
+    private static final long SWEEP_INTERVAL = 60000;
+
+    private final int windowSize;
+    private final double failureThreshold;
+    private final long openDuration;
+    private final ConcurrentMap<String, Slot> breakers = new ConcurrentHashMap<String, Slot>();
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    /**
+     * Creates breakers with the default settings.
+     */
+    public CircuitBreakers() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_FAILURE_THRESHOLD,
+                DEFAULT_OPEN_DURATION);
+    }
+
+    /**
+     * Creates breakers with the given settings, see
+     * {@link CircuitBreaker#CircuitBreaker(int, double, long)}.
+     */
+    public CircuitBreakers(int windowSize, double failureThreshold,
+            long openDuration) {
+        // Check the settings once
+        new CircuitBreaker(windowSize, failureThreshold, openDuration);
+        this.windowSize = windowSize;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Returns the breaker of the given destination, created if needed.
+     *
+     * @param destination
+     *            the recipient of a request.
+     * @return the breaker of its bare JID, or <tt>null</tt> if the
+     *         destination is <tt>null</tt>.
+     */
+    public CircuitBreaker get(JID destination) {
+        if (destination == null) {
+            return null;
+        }
+        String key = destination.toBareJID();
+        long now = System.currentTimeMillis();
+        Slot slot = breakers.get(key);
+        if (slot == null) {
+            Slot created = new Slot(new CircuitBreaker(windowSize,
+                    failureThreshold, openDuration), now);
+            slot = breakers.putIfAbsent(key, created);
+            if (slot == null) {
+                slot = created;
+                if (breakers.size() > MAX_DESTINATIONS) {
+                    dropIdle(now);
+                }
+            }
+        }
+        slot.lastUsed = now;
+        return slot.breaker;
+    }
+
+    /**
+     * Drops the breakers unused for a while, at most once per
+     * {@link #SWEEP_INTERVAL} since all of them are scanned.
+     */
+    private void dropIdle(long now) {
+        long next = nextSweep.get();
+        if (now < next || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+            return;
+        }
+        for (Map.Entry<String, Slot> entry : breakers.entrySet()) {
+            Slot slot = entry.getValue();
+            if (now - slot.lastUsed > IDLE_LIFETIME) {
+                breakers.remove(entry.getKey(), slot);
+            }
+        }
+    }
+
+    /**
+     * Returns the breakers of all destinations, keyed by bare JID.
+     *
+     * @return a snapshot of the breakers.
+     */
+    public Map<String, CircuitBreaker> getBreakers() {
+        Map<String, CircuitBreaker> snapshot = new HashMap<String, CircuitBreaker>();
+        for (Map.Entry<String, Slot> entry : breakers.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().breaker);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Records the outcome of a request in the given breaker.
+     *
+     * @param breaker
+     *            the breaker of the destination, may be <tt>null</tt>.
+     * @param response
+     *            the response, or <tt>null</tt> if the request timed out.
+     */
+    public static void record(CircuitBreaker breaker, IQ response) {
+        if (breaker == null) {
+            return;
+        }
+        if (isFailure(response)) {
+            breaker.recordFailure();
+        } else {
+            breaker.recordSuccess();
+        }
+    }
+
+    /**
+     * Returns whether the given response shows the destination could not
+     * process the request, as opposed to rejecting the request itself.
+     *
+     * @param response
+     *            the response, or <tt>null</tt> if the request timed out.
+     * @return <tt>true</tt> for timeouts and errors meaning the destination
+     *         is unavailable or failing.
+     */
+    public static boolean isFailure(IQ response) {
+        if (response == null) {
+            return true;
+        }
+        if (response.getType() != IQ.Type.error) {
+            return false;
+        }
+        PacketError error = response.getError();
+        if (error == null) {
+            return false;
+        }
+        if (error.getType() == PacketError.Type.wait) {
+            return true;
+        }
+        PacketError.Condition condition = error.getCondition();
+        if (condition == null) {
+            return false;
+        }
+        switch (condition) {
+        case service_unavailable:
+        case remote_server_not_found:
+        case remote_server_timeout:
+        case internal_server_error:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns the error a request is answered with when the breaker of its
+     * destination is open.
+     *
+     * @param request
+     *            the request.
+     * @return a <tt>service-unavailable</tt> error, as if sent by the
+     *         destination.
+     */
+    public static IQ createRejection(IQ request) {
+        IQ error = IQ.createResultIQ(request);
+        error.setError(new PacketError(
+                PacketError.Condition.service_unavailable,
+                PacketError.Type.wait));
+        return error;
+    }
+
+    /**
+     * The breaker of a destination and the last time it was used.
+     */
+    private static final class Slot {
+
+        private final CircuitBreaker breaker;
+        private volatile long lastUsed;
+
+        Slot(CircuitBreaker breaker, long lastUsed) {
+            this.breaker = breaker;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -24,6 +24,9 @@ import org.dom4j.DocumentException;
 import org.dom4j.Element;
 import org.dom4j.io.XMLWriter;
 import org.dom4j.io.XPPPacketReader;
+import org.jivesoftware.smack.util.JIDCache;
+import org.jivesoftware.whack.util.PacketIDs;
+import org.jivesoftware.whack.util.PendingTable;
 import org.jivesoftware.whack.util.StringUtils;
 import org.jivesoftware.whack.util.TaskEngine;
 import org.xmlpull.v1.XmlPullParser;
@@ -35,18 +38,22 @@ import org.xmpp.component.ComponentManager;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Packet;
+import org.xmpp.packet.PacketError;
 import org.xmpp.packet.StreamError;
 
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -64,8 +71,18 @@ public class ExternalComponent implements Component {
      * The utf-8 charset for decoding and encoding XMPP packet streams.
      */
     private static String CHARSET = "UTF-8";
+    /**
+     * The most time in ms to wait for queued packets to be written when
+     * disconnecting.
+     */
+    private static final long CLOSE_TIMEOUT = 5000;
 
     private Component component;
+    /**
+     * The wrapped component if it processes packets on the threads of this
+     * component's pool, <tt>null</tt> otherwise.
+     */
+    private InlineComponent inlineComponent;
     private ExternalComponentManager manager;
 
     private Socket socket;
@@ -106,17 +123,61 @@ public class ExternalComponent implements Component {
     private int port;
 
     /**
-     * Pool of threads that are available for processing the requests.
+     * Pool of threads that are available for processing the requests, unless
+     * they are processed by lanes of a pool shared with other components.
+     */
+    private SharedWorkerPool pool;
+    /**
+     * Lanes that process the requests of each class of traffic. Several
+     * classes may share a lane.
+     */
+    private Map<Priority, SharedWorkerPool.Lane> lanes;
+    /**
+     * Limits the rate of packets of each sender, if any.
      */
-    private ThreadPoolExecutor threadPool;
+    private volatile SenderQuota senderQuota;
+    /**
+     * Packets read but not handed to their lane yet, per class of traffic.
+     */
+    private final ReadBatch[] readBatches = new ReadBatch[Priority.values().length];
+    /**
+     * Time in ns the oldest packet of the read batches was read, zero if
+     * there is none.
+     */
+    private long batchesStartedAt;
+    private volatile int maxReadBatchSize = 16;
+    private volatile long maxReadBatchDelay = TimeUnit.MILLISECONDS
+            .toNanos(1);
     /**
      * Thread that will read the XML from the socket and ask this component to
      * process the read packets.
      */
     private SocketReadThread readerThread;
+    /**
+     * Thread that writes the sent packets to the socket, if they are queued
+     * between watermarks rather than written by the threads sending them.
+     */
+    private volatile SocketWriteThread writerThread;
+    /**
+     * Number of queued characters below which a congested connection may be
+     * written again, zero if sent packets are not queued.
+     */
+    private long lowWatermark;
+    /**
+     * Number of queued characters above which the connection is congested,
+     * zero if sent packets are not queued.
+     */
+    private long highWatermark;
 
-    private Map<String, IQResultListener> resultListeners = new ConcurrentHashMap<String, IQResultListener>();
-    private Map<String, Long> resultTimeout = new ConcurrentHashMap<String, Long>();
+    /**
+     * Listeners waiting for the answer to IQ packets with ids generated by
+     * {@link PacketIDs}, keyed by the number of the id.
+     */
+    private PendingTable<IQResultListener> resultListeners = new PendingTable<IQResultListener>();
+    /**
+     * Listeners waiting for the answer to IQ packets with other ids.
+     */
+    private ConcurrentMap<String, PendingListener> foreignResultListeners = new ConcurrentHashMap<String, PendingListener>();
 
     public ExternalComponent(Component component,
             ExternalComponentManager manager) {
@@ -127,16 +188,72 @@ public class ExternalComponent implements Component {
 
     public ExternalComponent(Component component,
             ExternalComponentManager manager, int maxThreads) {
+        this(component, manager, maxThreads, Integer.MAX_VALUE);
+    }
+
+    public ExternalComponent(Component component,
+            ExternalComponentManager manager, int maxThreads,
+            int maxQueueSize) {
+        // Create a pool of threads that will process requests received by this
+        // component. If a queue is full then the command will be executed
+        // on the SocketReadThread process, which stops reading until the
+        // pool catches up
+        this(component, manager, new SharedWorkerPool(maxThreads,
+                SharedWorkerPool.DEFAULT_QUANTUM, "pool-whack-component-"),
+                maxThreads, maxQueueSize);
+    }
+
+    private ExternalComponent(Component component,
+            ExternalComponentManager manager, SharedWorkerPool pool,
+            int maxThreads, int maxQueueSize) {
+        this(component, manager, manager.createLanes(pool, 1, maxThreads,
+                maxQueueSize));
+        this.pool = pool;
+    }
+
+    /**
+     * Creates a component whose requests are all processed by a lane of a
+     * pool shared with other components.
+     */
+    public ExternalComponent(Component component,
+            ExternalComponentManager manager, SharedWorkerPool.Lane lane) {
+        this(component, manager, sameLane(lane));
+    }
+
+    /**
+     * Creates a component whose requests are processed by the lane of their
+     * class of traffic.
+     * 
+     * @param lanes
+     *            the lane of each {@link Priority}.
+     */
+    public ExternalComponent(Component component,
+            ExternalComponentManager manager,
+            Map<Priority, SharedWorkerPool.Lane> lanes) {
+        for (Priority priority : Priority.values()) {
+            if (lanes.get(priority) == null) {
+                throw new IllegalArgumentException("No lane for " + priority);
+            }
+        }
         this.component = component;
+        if (component instanceof InlineComponent) {
+            this.inlineComponent = (InlineComponent) component;
+        }
         this.manager = manager;
+        this.lanes = new EnumMap<Priority, SharedWorkerPool.Lane>(lanes);
+        for (Priority priority : Priority.values()) {
+            readBatches[priority.ordinal()] = new ReadBatch(priority);
+        }
+    }
 
-        // Create a pool of threads that will process requests received by this
-        // component. If more
-        // threads are required then the command will be executed on the
-        // SocketReadThread process
-        threadPool = new ThreadPoolExecutor(maxThreads, maxThreads, 15,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
-                new ThreadPoolExecutor.CallerRunsPolicy());
+    private static Map<Priority, SharedWorkerPool.Lane> sameLane(
+            SharedWorkerPool.Lane lane) {
+        Map<Priority, SharedWorkerPool.Lane> lanes = new EnumMap<Priority, SharedWorkerPool.Lane>(
+                Priority.class);
+        for (Priority priority : Priority.values()) {
+            lanes.put(priority, lane);
+        }
+        return lanes;
     }
 
     /**
@@ -178,8 +295,8 @@ public class ExternalComponent implements Component {
 
                 reader.getXPPParser()
                         .setInput(
-                                new InputStreamReader(socket.getInputStream(),
-                                        CHARSET));
+                                new InputStreamReader(new ReadBatchingStream(
+                                        socket.getInputStream()), CHARSET));
 
                 // Get a writer for sending the open stream tag
                 writer = new BufferedWriter(new OutputStreamWriter(
@@ -192,7 +309,8 @@ public class ExternalComponent implements Component {
                 if (manager.isMultipleAllowed(subdomain)) {
                     stream.append(" allowMultiple=\"true\"");
                 }
-                stream.append(" to=\"").append(domain).append("\">");
+                stream.append(" to=\"");
+                StringUtils.escapeForXML(domain, stream).append("\">");
                 writer.write(stream.toString());
                 writer.flush();
                 stream = null;
@@ -328,38 +446,386 @@ public class ExternalComponent implements Component {
     }
 
     public void processPacket(final Packet packet) {
-        threadPool.execute(new Runnable() {
+        if (handledOnArrival(packet)) {
+            return;
+        }
+        lanes.get(Priority.of(packet)).execute(new Runnable() {
             public void run() {
-                if (packet instanceof IQ) {
-                    IQ iq = (IQ) packet;
-                    IQ.Type iqType = iq.getType();
-                    if (IQ.Type.result == iqType || IQ.Type.error == iqType) {
-                        // The server got an answer to an IQ packet that was
-                        // sent from the component
-                        IQResultListener iqResultListener = resultListeners
-                                .remove(iq.getID());
-                        resultTimeout.remove(iq.getID());
-                        if (iqResultListener != null) {
+                deliver(packet);
+            }
+        });
+    }
+
+    /**
+     * Runs the given task on the lane of the given priority, along with the
+     * packets of that class.
+     * 
+     * @param priority
+     * @param task
+     */
+    public void execute(Priority priority, Runnable task) {
+        lanes.get(priority).execute(task);
+    }
+
+    /**
+     * Processes a packet read from the socket. Packets are collected per lane
+     * while the reader gets input without waiting, and each batch is handed
+     * to its lane as a single task. Batches are handed over once full, before
+     * the reader reads from the socket with no input available, and once the
+     * oldest packet waited for the maximum delay, see
+     * {@link ReadBatchingStream}. A packet read alone is thus handed over
+     * right away, even if it is followed by part of the next stanza.
+     * <p>
+     * 
+     * Only called by the reader thread.
+     * 
+     * @param packet
+     *            the packet read.
+     */
+    void processReadPacket(Packet packet) {
+        if (!handledOnArrival(packet)) {
+            ReadBatch batch = readBatches[Priority.of(packet).ordinal()];
+            if (batchesStartedAt == 0) {
+                batchesStartedAt = System.nanoTime();
+            }
+            if (batch.add(packet)) {
+                batch.flush();
+            }
+        }
+        if (batchesStartedAt != 0
+                && System.nanoTime() - batchesStartedAt >= maxReadBatchDelay) {
+            flushReadBatches();
+        }
+    }
+
+    /**
+     * Hands the collected packets over to their lanes if the reader is about
+     * to wait for input, or if the oldest one waited for the maximum delay.
+     * 
+     * @param wouldBlock
+     *            whether the socket has no input available.
+     */
+    private void beforeRead(boolean wouldBlock) {
+        if (batchesStartedAt != 0
+                && (wouldBlock || System.nanoTime() - batchesStartedAt
+                        >= maxReadBatchDelay)) {
+            flushReadBatches();
+        }
+    }
+
+    /**
+     * Hands the packets collected by the reader thread over to their lanes.
+     */
+    void flushReadBatches() {
+        for (ReadBatch batch : readBatches) {
+            batch.flush();
+        }
+        batchesStartedAt = 0;
+    }
+
+    /**
+     * Processes on the calling thread the packets that are not queued: answers
+     * to IQs with a listener, which are handed to the control lane right away,
+     * and packets over quota.
+     * 
+     * @return <tt>true</tt> if the packet must not be queued.
+     */
+    private boolean handledOnArrival(Packet packet) {
+        if (packet instanceof IQ) {
+            final IQ iq = (IQ) packet;
+            IQ.Type iqType = iq.getType();
+            if (IQ.Type.result == iqType || IQ.Type.error == iqType) {
+                // The server got an answer to an IQ packet that was sent from
+                // the component. The listener is looked up right away, so the
+                // answer never waits behind other traffic
+                final IQResultListener iqResultListener = removeIQResultListener(iq
+                        .getID());
+                if (iqResultListener != null) {
+                    lanes.get(Priority.CONTROL).execute(new Runnable() {
+                        public void run() {
                             try {
+                                JIDCache.prime(iq);
                                 iqResultListener.receivedAnswer(iq);
                             } catch (Exception e) {
                                 manager.getLog()
                                         .error("Error processing answer of remote entity",
                                                 e);
                             }
-                            return;
+                        }
+                    });
+                    return true;
+                }
+            }
+        }
+        SenderQuota quota = senderQuota;
+        return quota != null && !admit(quota, packet);
+    }
+
+    /**
+     * Processes a packet on a thread of its lane. The reader thread creates
+     * packets without preparing their addresses, so that stringprep runs here
+     * through the {@link JIDCache} instead of on the single reader thread.
+     */
+    private void deliver(Packet packet) {
+        JIDCache.prime(packet);
+        if (inlineComponent == null || !inlineComponent.processInline(packet)) {
+            component.processPacket(packet);
+        }
+    }
+
+    /**
+     * Sets how the packets read from the socket are handed to the lanes.
+     * Batches start at a single packet, and grow while the lane has a backlog
+     * so that the hand-off cost is shared by more packets, and shrink while
+     * its threads are idle so that packets are processed in parallel.
+     * 
+     * @param maxBatchSize
+     *            the maximum number of packets handed over as one task, 1 to
+     *            hand each packet over on its own.
+     * @param maxDelay
+     *            the maximum time in ms a packet waits for its batch to be
+     *            handed over while more input is read.
+     */
+    public void setReadBatching(int maxBatchSize, long maxDelay) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum batch size must be positive");
+        }
+        this.maxReadBatchSize = maxBatchSize;
+        this.maxReadBatchDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+    }
+
+    /**
+     * The packets of one class of traffic read but not handed to their lane
+     * yet. Only used by the reader thread.
+     */
+    private class ReadBatch {
+
+        private final Priority priority;
+        private List<Packet> packets = new ArrayList<Packet>();
+        private int limit = 1;
+
+        ReadBatch(Priority priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Adds a packet, and returns whether the batch is full.
+         */
+        boolean add(Packet packet) {
+            packets.add(packet);
+            return packets.size() >= limit;
+        }
+
+        void flush() {
+            if (packets.isEmpty()) {
+                return;
+            }
+            SharedWorkerPool.Lane lane = lanes.get(priority);
+            // Larger batches while the threads are behind, smaller ones while
+            // they keep up
+            if (lane.getQueueSize() > 0) {
+                limit = Math.min(maxReadBatchSize, limit * 2);
+            } else {
+                limit = Math.max(1, limit / 2);
+            }
+            if (packets.size() == 1) {
+                final Packet packet = packets.get(0);
+                packets.clear();
+                lane.execute(new Runnable() {
+                    public void run() {
+                        deliver(packet);
+                    }
+                });
+                return;
+            }
+            final List<Packet> batch = packets;
+            packets = new ArrayList<Packet>(limit);
+            lane.execute(new Runnable() {
+                public void run() {
+                    for (Packet packet : batch) {
+                        try {
+                            deliver(packet);
+                        } catch (RuntimeException e) {
+                            manager.getLog().error(
+                                    "Error processing packet", e);
                         }
                     }
                 }
-                component.processPacket(packet);
+            });
+        }
+    }
+
+    /**
+     * The input of the socket as read by the parser. The parser and its
+     * decoder buffer what they read, so only the socket knows whether the
+     * next read waits; the packets collected so far are handed over before
+     * it does, and not held behind a partial stanza.
+     */
+    class ReadBatchingStream extends FilterInputStream {
+
+        ReadBatchingStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            beforeRead(in.available() == 0);
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            beforeRead(in.available() == 0);
+            return in.read(b, off, len);
+        }
+    }
+
+    /**
+     * Checks the quota of the sender of a packet before it is queued. Requests
+     * over quota are answered with an error right away, other packets over
+     * quota are dropped. Answers to IQs are always admitted.
+     */
+    private boolean admit(SenderQuota quota, Packet packet) {
+        if (packet instanceof IQ && !((IQ) packet).isRequest()) {
+            return true;
+        }
+        if (quota.tryAcquire(packet.getFrom())) {
+            return true;
+        }
+        if (packet instanceof IQ) {
+            IQ error = IQ.createResultIQ((IQ) packet);
+            error.setError(new PacketError(quota.getRejectCondition(),
+                    PacketError.Type.wait));
+            send(error);
+        } else if (manager.getLog().isDebugEnabled()) {
+            manager.getLog().debug(
+                    "Dropped packet of " + packet.getFrom() + " over quota");
+        }
+        return false;
+    }
+
+    /**
+     * Sets the quota limiting the rate of packets of each sender.
+     * 
+     * @param senderQuota
+     *            the quota, or <tt>null</tt> for no limit.
+     */
+    public void setSenderQuota(SenderQuota senderQuota) {
+        this.senderQuota = senderQuota;
+    }
+
+    /**
+     * Returns the quota limiting the rate of packets of each sender, if any.
+     * 
+     * @return the quota or <tt>null</tt>.
+     */
+    public SenderQuota getSenderQuota() {
+        return senderQuota;
+    }
+
+    /**
+     * Returns the number of received packets waiting for a thread of the
+     * pool.
+     *
+     * @return the size of the processing queues.
+     */
+    public int getQueueSize() {
+        int size = 0;
+        Priority[] priorities = Priority.values();
+        for (int i = 0; i < priorities.length; i++) {
+            SharedWorkerPool.Lane lane = lanes.get(priorities[i]);
+            if (isFirstUse(lane, priorities, i)) {
+                size += lane.getQueueSize();
             }
-        });
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of received packets waiting in the lane of the
+     * given class of traffic.
+     *
+     * @param priority
+     *            the class of traffic.
+     * @return the size of the lane's queue.
+     */
+    public int getQueueSize(Priority priority) {
+        return lanes.get(priority).getQueueSize();
+    }
+
+    /**
+     * Returns the lanes processing the received packets, one per class of
+     * traffic. Classes may share a lane.
+     */
+    Collection<SharedWorkerPool.Lane> getLanes() {
+        return lanes.values();
+    }
+
+    /**
+     * Returns the pool of this component, or <tt>null</tt> if its lanes
+     * belong to a pool shared with other components.
+     */
+    SharedWorkerPool getPool() {
+        return pool;
+    }
+
+    private boolean isFirstUse(SharedWorkerPool.Lane lane,
+            Priority[] priorities, int index) {
+        for (int i = 0; i < index; i++) {
+            if (lanes.get(priorities[i]) == lane) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public void send(Packet packet) {
+        SocketWriteThread writeThread = writerThread;
+        if (writeThread != null) {
+            writeThread.offer(packet, true);
+            awaitWritable(writeThread);
+            return;
+        }
+        synchronized (writer) {
+            try {
+                write(packet);
+                xmlSerializer.flush();
+                // Keep track of the last time a stanza was sent to the server
+                lastActive = System.currentTimeMillis();
+            } catch (IOException e) {
+                // Log the exception
+                manager.getLog().error(e);
+                if (!shutdown) {
+                    // Connection was lost so try to reconnect
+                    connectionLost();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the given packets in order, holding the writer lock once and
+     * flushing the connection only after the last one.
+     *
+     * @param packets
+     *            the packets to send.
+     */
+    public void send(Collection<? extends Packet> packets) {
+        if (packets.isEmpty()) {
+            return;
+        }
+        SocketWriteThread writeThread = writerThread;
+        if (writeThread != null) {
+            writeThread.offer(packets);
+            awaitWritable(writeThread);
+            return;
+        }
         synchronized (writer) {
             try {
-                xmlSerializer.write(packet.getElement());
+                for (Packet packet : packets) {
+                    write(packet);
+                }
                 xmlSerializer.flush();
                 // Keep track of the last time a stanza was sent to the server
                 lastActive = System.currentTimeMillis();
@@ -374,12 +840,129 @@ public class ExternalComponent implements Component {
         }
     }
 
+    /**
+     * Sends the given packet unless the connection is congested, without
+     * waiting for the queue of sent packets to drain. Without watermarks, the
+     * packet is always sent as with {@link #send(Packet)}.
+     * 
+     * @param packet
+     *            the packet to send.
+     * @return <tt>false</tt> if the connection is congested and the packet
+     *         was not sent.
+     */
+    public boolean trySend(Packet packet) {
+        SocketWriteThread writeThread = writerThread;
+        if (writeThread == null) {
+            send(packet);
+            return true;
+        }
+        return writeThread.offer(packet, false);
+    }
+
+    /**
+     * Returns whether the connection is congested, i.e. more sent packets
+     * are queued than the high watermark allows.
+     * 
+     * @return <tt>true</tt> if the connection is congested.
+     */
+    public boolean isCongested() {
+        SocketWriteThread writeThread = writerThread;
+        return writeThread != null && writeThread.isCongested();
+    }
+
+    /**
+     * Returns the number of characters of sent packets waiting to be written
+     * to the socket.
+     * 
+     * @return the size of the write queue, zero without watermarks.
+     */
+    public long getWriteQueueSize() {
+        SocketWriteThread writeThread = writerThread;
+        return writeThread == null ? 0 : writeThread.getQueued();
+    }
+
+    /**
+     * Queues sent packets to a thread writing them to the socket from the
+     * next connection on, instead of writing them on the threads sending
+     * them. Once more characters than the high watermark are queued, the
+     * connection is congested: received packets are no longer read and
+     * threads sending packets wait, until the queue drains below the low
+     * watermark.
+     * <p>
+     * 
+     * The watermarks count characters, not bytes: a stanza in a multi-byte
+     * encoding takes more room on the socket than it counts for. A
+     * {@link WritablePacket} is written by the queue thread itself, and
+     * counts as a fixed 1024 characters since its length is not known
+     * before.
+     * 
+     * @param lowWatermark
+     *            the low watermark, in characters.
+     * @param highWatermark
+     *            the high watermark, in characters, or zero to write packets
+     *            on the threads sending them.
+     */
+    public void setWriteWatermarks(long lowWatermark, long highWatermark) {
+        if (highWatermark != 0
+                && (lowWatermark < 0 || lowWatermark > highWatermark)) {
+            throw new IllegalArgumentException("Invalid watermarks "
+                    + lowWatermark + ", " + highWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Waits until the connection is no longer congested, if sent packets are
+     * queued.
+     */
+    void awaitWritable() throws InterruptedException {
+        SocketWriteThread writeThread = writerThread;
+        if (writeThread != null) {
+            if (writeThread.isCongested()) {
+                // Do not hold packets back while not reading
+                flushReadBatches();
+            }
+            writeThread.awaitWritable();
+        }
+    }
+
+    private void awaitWritable(SocketWriteThread writeThread) {
+        try {
+            writeThread.awaitWritable();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Notification that queued packets were written to the socket.
+     */
+    void wrote() {
+        // Keep track of the last time a stanza was sent to the server
+        lastActive = System.currentTimeMillis();
+    }
+
+    private void write(Packet packet) throws IOException {
+        if (packet instanceof WritablePacket) {
+            ((WritablePacket) packet).writeTo(writer);
+        } else {
+            xmlSerializer.write(packet.getElement());
+        }
+    }
+
     public void initialize(JID jid, ComponentManager componentManager)
             throws ComponentException {
         component.initialize(jid, componentManager);
     }
 
     public void start() {
+        if (highWatermark > 0) {
+            writerThread = new SocketWriteThread(this, writer, lowWatermark,
+                    highWatermark);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
         // Everything went fine so start reading packets from the server
         readerThread = new SocketReadThread(this, reader);
         readerThread.setDaemon(true);
@@ -397,9 +980,25 @@ public class ExternalComponent implements Component {
         if (readerThread != null) {
             readerThread.shutdown();
         }
-        threadPool.shutdown();
-        TaskEngine.getInstance().cancelScheduledTask(keepAliveTask);
-        TaskEngine.getInstance().cancelScheduledTask(timeoutTask);
+        for (SharedWorkerPool.Lane lane : lanes.values()) {
+            lane.shutdown();
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        // Write the packets already sent before closing the stream
+        SocketWriteThread writeThread = writerThread;
+        writerThread = null;
+        if (writeThread != null) {
+            writeThread.close(CLOSE_TIMEOUT);
+        }
+        // Not scheduled if the component never connected
+        if (keepAliveTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(keepAliveTask);
+        }
+        if (timeoutTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(timeoutTask);
+        }
         if (socket != null && !socket.isClosed()) {
             try {
                 synchronized (writer) {
@@ -421,6 +1020,14 @@ public class ExternalComponent implements Component {
         }
     }
 
+    private void stopWriting() {
+        SocketWriteThread writeThread = writerThread;
+        writerThread = null;
+        if (writeThread != null) {
+            writeThread.shutdown();
+        }
+    }
+
     /**
      * Notification message that the connection with the server was lost
      * unexpectedly. We will try to reestablish the connection for ever until
@@ -435,6 +1042,7 @@ public class ExternalComponent implements Component {
             reconnecting = true;
         }
         readerThread = null;
+        stopWriting();
         boolean isConnected = false;
         if (!shutdown) {
             // Notify the component that connection was lost so it needs to
@@ -497,8 +1105,41 @@ public class ExternalComponent implements Component {
         // be generated by the server and simulate like the client sent it. This
         // will let listeners
         // react and be removed from the collection
-        resultListeners.put(id, listener);
-        resultTimeout.put(id, System.currentTimeMillis() + timeoutmillis);
+        long expiresAt = System.currentTimeMillis() + timeoutmillis;
+        long key = PacketIDs.decode(id);
+        if (key != 0) {
+            resultListeners.put(key, listener, expiresAt);
+        } else {
+            foreignResultListeners.put(id, new PendingListener(listener,
+                    expiresAt));
+        }
+    }
+
+    private IQResultListener removeIQResultListener(String id) {
+        long key = PacketIDs.decode(id);
+        if (key != 0) {
+            return resultListeners.remove(key);
+        }
+        if (id == null || foreignResultListeners.isEmpty()) {
+            return null;
+        }
+        PendingListener pending = foreignResultListeners.remove(id);
+        return pending == null ? null : pending.listener;
+    }
+
+    /**
+     * A listener waiting for the answer to an IQ packet whose id was not
+     * generated by {@link PacketIDs}.
+     */
+    private static class PendingListener {
+
+        private final IQResultListener listener;
+        private final long expiresAt;
+
+        PendingListener(IQResultListener listener, long expiresAt) {
+            this.listener = listener;
+            this.expiresAt = expiresAt;
+        }
     }
 
     /**
@@ -539,45 +1180,42 @@ public class ExternalComponent implements Component {
      * 
      * @author Guus der Kinderen, guus@nimbuzz.com
      */
-    private class TimeoutTask extends TimerTask {
+    private class TimeoutTask extends TimerTask implements
+            PendingTable.ExpiryListener<IQResultListener> {
 
         /**
          * Iterates over and removes all timed out results.
-         * <p>
-         * 
-         * The map that keeps track of timeout values is ordered by timeout
-         * date. This way, iteration can be stopped as soon as the first value
-         * has been found that didn't timeout yet.
          */
         @Override
         public void run() {
+            long now = System.currentTimeMillis();
+            resultListeners.expire(now, this);
+
             // Use an Iterator to allow changes to the Map that is backing
             // the Iterator.
-            final Iterator<Map.Entry<String, Long>> it = resultTimeout
+            final Iterator<Map.Entry<String, PendingListener>> it = foreignResultListeners
                     .entrySet().iterator();
 
             while (it.hasNext()) {
-                final Map.Entry<String, Long> pointer = it.next();
+                final Map.Entry<String, PendingListener> pointer = it.next();
 
-                if (System.currentTimeMillis() < pointer.getValue()) {
+                if (now < pointer.getValue().expiresAt) {
                     // This entry has not expired yet. Ignore it.
                     continue;
                 }
 
-                final String packetId = pointer.getKey();
-
-                // remove this listener from the list
-                final IQResultListener listener = resultListeners
-                        .remove(packetId);
-                if (listener != null) {
-                    // notify listener of the timeout.
-                    listener.answerTimeout(packetId);
+                // remove this listener from the list, unless the answer
+                // arrived in the meantime, and notify it of the timeout.
+                if (foreignResultListeners.remove(pointer.getKey(),
+                        pointer.getValue())) {
+                    pointer.getValue().listener.answerTimeout(pointer.getKey());
                 }
-
-                // remove the packet from the list that's used to track
-                // timeouts
-                it.remove();
             }
         }
+
+        public void expired(long key, IQResultListener listener) {
+            // notify listener of the timeout.
+            listener.answerTimeout(PacketIDs.encode(key));
+        }
     }
 }
@@ -20,9 +20,12 @@
 
 package org.jivesoftware.whack;
 
-import java.util.Hashtable;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -62,6 +65,11 @@ public class ExternalComponentManager implements ComponentManager {
      * Timeout to use when trying to connect to the server.
      */
     private int connectTimeout = 2000;
+    /**
+     * Maximum number of received packets each component queues for its
+     * processing threads.
+     */
+    private int maxQueueSize = Integer.MAX_VALUE;
     /**
      * This is a global secret key that will be used during the handshake with
      * the server. If a secret key was not defined for the specific component
@@ -73,25 +81,77 @@ public class ExternalComponentManager implements ComponentManager {
      * for a specific subdomain then the global secret key will used for the
      * handshake with the server.
      */
-    private Map<String, String> secretKeys = new Hashtable<String, String>();
+    private ConcurrentMap<String, String> secretKeys = new ConcurrentHashMap<String, String>();
     /**
      * Holds the settings for whether we will tell the XMPP server that a given
      * component can connect to the same JID multiple times. This is a custom
      * Openfire extension and will not work with any other XMPP server. Other
      * servers should ignore this setting.
      */
-    private Map<String, Boolean> allowMultiple = new Hashtable<String, Boolean>();
+    private ConcurrentMap<String, Boolean> allowMultiple = new ConcurrentHashMap<String, Boolean>();
+    /**
+     * Pool of threads shared by the components, if they do not keep a pool of
+     * their own.
+     */
+    private SharedWorkerPool sharedWorkerPool;
+    /**
+     * Keeps the share of the shared pool that each subdomain gets.
+     */
+    private ConcurrentMap<String, Integer> weights = new ConcurrentHashMap<String, Integer>();
+    /**
+     * Keeps the maximum number of threads of the shared pool that each
+     * subdomain uses at a time.
+     */
+    private ConcurrentMap<String, Integer> maxConcurrency = new ConcurrentHashMap<String, Integer>();
+    /**
+     * Keeps the share of the threads that the lane of each class of traffic
+     * gets, if not the default of the class.
+     */
+    private ConcurrentMap<Priority, Integer> priorityWeights = new ConcurrentHashMap<Priority, Integer>();
+    /**
+     * Keeps the quota limiting the rate of packets of each sender that each
+     * subdomain applies.
+     */
+    private ConcurrentMap<String, SenderQuota> senderQuotas = new ConcurrentHashMap<String, SenderQuota>();
+    /**
+     * Stops queries from being sent to destinations that do not answer, if
+     * any.
+     */
+    private volatile CircuitBreakers circuitBreakers;
+    /**
+     * Number of characters queued to the socket of a component below which a
+     * congested connection may be written again.
+     */
+    private long lowWatermark;
+    /**
+     * Number of characters queued to the socket of a component above which
+     * the connection is congested, zero if packets are not queued.
+     */
+    private long highWatermark;
+    /**
+     * Maximum number of packets read by a component that are handed to a
+     * thread as one task.
+     */
+    private int maxReadBatchSize = 16;
+    /**
+     * Maximum time in ms a read packet waits for its batch to be handed over.
+     */
+    private long maxReadBatchDelay = 1;
+    /**
+     * Adjusts the concurrency of the lanes of the components, if any.
+     */
+    private AdaptiveConcurrencyController concurrencyController;
 
     /**
      * Keeps a map that associates a domain with the external component thas is
      * handling the domain.
      */
-    private Map<String, ExternalComponent> componentsByDomain = new Hashtable<String, ExternalComponent>();
+    private ConcurrentMap<String, ExternalComponent> componentsByDomain = new ConcurrentHashMap<String, ExternalComponent>();
     /**
      * Keeps a map that associates a component with the wrapping
      * ExternalComponent.
      */
-    private Map<Component, ExternalComponent> components = new Hashtable<Component, ExternalComponent>();
+    private ConcurrentMap<Component, ExternalComponent> components = new ConcurrentHashMap<Component, ExternalComponent>();
 
     private static final Logger LOG = Logger.getLogger(ExternalComponent.class);
 
@@ -207,6 +267,214 @@ public class ExternalComponentManager implements ComponentManager {
         this.allowMultiple.put(subdomain, allowMultiple);
     }
 
+    /**
+     * Sets the pool of threads shared by the components added from now on.
+     * Without one, each component keeps a pool of 25 threads of its own.
+     * 
+     * @param sharedWorkerPool
+     *            the shared pool, or <tt>null</tt> to use a pool per
+     *            component.
+     */
+    public void setSharedWorkerPool(SharedWorkerPool sharedWorkerPool) {
+        this.sharedWorkerPool = sharedWorkerPool;
+    }
+
+    /**
+     * Returns the pool of threads shared by the components, if any.
+     * 
+     * @return the shared pool or <tt>null</tt>.
+     */
+    public SharedWorkerPool getSharedWorkerPool() {
+        return sharedWorkerPool;
+    }
+
+    /**
+     * Sets the share of the shared pool a sub-domain gets when components
+     * compete for its threads, relative to the weights of the other
+     * sub-domains. The default weight is 1.
+     * 
+     * @param subdomain
+     *            the sub-domain.
+     * @param weight
+     *            the weight of the sub-domain.
+     */
+    public void setWeight(String subdomain, int weight) {
+        this.weights.put(subdomain, weight);
+    }
+
+    /**
+     * Sets the maximum number of threads of the shared pool a sub-domain uses
+     * at a time. The default is 25, the size of a per-component pool.
+     * 
+     * @param subdomain
+     *            the sub-domain.
+     * @param maxConcurrency
+     *            the maximum concurrency of the sub-domain.
+     */
+    public void setMaxConcurrency(String subdomain, int maxConcurrency) {
+        this.maxConcurrency.put(subdomain, maxConcurrency);
+    }
+
+    /**
+     * Sets the quota limiting the rate at which each sender may send packets
+     * to a sub-domain. Applies right away if the sub-domain has a component.
+     * 
+     * @param subdomain
+     *            the sub-domain.
+     * @param senderQuota
+     *            the quota, or <tt>null</tt> for no limit.
+     */
+    public void setSenderQuota(String subdomain, SenderQuota senderQuota) {
+        if (senderQuota == null) {
+            senderQuotas.remove(subdomain);
+        } else {
+            senderQuotas.put(subdomain, senderQuota);
+        }
+        ExternalComponent externalComponent = componentsByDomain
+                .get(subdomain);
+        if (externalComponent != null) {
+            externalComponent.setSenderQuota(senderQuota);
+        }
+    }
+
+    /**
+     * Returns the quota limiting the rate at which each sender may send
+     * packets to a sub-domain, if any.
+     * 
+     * @param subdomain
+     *            the sub-domain.
+     * @return the quota or <tt>null</tt>.
+     */
+    public SenderQuota getSenderQuota(String subdomain) {
+        return senderQuotas.get(subdomain);
+    }
+
+    /**
+     * Sets the watermarks of the queue of packets sent by the components
+     * added from now on, see
+     * {@link ExternalComponent#setWriteWatermarks(long, long)}. Packets are
+     * written by the threads sending them by default.
+     * 
+     * @param lowWatermark
+     *            the low watermark, in characters.
+     * @param highWatermark
+     *            the high watermark, in characters, or zero to write packets
+     *            on the threads sending them.
+     */
+    public void setWriteWatermarks(long lowWatermark, long highWatermark) {
+        if (highWatermark != 0
+                && (lowWatermark < 0 || lowWatermark > highWatermark)) {
+            throw new IllegalArgumentException("Invalid watermarks "
+                    + lowWatermark + ", " + highWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Sets how the packets read by the components added from now on are
+     * handed to their threads, see
+     * {@link ExternalComponent#setReadBatching(int, long)}. By default,
+     * batches of up to 16 packets wait at most 1 ms.
+     * 
+     * @param maxBatchSize
+     *            the maximum number of packets handed over as one task.
+     * @param maxDelay
+     *            the maximum time in ms a packet waits for its batch to be
+     *            handed over.
+     */
+    public void setReadBatching(int maxBatchSize, long maxDelay) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum batch size must be positive");
+        }
+        this.maxReadBatchSize = maxBatchSize;
+        this.maxReadBatchDelay = maxDelay;
+    }
+
+    /**
+     * Sets the circuit breakers of the destinations of queries. While the
+     * breaker of a destination is open, queries to it are answered right away
+     * with a <tt>service-unavailable</tt> error instead of being sent.
+     * 
+     * @param circuitBreakers
+     *            the breakers, or <tt>null</tt> to always send queries.
+     */
+    public void setCircuitBreakers(CircuitBreakers circuitBreakers) {
+        this.circuitBreakers = circuitBreakers;
+    }
+
+    /**
+     * Returns the circuit breakers of the destinations of queries, if any.
+     * 
+     * @return the breakers or <tt>null</tt>.
+     */
+    public CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    private CircuitBreaker getCircuitBreaker(IQ packet) {
+        CircuitBreakers breakers = circuitBreakers;
+        return breakers == null ? null : breakers.get(packet.getTo());
+    }
+
+    /**
+     * Sets the controller adjusting how many threads the lanes of the
+     * components added from now on use at a time. Without one, lanes keep the
+     * limit they were created with. The controller is not started.
+     * <p>
+     * 
+     * Components without a shared pool get their own pool resized to the
+     * limits of the controller, plus the thread kept for answers and pings. A
+     * shared pool keeps its size unless handed to
+     * {@link AdaptiveConcurrencyController#control(SharedWorkerPool, int, int)}.
+     * 
+     * @param concurrencyController
+     *            the controller, or <tt>null</tt> for fixed limits.
+     */
+    public void setConcurrencyController(
+            AdaptiveConcurrencyController concurrencyController) {
+        this.concurrencyController = concurrencyController;
+    }
+
+    /**
+     * Returns the controller adjusting the concurrency of the lanes, if any.
+     * 
+     * @return the controller or <tt>null</tt>.
+     */
+    public AdaptiveConcurrencyController getConcurrencyController() {
+        return concurrencyController;
+    }
+
+    /**
+     * Sets the share of the threads the lane of a class of traffic gets when
+     * the lanes of a component compete for them, relative to the weights of
+     * the other classes. Applies to the components added from now on.
+     * 
+     * @param priority
+     *            the class of traffic.
+     * @param weight
+     *            the weight of the class.
+     */
+    public void setPriorityWeight(Priority priority, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive");
+        }
+        this.priorityWeights.put(priority, weight);
+    }
+
+    /**
+     * Returns the share of the threads the lane of a class of traffic gets.
+     * 
+     * @param priority
+     *            the class of traffic.
+     * @return the weight of the class.
+     */
+    public int getPriorityWeight(Priority priority) {
+        Integer weight = priorityWeights.get(priority);
+        return weight == null ? priority.getDefaultWeight() : weight;
+    }
+
     public void addComponent(String subdomain, Component component)
             throws ComponentException {
         addComponent(subdomain, component, this.port);
@@ -214,21 +482,24 @@ public class ExternalComponentManager implements ComponentManager {
 
     public void addComponent(String subdomain, Component component, Integer port)
             throws ComponentException {
-        if (componentsByDomain.containsKey(subdomain)) {
-            if (componentsByDomain.get(subdomain).getComponent() == component) {
-                // Do nothing since the component has already been registered
+        // Check the subdomain before creating the lanes of a new component
+        if (isRegistered(subdomain, component)) {
+            return;
+        }
+        // Create a wrapping ExternalComponent on the component
+        ExternalComponent externalComponent = createExternalComponent(
+                subdomain, component);
+        // Register the new component unless the subdomain was taken meanwhile
+        if (componentsByDomain.putIfAbsent(subdomain, externalComponent) != null) {
+            discard(externalComponent);
+            if (isRegistered(subdomain, component)) {
                 return;
-            } else {
-                throw new IllegalArgumentException(
-                        "Subdomain already in use by another component");
             }
+            // Removed again in the meantime
+            addComponent(subdomain, component, port);
+            return;
         }
-        // Create a wrapping ExternalComponent on the component
-        ExternalComponent externalComponent = new ExternalComponent(component,
-                this);
         try {
-            // Register the new component
-            componentsByDomain.put(subdomain, externalComponent);
             components.put(component, externalComponent);
             // Ask the ExternalComponent to connect with the remote server
             externalComponent.connect(host, port, subdomain);
@@ -238,8 +509,9 @@ public class ExternalComponentManager implements ComponentManager {
             externalComponent.initialize(componentJID, this);
         } catch (ComponentException e) {
             // Unregister the new component
-            componentsByDomain.remove(subdomain);
+            componentsByDomain.remove(subdomain, externalComponent);
             components.remove(component);
+            discard(externalComponent);
             // Re-throw the exception
             throw e;
         }
@@ -247,15 +519,114 @@ public class ExternalComponentManager implements ComponentManager {
         externalComponent.start();
     }
 
+    /**
+     * Returns whether the given component is registered for the subdomain.
+     * 
+     * @throws IllegalArgumentException
+     *             if another component is.
+     */
+    private boolean isRegistered(String subdomain, Component component) {
+        ExternalComponent registered = componentsByDomain.get(subdomain);
+        if (registered == null) {
+            return false;
+        }
+        if (registered.getComponent() != component) {
+            throw new IllegalArgumentException(
+                    "Subdomain already in use by another component");
+        }
+        return true;
+    }
+
+    /**
+     * Shuts down a component and stops adjusting the concurrency of its
+     * lanes and the size of its pool.
+     */
+    private void discard(ExternalComponent externalComponent) {
+        externalComponent.shutdown();
+        AdaptiveConcurrencyController controller = concurrencyController;
+        if (controller != null) {
+            for (SharedWorkerPool.Lane lane : externalComponent.getLanes()) {
+                controller.release(lane);
+            }
+            if (externalComponent.getPool() != null) {
+                controller.release(externalComponent.getPool());
+            }
+        }
+    }
+
+    private ExternalComponent createExternalComponent(String subdomain,
+            Component component) {
+        ExternalComponent externalComponent;
+        if (sharedWorkerPool == null) {
+            externalComponent = new ExternalComponent(component, this, 25,
+                    maxQueueSize);
+            AdaptiveConcurrencyController controller = concurrencyController;
+            if (controller != null) {
+                controller.control(externalComponent.getPool(),
+                        controller.getMinLimit() + 1,
+                        controller.getMaxLimit() + 1);
+            }
+        } else {
+            Integer weight = weights.get(subdomain);
+            Integer concurrency = maxConcurrency.get(subdomain);
+            externalComponent = new ExternalComponent(component, this,
+                    createLanes(sharedWorkerPool, weight == null ? 1
+                            : weight, concurrency == null ? 25 : concurrency,
+                            maxQueueSize));
+        }
+        externalComponent.setSenderQuota(senderQuotas.get(subdomain));
+        externalComponent.setWriteWatermarks(lowWatermark, highWatermark);
+        externalComponent.setReadBatching(maxReadBatchSize, maxReadBatchDelay);
+        return externalComponent;
+    }
+
+    /**
+     * Creates the lanes of a component, one per class of traffic. The lane of
+     * answers and pings is a priority lane of the pool, so queries and bulk
+     * traffic, of this component and the others sharing the pool, leave a
+     * thread free for it.
+     */
+    Map<Priority, SharedWorkerPool.Lane> createLanes(SharedWorkerPool pool,
+            int weight, int concurrency, int maxQueueSize) {
+        AdaptiveConcurrencyController controller = concurrencyController;
+        Map<Priority, SharedWorkerPool.Lane> lanes = new EnumMap<Priority, SharedWorkerPool.Lane>(
+                Priority.class);
+        for (Priority priority : Priority.values()) {
+            int laneWeight = weight * getPriorityWeight(priority);
+            SharedWorkerPool.Lane lane = priority == Priority.CONTROL ? pool
+                    .createPriorityLane(laneWeight, concurrency, maxQueueSize)
+                    : pool.createLane(laneWeight, concurrency, maxQueueSize);
+            if (controller != null) {
+                controller.control(lane);
+            }
+            lanes.put(priority, lane);
+        }
+        return lanes;
+    }
+
     public void removeComponent(String subdomain) throws ComponentException {
         ExternalComponent externalComponent = componentsByDomain
                 .remove(subdomain);
         if (externalComponent != null) {
             components.remove(externalComponent.getComponent());
-            externalComponent.shutdown();
+            discard(externalComponent);
         }
     }
 
+    /**
+     * Returns the connection of the given component, so that it can send
+     * packets without looking itself up for each one. The connection stays
+     * the same across reconnections, until the component is removed.
+     * 
+     * @param component
+     *            the component.
+     * @return the connection of the component, or <tt>null</tt> if it was
+     *         not added to this manager.
+     */
+    public ExternalComponent getExternalComponent(Component component) {
+        return components.get(component);
+    }
+
     public void sendPacket(Component component, Packet packet) {
         // Get the ExternalComponent that is wrapping the specified component
         // and ask it to
@@ -263,8 +634,39 @@ public class ExternalComponentManager implements ComponentManager {
         components.get(component).send(packet);
     }
 
+    /**
+     * Sends the given packets in order, flushing the connection only once.
+     *
+     * @param component
+     *            the component sending the packets.
+     * @param packets
+     *            the packets to send.
+     */
+    public void sendPackets(Component component,
+            Collection<? extends Packet> packets) {
+        components.get(component).send(packets);
+    }
+
+    /**
+     * Sends the given packet unless the connection of the component is
+     * congested, see {@link #setWriteWatermarks(long, long)}.
+     *
+     * @param component
+     *            the component sending the packet.
+     * @param packet
+     *            the packet to send.
+     * @return <tt>false</tt> if the packet was not sent.
+     */
+    public boolean trySendPacket(Component component, Packet packet) {
+        return components.get(component).trySend(packet);
+    }
+
     public IQ query(Component component, IQ packet, long timeout)
             throws ComponentException {
+        CircuitBreaker breaker = getCircuitBreaker(packet);
+        if (breaker != null && !breaker.allowRequest()) {
+            return CircuitBreakers.createRejection(packet);
+        }
         final LinkedBlockingQueue<IQ> answer = new LinkedBlockingQueue<IQ>(8);
         ExternalComponent externalComponent = components.get(component);
         externalComponent.addIQResultListener(packet.getID(),
@@ -284,11 +686,31 @@ public class ExternalComponentManager implements ComponentManager {
         } catch (InterruptedException e) {
             // Ignore
         }
+        CircuitBreakers.record(breaker, reply);
         return reply;
     }
 
     public void query(Component component, IQ packet, IQResultListener listener)
             throws ComponentException {
+        final CircuitBreaker breaker = getCircuitBreaker(packet);
+        if (breaker != null) {
+            if (!breaker.allowRequest()) {
+                listener.receivedAnswer(CircuitBreakers.createRejection(packet));
+                return;
+            }
+            final IQResultListener delegate = listener;
+            listener = new IQResultListener() {
+                public void receivedAnswer(IQ packet) {
+                    CircuitBreakers.record(breaker, packet);
+                    delegate.receivedAnswer(packet);
+                }
+
+                public void answerTimeout(String packetId) {
+                    breaker.recordFailure();
+                    delegate.answerTimeout(packetId);
+                }
+            };
+        }
         ExternalComponent externalComponent = components.get(component);
         // Add listenet with a timeout of 5 minutes to prevent memory leaks
         externalComponent.addIQResultListener(packet.getID(), listener, 300000);
@@ -342,6 +764,48 @@ public class ExternalComponentManager implements ComponentManager {
         this.connectTimeout = connectTimeout;
     }
 
+    /**
+     * Returns the maximum number of received packets each component queues
+     * for its processing threads.
+     * 
+     * @return the maximum size of the processing queues.
+     */
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of received packets each component added from
+     * now on queues for its processing threads or its lane of the shared
+     * pool. Once a queue is full, packets
+     * are processed on the thread reading the connection, which stops reading
+     * until the queue has room again. The queues are unbounded by default.
+     * 
+     * @param maxQueueSize
+     *            the maximum size of the processing queues.
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        if (maxQueueSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum queue size must be positive");
+        }
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * Returns the number of packets received for the given component and
+     * waiting to be processed.
+     * 
+     * @param component
+     *            the component.
+     * @return the size of the component's processing queue.
+     */
+    public int getQueueSize(Component component) {
+        ExternalComponent externalComponent = components.get(component);
+        return externalComponent == null ? 0 : externalComponent
+                .getQueueSize();
+    }
+
     public boolean isExternalMode() {
         return true;
     }
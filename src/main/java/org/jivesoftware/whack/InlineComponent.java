@@ -0,0 +1,27 @@
+package org.jivesoftware.whack;
+
+import org.xmpp.component.Component;
+import org.xmpp.packet.Packet;
+
+/**
+ * A component that can process packets on the thread handing them over.
+ * {@link ExternalComponent} already processes each received packet on a
+ * thread of its own pool, so a component that queues packets to a pool of its
+ * own again, like tinder's <tt>AbstractComponent</tt>, adds a second queue, a
+ * second context switch and, if that queue is bounded, a second place where
+ * packets get dropped. Implementations let the pool of the
+ * {@link ExternalComponent} be the only one.
+ */
+public interface InlineComponent extends Component {
+
+    /**
+     * Processes the given packet on the calling thread.
+     *
+     * @param packet
+     *            the received packet.
+     * @return <tt>true</tt> if the packet was processed, <tt>false</tt> if
+     *         inline processing is turned off and
+     *         {@link Component#processPacket(Packet)} must be called instead.
+     */
+    boolean processInline(Packet packet);
+}
@@ -0,0 +1,68 @@
+package org.jivesoftware.whack;
+
+import org.dom4j.Element;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Packet;
+
+/**
+ * The class of traffic a received packet belongs to. Each class is processed
+ * by a lane of its own, so answers to the queries a component sent and
+ * keep-alive pings are not held up behind a backlog of messages, which would
+ * make the queries time out and the server drop the link.
+ */
+public enum Priority {
+
+    /**
+     * Answers to queries sent by the component, and pings.
+     */
+    CONTROL(4),
+    /**
+     * Other queries.
+     */
+    INTERACTIVE(2),
+    /**
+     * Messages and presences.
+     */
+    BULK(1);
+
+    private static final String PING_NAMESPACE = "urn:xmpp:ping";
+
+    private final int defaultWeight;
+
+    private Priority(int defaultWeight) {
+        this.defaultWeight = defaultWeight;
+    }
+
+    /**
+     * Returns the share of the threads the lane of this class gets by
+     * default, relative to the other classes.
+     *
+     * @return the default weight.
+     */
+    public int getDefaultWeight() {
+        return defaultWeight;
+    }
+
+    /**
+     * Returns the class of the given packet.
+     *
+     * @param packet
+     *            a received packet.
+     * @return the class of the packet.
+     */
+    public static Priority of(Packet packet) {
+        if (!(packet instanceof IQ)) {
+            return BULK;
+        }
+        IQ iq = (IQ) packet;
+        IQ.Type type = iq.getType();
+        if (type == IQ.Type.result || type == IQ.Type.error) {
+            return CONTROL;
+        }
+        Element child = iq.getChildElement();
+        if (child != null && PING_NAMESPACE.equals(child.getNamespaceURI())) {
+            return CONTROL;
+        }
+        return INTERACTIVE;
+    }
+}
@@ -0,0 +1,223 @@
+package org.jivesoftware.whack;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.util.ConcurrentCache;
+import org.jivesoftware.smack.util.JIDCache;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.PacketError;
+
+/**
+ * Limits the rate at which each sender may send packets to a component, so
+ * that a single chatty or abusive user cannot take the threads processing
+ * the packets of everybody else. Each bare JID gets a token bucket, refilled
+ * at a steady rate up to a burst size, and each packet takes a token. A
+ * packet finding the bucket of its sender empty is rejected.
+ * <p>
+ *
+ * Packets are checked as they are read, before their addresses are
+ * prepared, so buckets are keyed by the prepared bare JID looked up in the
+ * {@link JIDCache}. A sender writing its address in another case therefore
+ * still takes from the same bucket.
+ * <p>
+ *
+ * Buckets are kept in a {@link ConcurrentCache}, bounded to a number of
+ * senders and dropped some time after they were created, so senders that
+ * went quiet do not take memory. A dropped bucket starts over full, which
+ * lets a sender that is over quota all along through one more burst per
+ * lifetime of its bucket.
+ */
+public class SenderQuota {
+
+    /**
+     * The default maximum number of senders whose buckets are kept.
+     */
+    public static final int DEFAULT_MAX_SENDERS = 10000;
+
+    private final double rate;
+    private final int burst;
+    private final ConcurrentCache<String, Bucket> buckets;
+    private volatile PacketError.Condition rejectCondition = PacketError.Condition.resource_constraint;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a quota for up to {@link #DEFAULT_MAX_SENDERS} senders.
+     *
+     * @param rate
+     *            the number of packets per second a sender may send.
+     * @param burst
+     *            the number of packets a sender may send at once.
+     */
+    public SenderQuota(double rate, int burst) {
+        this(rate, burst, DEFAULT_MAX_SENDERS);
+    }
+
+    /**
+     * Creates a quota.
+     *
+     * @param rate
+     *            the number of packets per second a sender may send.
+     * @param burst
+     *            the number of packets a sender may send at once.
+     * @param maxSenders
+     *            the maximum number of senders whose buckets are kept.
+     */
+    public SenderQuota(double rate, int burst, int maxSenders) {
+        // Keep buckets long enough to refill ten times over, so that dropping
+        // them adds little to the rate
+        this(rate, burst, maxSenders, Math.max(60000,
+                (long) (10000 * burst / rate)));
+    }
+
+    /**
+     * Creates a quota whose buckets are dropped the given time after they
+     * were created.
+     */
+    SenderQuota(double rate, int burst, int maxSenders, long lifetime) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Rate must be positive");
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("Burst must be positive");
+        }
+        this.rate = rate;
+        this.burst = burst;
+        this.buckets = new ConcurrentCache<String, Bucket>(maxSenders,
+                lifetime);
+    }
+
+    /**
+     * Takes a token from the bucket of the given sender.
+     *
+     * @param sender
+     *            the sender of a packet, may be <tt>null</tt> for packets
+     *            from the server, which are always admitted.
+     * @return <tt>true</tt> if the packet is admitted, <tt>false</tt> if the
+     *         sender is over quota.
+     */
+    public boolean tryAcquire(JID sender) {
+        if (sender == null) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        String key = getKey(sender);
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket(burst);
+            buckets.put(key, bucket);
+        }
+        if (bucket.tryTake(rate, burst)) {
+            admitted.incrementAndGet();
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Returns the error condition answered to IQ requests over quota.
+     *
+     * @return the error condition.
+     */
+    public PacketError.Condition getRejectCondition() {
+        return rejectCondition;
+    }
+
+    /**
+     * Sets the error condition answered to IQ requests over quota. The
+     * default is <tt>resource-constraint</tt>.
+     *
+     * @param rejectCondition
+     *            the error condition.
+     */
+    public void setRejectCondition(PacketError.Condition rejectCondition) {
+        this.rejectCondition = rejectCondition;
+    }
+
+    /**
+     * Returns the number of packets admitted.
+     *
+     * @return the number of admitted packets.
+     */
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    /**
+     * Returns the number of packets rejected because their sender was over
+     * quota.
+     *
+     * @return the number of rejected packets.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of packets of the given sender rejected since its
+     * bucket was created.
+     *
+     * @param sender
+     *            the sender.
+     * @return the number of rejected packets of the sender.
+     */
+    public long getRejectedCount(JID sender) {
+        Bucket bucket = buckets.get(getKey(sender));
+        return bucket == null ? 0 : bucket.getRejected();
+    }
+
+    /**
+     * Returns the prepared bare JID of the given sender.
+     */
+    private static String getKey(JID sender) {
+        String bareJID = sender.toBareJID();
+        try {
+            return JIDCache.getJID(bareJID).toBareJID();
+        } catch (IllegalArgumentException e) {
+            // Not a valid address, the server would not have routed it
+            return bareJID;
+        }
+    }
+
+    /**
+     * Returns the number of senders whose buckets are kept.
+     *
+     * @return an upper bound of the number of senders.
+     */
+    public int getSenderCount() {
+        return buckets.size();
+    }
+
+    /**
+     * The tokens of a sender.
+     */
+    private static final class Bucket {
+
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private long rejected;
+
+        Bucket(int burst) {
+            this.tokens = burst;
+        }
+
+        synchronized boolean tryTake(double rate, int burst) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilledAt) * rate
+                    / 1000000000);
+            refilledAt = now;
+            if (tokens < 1) {
+                rejected++;
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized long getRejected() {
+            return rejected;
+        }
+    }
+}
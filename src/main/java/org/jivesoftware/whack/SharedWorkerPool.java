@@ -0,0 +1,543 @@
+package org.jivesoftware.whack;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of threads shared by the components of an
+ * {@link ExternalComponentManager}, instead of each component keeping a pool
+ * of its own. Idle threads are available to whichever component has work, so
+ * a busy component can use the capacity that idle ones are not using.
+ * <p>
+ *
+ * Each component gets a {@link Lane}, its own queue of received packets. A
+ * lane with pending packets takes turns with the other lanes to run on the
+ * shared threads. In each turn it processes up to its weight times
+ * {@link #getQuantum()} packets before going to the back of the line, so
+ * lanes share the threads in proportion to their weights. The number of
+ * threads a lane may use at a time and the number of packets it may queue are
+ * limited per lane. Once a lane's queue is full, packets are processed on the
+ * thread handing them over, which slows down the reader of that component
+ * only.
+ * <p>
+ *
+ * Once a priority lane is created (see
+ * {@link #createPriorityLane(int, int, int)}), the other lanes together use
+ * all threads but one, so packets of priority lanes, like answers to queries
+ * and pings, always find a thread even when the other lanes keep every
+ * thread busy.
+ */
+public class SharedWorkerPool {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(SharedWorkerPool.class);
+
+    /**
+     * The default number of packets processed per turn and unit of weight.
+     */
+    public static final int DEFAULT_QUANTUM = 8;
+
+    private final ThreadPoolExecutor executor;
+    private volatile int threads;
+    private final int quantum;
+
+    private final AtomicInteger regularRunning = new AtomicInteger();
+    private volatile int regularLimit;
+    private volatile boolean priorityLanes;
+    private final Queue<Lane> waitingLanes = new ConcurrentLinkedQueue<Lane>();
+
+    /**
+     * Creates a pool with the given number of threads.
+     *
+     * @param threads
+     *            the maximum number of threads.
+     */
+    public SharedWorkerPool(int threads) {
+        this(threads, DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Creates a pool with the given number of threads.
+     *
+     * @param threads
+     *            the maximum number of threads.
+     * @param quantum
+     *            the number of packets a lane processes per turn and unit of
+     *            weight.
+     */
+    public SharedWorkerPool(int threads, int quantum) {
+        this(threads, quantum, "whack-shared-pool-");
+    }
+
+    /**
+     * Creates a pool whose threads are named with the given prefix.
+     */
+    SharedWorkerPool(int threads, int quantum, final String threadNamePrefix) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "Number of threads must be positive");
+        }
+        if (quantum <= 0) {
+            throw new IllegalArgumentException("Quantum must be positive");
+        }
+        this.threads = threads;
+        this.regularLimit = threads;
+        this.quantum = quantum;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, threadNamePrefix
+                                + threadNumber.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Creates a lane for a component.
+     *
+     * @param weight
+     *            the share of the threads the lane gets when lanes compete
+     *            for them, relative to the weights of the other lanes.
+     * @param maxConcurrency
+     *            the maximum number of threads the lane uses at a time.
+     * @param maxQueueSize
+     *            the maximum number of packets the lane queues.
+     * @return the new lane.
+     */
+    public Lane createLane(int weight, int maxConcurrency, int maxQueueSize) {
+        return new Lane(weight, maxConcurrency, maxQueueSize, false);
+    }
+
+    /**
+     * Creates a lane that may use the thread the other lanes leave free. From
+     * then on, lanes created with {@link #createLane(int, int, int)} use all
+     * threads but one between them, unless the pool has a single thread.
+     *
+     * @param weight
+     *            the share of the threads the lane gets when lanes compete
+     *            for them, relative to the weights of the other lanes.
+     * @param maxConcurrency
+     *            the maximum number of threads the lane uses at a time.
+     * @param maxQueueSize
+     *            the maximum number of packets the lane queues.
+     * @return the new lane.
+     */
+    public Lane createPriorityLane(int weight, int maxConcurrency,
+            int maxQueueSize) {
+        Lane lane = new Lane(weight, maxConcurrency, maxQueueSize, true);
+        synchronized (this) {
+            priorityLanes = true;
+            regularLimit = getRegularLimit(threads);
+        }
+        return lane;
+    }
+
+    /**
+     * Returns the threads the lanes other than priority lanes share in a pool
+     * of the given size.
+     */
+    private int getRegularLimit(int threads) {
+        return priorityLanes ? Math.max(1, threads - 1) : threads;
+    }
+
+    /**
+     * Takes one of the threads the lanes other than priority lanes share.
+     */
+    private boolean acquireRegular() {
+        while (true) {
+            int current = regularRunning.get();
+            if (current >= regularLimit) {
+                return false;
+            }
+            if (regularRunning.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void releaseRegular() {
+        regularRunning.decrementAndGet();
+        wakeWaitingLanes();
+    }
+
+    /**
+     * Queues a lane that found no thread left for it, until one is released.
+     */
+    private void waitForThread(Lane lane) {
+        if (lane.waiting.compareAndSet(false, true)) {
+            waitingLanes.offer(lane);
+        }
+        // A thread may have been released in the meantime
+        wakeWaitingLanes();
+    }
+
+    private void wakeWaitingLanes() {
+        Lane lane;
+        while (regularRunning.get() < regularLimit
+                && (lane = waitingLanes.poll()) != null) {
+            lane.waiting.set(false);
+            lane.schedule();
+        }
+    }
+
+    /**
+     * Returns the number of packets a lane processes per turn and unit of
+     * weight.
+     *
+     * @return the quantum.
+     */
+    public int getQuantum() {
+        return quantum;
+    }
+
+    /**
+     * Returns the maximum number of threads of the pool.
+     *
+     * @return the number of threads.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Changes the maximum number of threads of the pool. Lanes waiting for a
+     * thread get the added ones right away, while threads no longer needed
+     * stop once they finish their turn and time out.
+     *
+     * @param threads
+     *            the new maximum number of threads.
+     */
+    public synchronized void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(
+                    "Number of threads must be positive");
+        }
+        // The core size may never exceed the maximum size
+        if (threads > this.threads) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        this.threads = threads;
+        regularLimit = getRegularLimit(threads);
+        wakeWaitingLanes();
+    }
+
+    /**
+     * Returns the number of threads currently processing packets.
+     *
+     * @return the number of active threads.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Stops the threads of the pool once the packets already queued are
+     * processed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Returns whether the pool was shut down.
+     *
+     * @return <tt>true</tt> if the pool was shut down.
+     */
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * The queue of received packets of one component.
+     */
+    public class Lane implements Executor {
+
+        private final int weight;
+        private volatile int maxConcurrency;
+        private final int maxQueueSize;
+        private final boolean priority;
+        private final AtomicBoolean waiting = new AtomicBoolean();
+
+        private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong queueNanos = new AtomicLong();
+        private final AtomicLong serviceNanos = new AtomicLong();
+        private volatile boolean shutdown;
+
+        private final Runnable drainer = new Runnable() {
+            public void run() {
+                drain();
+            }
+        };
+
+        private Lane(int weight, int maxConcurrency, int maxQueueSize,
+                boolean priority) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Weight must be positive");
+            }
+            if (maxConcurrency <= 0) {
+                throw new IllegalArgumentException(
+                        "Maximum concurrency must be positive");
+            }
+            if (maxQueueSize <= 0) {
+                throw new IllegalArgumentException(
+                        "Maximum queue size must be positive");
+            }
+            this.weight = weight;
+            this.maxConcurrency = maxConcurrency;
+            this.maxQueueSize = maxQueueSize;
+            this.priority = priority;
+        }
+
+        /**
+         * Queues the given task, or runs it on the calling thread if the lane
+         * is full. Tasks handed over after {@link #shutdown()} are dropped.
+         */
+        public void execute(Runnable task) {
+            if (shutdown) {
+                return;
+            }
+            if (size.incrementAndGet() > maxQueueSize) {
+                size.decrementAndGet();
+                run(task);
+                return;
+            }
+            queue.offer(new Entry(task));
+            schedule();
+        }
+
+        /**
+         * Hands a turn to the shared threads unless the lane already uses as
+         * many as it may, or waits for a thread if the other lanes use all
+         * those left to them.
+         */
+        private void schedule() {
+            while (true) {
+                int current = running.get();
+                if (current >= maxConcurrency || queue.isEmpty()) {
+                    return;
+                }
+                if (running.compareAndSet(current, current + 1)) {
+                    if (!priority && !acquireRegular()) {
+                        running.decrementAndGet();
+                        waitForThread(this);
+                        return;
+                    }
+                    try {
+                        executor.execute(drainer);
+                    } catch (RuntimeException e) {
+                        release();
+                        throw e;
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void release() {
+            running.decrementAndGet();
+            if (!priority) {
+                releaseRegular();
+            }
+        }
+
+        private void drain() {
+            try {
+                int budget = weight * quantum;
+                Entry entry;
+                while (budget-- > 0 && (entry = queue.poll()) != null) {
+                    size.decrementAndGet();
+                    queueNanos.addAndGet(System.nanoTime() - entry.queuedAt);
+                    run(entry.task);
+                }
+            } finally {
+                release();
+            }
+            // Go to the back of the line if there is more to do
+            schedule();
+        }
+
+        private void run(Runnable task) {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.error("Error processing packet", e);
+            }
+            serviceNanos.addAndGet(System.nanoTime() - start);
+            completed.incrementAndGet();
+        }
+
+        /**
+         * Returns the number of packets waiting in this lane.
+         *
+         * @return the size of the queue.
+         */
+        public int getQueueSize() {
+            return size.get();
+        }
+
+        /**
+         * Returns the number of packets processed by this lane.
+         *
+         * @return the number of completed tasks.
+         */
+        public long getCompletedCount() {
+            return completed.get();
+        }
+
+        /**
+         * Returns the total time the packets processed by this lane waited in
+         * its queue.
+         *
+         * @return the total queueing delay in ns.
+         */
+        public long getQueueNanos() {
+            return queueNanos.get();
+        }
+
+        /**
+         * Returns the total time spent processing the packets of this lane.
+         *
+         * @return the total processing time in ns.
+         */
+        public long getServiceNanos() {
+            return serviceNanos.get();
+        }
+
+        /**
+         * Returns the share of the threads this lane gets.
+         *
+         * @return the weight of the lane.
+         */
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Returns whether this lane may use the thread the other lanes leave
+         * free.
+         *
+         * @return <tt>true</tt> for a priority lane.
+         */
+        public boolean isPriority() {
+            return priority;
+        }
+
+        /**
+         * Returns the most threads this lane can get, i.e. those of the pool
+         * for a priority lane, and those left to the other lanes otherwise.
+         *
+         * @return the number of threads available to the lane.
+         */
+        public int getAvailableThreads() {
+            return priority ? threads : regularLimit;
+        }
+
+        /**
+         * Returns the most threads this lane could get if the pool had the
+         * given number of threads.
+         */
+        int getAvailableThreads(int threads) {
+            return priority ? threads : getRegularLimit(threads);
+        }
+
+        /**
+         * Returns the smallest pool in which this lane can use as many threads
+         * as its maximum concurrency lets it.
+         */
+        int getThreadsNeeded() {
+            return priority || !priorityLanes ? maxConcurrency
+                    : maxConcurrency + 1;
+        }
+
+        /**
+         * Returns the pool this lane belongs to.
+         */
+        SharedWorkerPool getPool() {
+            return SharedWorkerPool.this;
+        }
+
+        /**
+         * Returns the maximum number of threads this lane uses at a time.
+         *
+         * @return the maximum concurrency of the lane.
+         */
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        /**
+         * Changes the maximum number of threads this lane uses at a time.
+         * Threads already processing packets of the lane finish their turn.
+         *
+         * @param maxConcurrency
+         *            the new maximum concurrency of the lane.
+         */
+        public void setMaxConcurrency(int maxConcurrency) {
+            if (maxConcurrency <= 0) {
+                throw new IllegalArgumentException(
+                        "Maximum concurrency must be positive");
+            }
+            int added = maxConcurrency - this.maxConcurrency;
+            this.maxConcurrency = maxConcurrency;
+            // Put the queued packets on the threads the lane may now use
+            for (int i = 0; i < added; i++) {
+                schedule();
+            }
+        }
+
+        /**
+         * Returns whether this lane stopped accepting packets.
+         *
+         * @return <tt>true</tt> if the lane was shut down.
+         */
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        /**
+         * Stops accepting packets. The packets already queued are still
+         * processed.
+         */
+        public void shutdown() {
+            shutdown = true;
+        }
+    }
+
+    /**
+     * A queued packet and the time it was queued.
+     */
+    private static final class Entry {
+
+        final Runnable task;
+        final long queuedAt = System.nanoTime();
+
+        Entry(Runnable task) {
+            this.task = task;
+        }
+    }
+}
@@ -83,7 +83,19 @@ class SocketReadThread extends Thread {
      * Read the incoming stream until it ends.
      */
     private void readStream() throws Exception {
+        try {
+            readPackets();
+        } finally {
+            // Hand over the packets read so far, before a new connection may
+            // start reading
+            component.flushReadBatches();
+        }
+    }
+
+    private void readPackets() throws Exception {
         while (!shutdown) {
+            // Stop reading while the server does not read what we send
+            component.awaitWritable();
             Element doc = reader.parseDocument().getRootElement();
 
             if (doc == null) {
@@ -96,17 +108,19 @@ class SocketReadThread extends Thread {
             Packet packet;
             String tag = doc.getName();
             if ("message".equals(tag)) {
-                packet = new Message(doc);
+                packet = new Message(doc, true);
             } else if ("presence".equals(tag)) {
-                packet = new Presence(doc);
+                packet = new Presence(doc, true);
             } else if ("iq".equals(tag)) {
                 packet = getIQ(doc);
             } else {
                 throw new XmlPullParserException(
                         "Unknown packet type was read: " + tag);
             }
-            // Request the component to process the received packet
-            component.processPacket(packet);
+            // Addresses are prepared by the thread processing the packet, see
+            // ExternalComponent#deliver. Request the component to process the received packet, in a batch
+            // with the next ones if they are already there
+            component.processReadPacket(packet);
         }
     }
 
@@ -115,7 +129,7 @@ class SocketReadThread extends Thread {
         if (query != null && "jabber:iq:roster".equals(query.getNamespaceURI())) {
             return new Roster(doc);
         } else {
-            return new IQ(doc);
+            return new IQ(doc, true);
         }
     }
 
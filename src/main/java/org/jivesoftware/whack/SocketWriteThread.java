@@ -0,0 +1,276 @@
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.xmpp.packet.Packet;
+
+/**
+ * Writes the packets sent by a component to the socket, so that the threads
+ * sending them only queue them instead of waiting for the server to read.
+ * <p>
+ *
+ * The number of characters queued is kept between two watermarks. Once it
+ * goes above the high watermark, the connection is congested: the reader of
+ * the component stops reading, and threads sending packets wait, until the
+ * queue drains below the low watermark. The threads processing packets and
+ * the socket writer then no longer feed each other while the server is slow,
+ * and the queue stays bounded.
+ * <p>
+ *
+ * Packets are serialized when queued, so later changes to them are not
+ * sent, except for {@link WritablePacket}s: those are written straight to
+ * the socket by this thread, so streamed stanzas are never held in memory
+ * whole. Their length is not known until then, so each of them counts as
+ * {@link #WRITABLE_PACKET_LENGTH} characters against the watermarks.
+ */
+class SocketWriteThread extends Thread {
+
+    private final ExternalComponent component;
+    private final Writer writer;
+    private final long lowWatermark;
+    private final long highWatermark;
+
+    /**
+     * The number of characters a queued {@link WritablePacket} counts as.
+     */
+    static final int WRITABLE_PACKET_LENGTH = 1024;
+    /**
+     * Queued once no more stanzas are accepted, to stop the thread once the
+     * stanzas before it are written.
+     */
+    private static final Object END = new Object();
+
+    /**
+     * The queued stanzas, serialized or as {@link WritablePacket}s.
+     */
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+    private final Object congestion = new Object();
+    private long queued;
+    private boolean congested;
+    private boolean closed;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Create dedicated write thread for this socket.
+     *
+     * @param component
+     *            The component for which this thread is writing for
+     * @param writer
+     *            The writer of the socket
+     * @param lowWatermark
+     *            The number of queued characters below which the connection
+     *            is no longer congested
+     * @param highWatermark
+     *            The number of queued characters above which the connection
+     *            is congested
+     */
+    public SocketWriteThread(ExternalComponent component, Writer writer,
+            long lowWatermark, long highWatermark) {
+        super("Component socket writer");
+        this.component = component;
+        this.writer = writer;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * Queues the given packet.
+     *
+     * @param packet
+     *            the packet to write.
+     * @param force
+     *            whether to queue it even if the connection is congested.
+     * @return <tt>false</tt> if the connection is congested and the packet
+     *         was not queued.
+     */
+    public boolean offer(Packet packet, boolean force) {
+        Object stanza = toStanza(packet);
+        synchronized (congestion) {
+            if (shutdown || closed) {
+                // Dropped, as when writing to a closed socket
+                return true;
+            }
+            if (congested && !force) {
+                return false;
+            }
+            queue(stanza);
+        }
+        return true;
+    }
+
+    /**
+     * Queues the given packets, in order and next to each other.
+     *
+     * @param packets
+     *            the packets to write.
+     */
+    public void offer(Collection<? extends Packet> packets) {
+        Object[] stanzas = new Object[packets.size()];
+        int i = 0;
+        for (Packet packet : packets) {
+            stanzas[i++] = toStanza(packet);
+        }
+        synchronized (congestion) {
+            if (shutdown || closed) {
+                return;
+            }
+            for (Object stanza : stanzas) {
+                queue(stanza);
+            }
+        }
+    }
+
+    private static Object toStanza(Packet packet) {
+        return packet instanceof WritablePacket ? packet : packet.toXML();
+    }
+
+    private void queue(Object stanza) {
+        queued += length(stanza);
+        if (queued > highWatermark) {
+            congested = true;
+        }
+        queue.add(stanza);
+    }
+
+    private static int length(Object stanza) {
+        return stanza instanceof String ? ((String) stanza).length()
+                : WRITABLE_PACKET_LENGTH;
+    }
+
+    /**
+     * Waits until the connection is not congested.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitWritable() throws InterruptedException {
+        synchronized (congestion) {
+            while (congested && !shutdown) {
+                congestion.wait();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the connection is congested.
+     */
+    public boolean isCongested() {
+        synchronized (congestion) {
+            return congested;
+        }
+    }
+
+    /**
+     * Returns the number of characters waiting to be written.
+     */
+    public long getQueued() {
+        synchronized (congestion) {
+            return queued;
+        }
+    }
+
+    /**
+     * A dedicated thread loop for writing the queued stanzas, flushing the
+     * socket once the queue is empty.
+     */
+    public void run() {
+        try {
+            boolean end = false;
+            while (!shutdown && !end) {
+                Object stanza = queue.take();
+                synchronized (writer) {
+                    do {
+                        if (stanza == END) {
+                            end = true;
+                            break;
+                        }
+                        write(stanza);
+                        written(length(stanza));
+                    } while ((stanza = queue.poll()) != null);
+                    writer.flush();
+                }
+                component.wrote();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        } catch (IOException e) {
+            failed(e);
+        } catch (RuntimeException e) {
+            // The stream may hold part of a stanza, so it cannot go on
+            failed(e);
+        } finally {
+            release();
+        }
+    }
+
+    private void write(Object stanza) throws IOException {
+        if (stanza instanceof String) {
+            writer.write((String) stanza);
+        } else {
+            ((WritablePacket) stanza).writeTo(writer);
+        }
+    }
+
+    private void failed(Exception e) {
+        if (!shutdown) {
+            component.getManager().getLog().error(e);
+            component.connectionLost();
+        }
+    }
+
+    private void written(int length) {
+        synchronized (congestion) {
+            queued -= length;
+            if (congested && queued <= lowWatermark) {
+                congested = false;
+                congestion.notifyAll();
+            }
+        }
+    }
+
+    private void release() {
+        synchronized (congestion) {
+            congested = false;
+            congestion.notifyAll();
+        }
+    }
+
+    /**
+     * Stops accepting stanzas, and waits until those already queued are
+     * written, or the given time elapsed. Stanzas still queued then are
+     * dropped.
+     *
+     * @param timeout
+     *            the most time to wait, in ms.
+     */
+    public void close(long timeout) {
+        synchronized (congestion) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(END);
+        }
+        if (Thread.currentThread() != this) {
+            try {
+                join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        shutdown();
+    }
+
+    /**
+     * Asks the thread to stop writing. Stanzas still queued are dropped.
+     */
+    public void shutdown() {
+        shutdown = true;
+        release();
+        if (Thread.currentThread() != this) {
+            interrupt();
+        }
+    }
+}
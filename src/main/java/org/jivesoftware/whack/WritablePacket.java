@@ -0,0 +1,31 @@
+package org.jivesoftware.whack;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A packet that knows how to serialize itself straight to the connection
+ * writer. {@link ExternalComponent#send(org.xmpp.packet.Packet)} uses this
+ * method instead of serializing the DOM of the packet, which lets
+ * pre-serialized or streamed stanzas skip building a full element tree.
+ * <p>
+ *
+ * Implementations must write exactly one well-formed stanza.
+ */
+public interface WritablePacket {
+
+    /**
+     * Writes the XML of this packet to the given writer, and flushes it
+     * afterwards if needed. The writer is the socket writer, locked for the
+     * whole call. Without write watermarks, it is called by the thread
+     * sending the packet. With write watermarks, it is called later by the
+     * thread writing the queued packets, so the packet must not change once
+     * sent.
+     *
+     * @param writer
+     *            the writer of the component connection.
+     * @throws IOException
+     *             if the packet could not be written.
+     */
+    void writeTo(Writer writer) throws IOException;
+}
@@ -0,0 +1,93 @@
+package org.jivesoftware.whack.util;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates packet ids that are numbers underneath, so that responses can be
+ * matched to requests by a <tt>long</tt> instead of a string. An id is the
+ * letter <tt>w</tt> followed by the number in base 36, e.g. <tt>w1bj4qx</tt>.
+ * The sequence starts at a random value, so ids are not reused across
+ * restarts.
+ * <p>
+ *
+ * {@link #decode(String)} only accepts the exact encoding of a number, so
+ * every id it accepts maps to a single number and back. Ids generated
+ * elsewhere that happen to look like one of these are therefore still
+ * matched consistently.
+ */
+public final class PacketIDs {
+
+    private static final char PREFIX = 'w';
+    private static final int RADIX = 36;
+    private static final int MAX_LENGTH = 1 + Long.toString(Long.MAX_VALUE,
+            RADIX).length();
+
+    private static final AtomicLong sequence = new AtomicLong(
+            new Random().nextInt() & 0x7fffffffL);
+
+    private PacketIDs() {
+        // Not instantiable.
+    }
+
+    /**
+     * Returns a new id.
+     *
+     * @return the encoded id.
+     */
+    public static String next() {
+        return encode(nextLong());
+    }
+
+    /**
+     * Returns a new id, as a number.
+     *
+     * @return the number of the id, always positive.
+     */
+    public static long nextLong() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * Returns the id of the given number.
+     *
+     * @param id
+     *            a positive number.
+     * @return the encoded id.
+     */
+    public static String encode(long id) {
+        return PREFIX + Long.toString(id, RADIX);
+    }
+
+    /**
+     * Returns the number of the given id.
+     *
+     * @param id
+     *            a packet id, may be <tt>null</tt>.
+     * @return the number of the id, or zero if the id is not the encoding of
+     *         a positive number.
+     */
+    public static long decode(String id) {
+        if (id == null || id.length() < 2 || id.length() > MAX_LENGTH
+                || id.charAt(0) != PREFIX || id.charAt(1) == '0') {
+            return 0;
+        }
+        long value = 0;
+        for (int i = 1; i < id.length(); i++) {
+            char c = id.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'z') {
+                digit = c - 'a' + 10;
+            } else {
+                return 0;
+            }
+            if (value > (Long.MAX_VALUE - digit) / RADIX) {
+                return 0;
+            }
+            value = value * RADIX + digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,258 @@
+package org.jivesoftware.whack.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A table of the requests awaiting a response, keyed by the number of their
+ * packet id (see {@link PacketIDs}) and holding the value to notify together
+ * with the time after which it expires. Keys are kept in primitive arrays with
+ * open addressing, so an entry costs no boxed key, no map entry and no id
+ * string. The table is split into stripes locked independently, so threads
+ * adding requests and threads matching responses rarely wait for each other.
+ */
+public class PendingTable<V> {
+
+    /**
+     * Notified of the entries that expired.
+     */
+    public interface ExpiryListener<V> {
+
+        void expired(long key, V value);
+    }
+
+    private static final int STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public PendingTable() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static int hash(long key) {
+        // Finalizer of MurmurHash3, since ids are sequential
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[(hash >>> 28) & (STRIPES - 1)];
+    }
+
+    /**
+     * Adds an entry, replacing the one with the same key if any.
+     *
+     * @param key
+     *            a positive key.
+     * @param value
+     *            the value, not <tt>null</tt>.
+     * @param expiresAt
+     *            the time in ms after which the entry expires, or zero if it
+     *            never does.
+     */
+    public void put(long key, V value, long expiresAt) {
+        if (key <= 0) {
+            throw new IllegalArgumentException("Key must be positive");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null");
+        }
+        int hash = hash(key);
+        stripe(hash).put(key, hash, value, expiresAt);
+    }
+
+    /**
+     * Returns the value of the given key.
+     *
+     * @return the value, or <tt>null</tt> if there is no such entry.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int hash = hash(key);
+        return (V) stripe(hash).get(key, hash);
+    }
+
+    /**
+     * Removes the entry of the given key.
+     *
+     * @return the removed value, or <tt>null</tt> if there was no such entry.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int hash = hash(key);
+        return (V) stripe(hash).remove(key, hash, null);
+    }
+
+    /**
+     * Removes the entry of the given key if it holds the given value.
+     *
+     * @return whether the entry was removed.
+     */
+    public boolean remove(long key, V value) {
+        int hash = hash(key);
+        return stripe(hash).remove(key, hash, value) != null;
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * Removes the entries that expired at the given time, and notifies the
+     * listener of each of them outside of any lock.
+     *
+     * @return the number of expired entries.
+     */
+    @SuppressWarnings("unchecked")
+    public int expire(long now, ExpiryListener<V> listener) {
+        int expired = 0;
+        List<Object> removed = new ArrayList<Object>();
+        for (Stripe stripe : stripes) {
+            removed.clear();
+            stripe.expire(now, removed);
+            for (int i = 0; i < removed.size(); i += 2) {
+                listener.expired((Long) removed.get(i), (V) removed.get(i + 1));
+            }
+            expired += removed.size() / 2;
+        }
+        return expired;
+    }
+
+    /**
+     * A linear probing hash table, with zero marking free slots and entries
+     * shifted back on removal instead of leaving tombstones.
+     */
+    private static final class Stripe {
+
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private Object[] values = new Object[INITIAL_CAPACITY];
+        private long[] deadlines = new long[INITIAL_CAPACITY];
+        private int size;
+
+        synchronized void put(long key, int hash, Object value, long expiresAt) {
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+            deadlines[i] = expiresAt;
+        }
+
+        synchronized Object get(long key, int hash) {
+            int i = indexOf(key, hash);
+            return i < 0 ? null : values[i];
+        }
+
+        synchronized Object remove(long key, int hash, Object expected) {
+            int i = indexOf(key, hash);
+            if (i < 0 || (expected != null && values[i] != expected)) {
+                return null;
+            }
+            Object value = values[i];
+            delete(i);
+            return value;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void expire(long now, List<Object> removed) {
+            if (size == 0) {
+                return;
+            }
+            int first = removed.size();
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0 && deadlines[i] != 0 && deadlines[i] <= now) {
+                    removed.add(keys[i]);
+                    removed.add(values[i]);
+                }
+            }
+            for (int i = first; i < removed.size(); i += 2) {
+                long key = (Long) removed.get(i);
+                delete(indexOf(key, hash(key)));
+            }
+        }
+
+        private int indexOf(long key, int hash) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == key) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void delete(int i) {
+            int mask = keys.length - 1;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (keys[j] == 0) {
+                    break;
+                }
+                int home = hash(keys[j]) & mask;
+                // Move the entry back unless its home slot lies in (i, j]
+                boolean stays = i <= j ? (home > i && home <= j)
+                        : (home > i || home <= j);
+                if (!stays) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    deadlines[i] = deadlines[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            values[i] = null;
+            deadlines[i] = 0;
+            size--;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            long[] oldDeadlines = deadlines;
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            deadlines = new long[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != 0) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (keys[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                    deadlines[i] = oldDeadlines[j];
+                }
+            }
+        }
+    }
+}
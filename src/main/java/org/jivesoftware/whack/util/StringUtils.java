@@ -20,6 +20,7 @@
 
 package org.jivesoftware.whack.util;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -30,12 +31,18 @@ import java.util.Random;
 import java.util.TimeZone;
 
 import org.apache.commons.codec.binary.Base64;
+import org.jivesoftware.smack.util.XmppDateTime;
 
 /**
  * A collection of utility methods for String objects.
  */
 public class StringUtils {
 
+    /**
+     * @deprecated Date formats are not thread-safe, use
+     *             {@link #parseDate(String)} or {@link XmppDateTime} instead.
+     */
+    @Deprecated
     public static final SimpleDateFormat UTC_FORMAT = new SimpleDateFormat(
             "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
 
@@ -43,10 +50,10 @@ public class StringUtils {
         UTC_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
     }
 
-    private static final char[] QUOTE_ENCODE = "&quot;".toCharArray();
-    private static final char[] AMP_ENCODE = "&amp;".toCharArray();
-    private static final char[] LT_ENCODE = "&lt;".toCharArray();
-    private static final char[] GT_ENCODE = "&gt;".toCharArray();
+    private static final String QUOTE_ENCODE = "&quot;";
+    private static final String AMP_ENCODE = "&amp;";
+    private static final String LT_ENCODE = "&lt;";
+    private static final String GT_ENCODE = "&gt;";
 
     /**
      * Returns the name portion of a XMPP address. For example, for the address
@@ -140,9 +147,43 @@ public class StringUtils {
         }
     }
 
+    /**
+     * Returns the index of the first character of the string that
+     * {@link #escapeForXML(String)} would replace, or -1 if there is none.
+     */
+    private static int indexOfXMLEscape(String string, int from) {
+        int len = string.length();
+        for (int i = from; i < len; i++) {
+            char ch = string.charAt(i);
+            if (ch > '>') {
+                continue;
+            }
+            if (ch == '<' || ch == '>' || ch == '"') {
+                return i;
+            }
+            // Do nothing if the string is of the form &#235; (unicode value)
+            if (ch == '&'
+                    && !(len > i + 5 && string.charAt(i + 1) == '#'
+                            && Character.isDigit(string.charAt(i + 2))
+                            && Character.isDigit(string.charAt(i + 3))
+                            && Character.isDigit(string.charAt(i + 4)) && string
+                            .charAt(i + 5) == ';')) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Escapes all necessary characters in the String so that it can be used in
-     * an XML doc.
+     * an XML doc. The string itself is returned if nothing needs escaping.
+     * Apostrophes are not escaped, so the result is not fit for attributes in
+     * single quotes.
+     * <p>
+     * 
+     * Unicode character references with exactly three decimal digits, such as
+     * &#235;, are not escaped. They are copied once, with the text around them;
+     * versions before this one copied the text before such a reference twice.
      * 
      * @param string
      *            the string to escape.
@@ -152,58 +193,68 @@ public class StringUtils {
         if (string == null) {
             return null;
         }
-        char ch;
-        int i = 0;
-        int last = 0;
-        char[] input = string.toCharArray();
-        int len = input.length;
-        StringBuffer out = new StringBuffer((int) (len * 1.3));
-        for (; i < len; i++) {
-            ch = input[i];
-            if (ch > '>') {
-                continue;
-            } else if (ch == '<') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                last = i + 1;
+        int first = indexOfXMLEscape(string, 0);
+        if (first < 0) {
+            return string;
+        }
+        StringBuilder out = new StringBuilder(string.length() + 16);
+        out.append(string, 0, first);
+        try {
+            escapeForXML(string, first, out);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        return out.toString();
+    }
+
+    /**
+     * Escapes all necessary characters in the String, see
+     * {@link #escapeForXML(String)}, and appends the result to the given
+     * output without creating intermediate strings.
+     * 
+     * @param string
+     *            the string to escape.
+     * @param out
+     *            the output to append to.
+     * @return the given output.
+     * @throws IOException
+     *             if the output could not be appended to.
+     */
+    public static final Appendable escapeForXML(String string, Appendable out)
+            throws IOException {
+        if (string != null) {
+            escapeForXML(string, 0, out);
+        }
+        return out;
+    }
+
+    private static void escapeForXML(String string, int from, Appendable out)
+            throws IOException {
+        int last = from;
+        int len = string.length();
+        for (int i = indexOfXMLEscape(string, from); i >= 0; i = indexOfXMLEscape(
+                string, last)) {
+            if (i > last) {
+                out.append(string, last, i);
+            }
+            last = i + 1;
+            switch (string.charAt(i)) {
+            case '<':
                 out.append(LT_ENCODE);
-            } else if (ch == '>') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                last = i + 1;
+                break;
+            case '>':
                 out.append(GT_ENCODE);
-            }
-
-            else if (ch == '&') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                // Do nothing if the string is of the form &#235; (unicode
-                // value)
-                if (!(len > i + 5 && input[i + 1] == '#'
-                        && Character.isDigit(input[i + 2])
-                        && Character.isDigit(input[i + 3])
-                        && Character.isDigit(input[i + 4]) && input[i + 5] == ';')) {
-                    last = i + 1;
-                    out.append(AMP_ENCODE);
-                }
-            } else if (ch == '"') {
-                if (i > last) {
-                    out.append(input, last, i - last);
-                }
-                last = i + 1;
+                break;
+            case '&':
+                out.append(AMP_ENCODE);
+                break;
+            default:
                 out.append(QUOTE_ENCODE);
             }
         }
-        if (last == 0) {
-            return string;
-        }
-        if (i > last) {
-            out.append(input, last, i - last);
+        if (len > last) {
+            out.append(string, last, len);
         }
-        return out.toString();
     }
 
     /**
@@ -359,7 +410,7 @@ public class StringUtils {
 
     /**
      * Parses a textual representation of a Date based on the XMPP standard
-     * format and returns a Date.
+     * format and returns a Date. This method is threadsafe and does not lock.
      * 
      * @param date
      *            the textual representation.
@@ -368,9 +419,7 @@ public class StringUtils {
      *             if the text cannot be parsed.
      */
     public static Date parseDate(String date) throws ParseException {
-        synchronized (UTC_FORMAT) {
-            return UTC_FORMAT.parse(date);
-        }
+        return XmppDateTime.parse(date);
     }
 
     private StringUtils() {
@@ -21,7 +21,6 @@
 package org.jivesoftware.whack.util;
 
 import java.util.Date;
-import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.*;
@@ -41,6 +40,11 @@ public class TaskEngine {
 
     private static TaskEngine instance = new TaskEngine();
 
+    /**
+     * The number of cancelled tasks after which the timer queue is purged.
+     */
+    static final int PURGE_INTERVAL = 1024;
+
     /**
      * Returns a task engine instance (singleton).
      * 
@@ -52,7 +56,8 @@ public class TaskEngine {
 
     private Timer timer;
     private ExecutorService executor;
-    private Map<TimerTask, TimerTaskWrapper> wrappedTasks = new ConcurrentHashMap<TimerTask, TimerTaskWrapper>();
+    private ConcurrentMap<TimerTask, TimerTaskWrapper> wrappedTasks = new ConcurrentHashMap<TimerTask, TimerTaskWrapper>();
+    private final AtomicInteger cancellations = new AtomicInteger();
 
     /**
      * Constructs a new task engine.
@@ -97,6 +102,8 @@ public class TaskEngine {
 
     /**
      * Schedules the specified task for execution after the specified delay.
+     * The task can be cancelled with {@link #cancelScheduledTask(TimerTask)}
+     * until it runs.
      * 
      * @param task
      *            task to be scheduled.
@@ -110,12 +117,16 @@ public class TaskEngine {
      *             cancelled.
      */
     public void schedule(TimerTask task, long delay) {
-        timer.schedule(new TimerTaskWrapper(task), delay);
+        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task, true);
+        wrappedTasks.put(task, taskWrapper);
+        timer.schedule(taskWrapper, delay);
     }
 
     /**
      * Schedules the specified task for execution at the specified time. If the
-     * time is in the past, the task is scheduled for immediate execution.
+     * time is in the past, the task is scheduled for immediate execution. The
+     * task can be cancelled with {@link #cancelScheduledTask(TimerTask)} until
+     * it runs.
      * 
      * @param task
      *            task to be scheduled.
@@ -128,7 +139,9 @@ public class TaskEngine {
      *             cancelled, or timer thread terminated.
      */
     public void schedule(TimerTask task, Date time) {
-        timer.schedule(new TimerTaskWrapper(task), time);
+        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task, true);
+        wrappedTasks.put(task, taskWrapper);
+        timer.schedule(taskWrapper, time);
     }
 
     /**
@@ -168,7 +181,7 @@ public class TaskEngine {
      *             cancelled, or timer thread terminated.
      */
     public void schedule(TimerTask task, long delay, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
+        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task, false);
         wrappedTasks.put(task, taskWrapper);
         timer.schedule(taskWrapper, delay, period);
     }
@@ -209,7 +222,7 @@ public class TaskEngine {
      *             cancelled, or timer thread terminated.
      */
     public void schedule(TimerTask task, Date firstTime, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
+        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task, false);
         wrappedTasks.put(task, taskWrapper);
         timer.schedule(taskWrapper, firstTime, period);
     }
@@ -252,7 +265,7 @@ public class TaskEngine {
      *             cancelled, or timer thread terminated.
      */
     public void scheduleAtFixedRate(TimerTask task, long delay, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
+        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task, false);
         wrappedTasks.put(task, taskWrapper);
         timer.scheduleAtFixedRate(taskWrapper, delay, period);
     }
@@ -294,7 +307,7 @@ public class TaskEngine {
      *             cancelled, or timer thread terminated.
      */
     public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
+        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task, false);
         wrappedTasks.put(task, taskWrapper);
         timer.scheduleAtFixedRate(taskWrapper, firstTime, period);
     }
@@ -302,14 +315,25 @@ public class TaskEngine {
     /**
      * Cancels the execution of a scheduled task.
      * {@link java.util.TimerTask#cancel()}
+     * <p>
+     * 
+     * Cancelling the task itself instead is not enough, since the timer
+     * would still hand it to the thread pool. Cancelled tasks stay in the
+     * queue of the timer until their time comes, so the queue is purged
+     * every {@link #PURGE_INTERVAL} cancellations, which keeps short-lived
+     * timeouts that are mostly cancelled from piling up.
      * 
      * @param task
      *            the scheduled task to cancel.
      */
     public void cancelScheduledTask(TimerTask task) {
         TaskEngine.TimerTaskWrapper taskWrapper = wrappedTasks.remove(task);
-        if (taskWrapper != null) {
-            taskWrapper.cancel();
+        if (taskWrapper != null && taskWrapper.cancel()
+                && cancellations.incrementAndGet() % PURGE_INTERVAL == 0) {
+            Timer timer = this.timer;
+            if (timer != null) {
+                timer.purge();
+            }
         }
     }
 
@@ -335,12 +359,17 @@ public class TaskEngine {
     private class TimerTaskWrapper extends TimerTask {
 
         private TimerTask task;
+        private boolean oneShot;
 
-        public TimerTaskWrapper(TimerTask task) {
+        public TimerTaskWrapper(TimerTask task, boolean oneShot) {
             this.task = task;
+            this.oneShot = oneShot;
         }
 
         public void run() {
+            if (oneShot) {
+                wrappedTasks.remove(task, this);
+            }
             executor.submit(task);
         }
     }
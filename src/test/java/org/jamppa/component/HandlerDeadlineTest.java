@@ -0,0 +1,201 @@
+package org.jamppa.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jamppa.component.handler.AbstractQueryHandler;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.PacketError.Condition;
+
+public class HandlerDeadlineTest {
+
+    private static final long DEADLINE = 50;
+
+    /**
+     * Keeps the packets sent, dropping late answers like
+     * {@link XMPPComponent#sendPacket(Packet)}.
+     */
+    private static class RecordingSender implements PacketSender {
+
+        final HandlerDeadline.Calls calls = new HandlerDeadline.Calls();
+        final List<IQ> sent = new ArrayList<IQ>();
+
+        @Override
+        public synchronized void sendPacket(Packet packet) {
+            if (calls.answer(packet)) {
+                sent.add((IQ) packet);
+            }
+        }
+
+        @Override
+        public Packet syncSendPacket(Packet packet) {
+            throw new UnsupportedOperationException();
+        }
+
+        synchronized List<IQ> getSent() {
+            return new ArrayList<IQ>(sent);
+        }
+
+        /**
+         * Waits for the given number of packets, since the timeout error is
+         * sent after the handler thread is interrupted.
+         */
+        synchronized List<IQ> awaitSent(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (sent.size() < count && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+            return getSent();
+        }
+    }
+
+    /**
+     * Answers asynchronously, leaving the query to the test.
+     */
+    private static class AsyncHandler extends AbstractQueryHandler {
+
+        AsyncHandler() {
+            super("test");
+        }
+
+        @Override
+        public IQ handle(IQ query) {
+            return null;
+        }
+    }
+
+    /**
+     * Answers after the given time, optionally ignoring interrupts.
+     */
+    private static class SlowHandler extends AbstractQueryHandler {
+
+        private final long delay;
+        private final boolean interruptible;
+        volatile boolean interrupted;
+
+        SlowHandler(long delay, boolean interruptible) {
+            super("test");
+            this.delay = delay;
+            this.interruptible = interruptible;
+        }
+
+        @Override
+        public IQ handle(IQ query) {
+            long end = System.currentTimeMillis() + delay;
+            while (System.currentTimeMillis() < end) {
+                if (interruptible) {
+                    try {
+                        Thread.sleep(Math.max(1,
+                                end - System.currentTimeMillis()));
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        break;
+                    }
+                }
+            }
+            return IQ.createResultIQ(query);
+        }
+    }
+
+    private static IQ createQuery(String id) {
+        IQ query = new IQ(IQ.Type.get, id);
+        query.setFrom(new JID("a@example.com/r"));
+        query.setTo(new JID("comp.example.com"));
+        query.setChildElement("query", "test");
+        return query;
+    }
+
+    @Test
+    public void testResultInTime() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        AtomicLong timeouts = new AtomicLong();
+        HandlerDeadline deadline = new HandlerDeadline(DEADLINE,
+                Condition.remote_server_timeout, timeouts, sender.calls);
+        IQ result = deadline.handle(new SlowHandler(0, true), createQuery("1"),
+                sender);
+        assertEquals(IQ.Type.result, result.getType());
+        Thread.sleep(DEADLINE * 3);
+
+        assertTrue(sender.getSent().isEmpty());
+        assertEquals(0, timeouts.get());
+    }
+
+    @Test
+    public void testLateResultIsDropped() {
+        RecordingSender sender = new RecordingSender();
+        AtomicLong timeouts = new AtomicLong();
+        HandlerDeadline deadline = new HandlerDeadline(DEADLINE,
+                Condition.remote_server_timeout, timeouts, sender.calls);
+        SlowHandler handler = new SlowHandler(DEADLINE * 3, false);
+        assertNull(deadline.handle(handler, createQuery("1"), sender));
+
+        List<IQ> sent = sender.getSent();
+        assertEquals(1, sent.size());
+        assertEquals(Condition.remote_server_timeout, sent.get(0).getError()
+                .getCondition());
+        assertEquals(1, timeouts.get());
+        // The interrupt meant for the handler does not leak to the caller
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void testLateHandlerIsInterrupted() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        AtomicLong timeouts = new AtomicLong();
+        HandlerDeadline deadline = new HandlerDeadline(DEADLINE,
+                Condition.remote_server_timeout, timeouts, sender.calls);
+        SlowHandler handler = new SlowHandler(5000, true);
+        long start = System.currentTimeMillis();
+        assertNull(deadline.handle(handler, createQuery("1"), sender));
+
+        assertTrue(handler.interrupted);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, sender.awaitSent(1).size());
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void testAsynchronousAnswerInTime() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        AtomicLong timeouts = new AtomicLong();
+        HandlerDeadline deadline = new HandlerDeadline(DEADLINE,
+                Condition.remote_server_timeout, timeouts, sender.calls);
+        IQ query = createQuery("1");
+        assertNull(deadline.handle(new AsyncHandler(), query, sender));
+        sender.sendPacket(IQ.createResultIQ(query));
+        Thread.sleep(DEADLINE * 3);
+
+        List<IQ> sent = sender.getSent();
+        assertEquals(1, sent.size());
+        assertEquals(IQ.Type.result, sent.get(0).getType());
+        assertEquals(0, timeouts.get());
+    }
+
+    @Test
+    public void testLateAsynchronousAnswerIsDropped()
+            throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        AtomicLong timeouts = new AtomicLong();
+        HandlerDeadline deadline = new HandlerDeadline(DEADLINE,
+                Condition.remote_server_timeout, timeouts, sender.calls);
+        IQ query = createQuery("1");
+        assertNull(deadline.handle(new AsyncHandler(), query, sender));
+        Thread.sleep(DEADLINE * 3);
+        sender.sendPacket(IQ.createResultIQ(query));
+
+        List<IQ> sent = sender.getSent();
+        assertEquals(1, sent.size());
+        assertEquals(Condition.remote_server_timeout, sent.get(0).getError()
+                .getCondition());
+        assertEquals(1, timeouts.get());
+    }
+}
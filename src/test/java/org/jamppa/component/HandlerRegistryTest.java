@@ -0,0 +1,68 @@
+package org.jamppa.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.junit.Test;
+
+public class HandlerRegistryTest {
+
+    private static QName payload(int i) {
+        return QName.get("query", Namespace.get("test:" + i));
+    }
+
+    @Test
+    public void testPutReplacesAndRemoveReturnsTheHandler() {
+        HandlerRegistry<String> registry = new HandlerRegistry<String>();
+        assertNull(registry.get(payload(1)));
+        assertNull(registry.put(payload(1), "first"));
+        assertEquals("first", registry.put(payload(1), "second"));
+        assertEquals("second", registry.get(payload(1)));
+
+        assertNull(registry.remove(payload(2)));
+        assertEquals("second", registry.remove(payload(1)));
+        assertNull(registry.get(payload(1)));
+        assertNull(registry.remove(payload(1)));
+    }
+
+    @Test
+    public void testLookupsSeeEveryCompletedUpdate()
+            throws InterruptedException {
+        final HandlerRegistry<Integer> registry = new HandlerRegistry<Integer>();
+        registry.put(payload(0), 0);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger missing = new AtomicInteger();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (done.getCount() > 0) {
+                    // Never removed, so always found in any snapshot
+                    if (registry.get(payload(0)) == null) {
+                        missing.incrementAndGet();
+                    }
+                }
+            }
+        };
+        reader.start();
+        for (int i = 1; i < 2000; i++) {
+            registry.put(payload(i), i);
+            assertEquals(Integer.valueOf(i), registry.get(payload(i)));
+            if (i > 1) {
+                registry.remove(payload(i - 1));
+            }
+        }
+        done.countDown();
+        reader.join(TimeUnit.SECONDS.toMillis(5));
+
+        assertEquals(0, missing.get());
+        assertEquals(Integer.valueOf(0), registry.get(payload(0)));
+        assertEquals(Integer.valueOf(1999), registry.get(payload(1999)));
+        assertNull(registry.get(payload(1998)));
+    }
+}
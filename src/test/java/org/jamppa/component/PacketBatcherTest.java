@@ -0,0 +1,197 @@
+package org.jamppa.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimerTask;
+
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.jamppa.component.handler.BatchHandler;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+public class PacketBatcherTest {
+
+    private static final QName RECEIPTS = QName.get("request",
+            Namespace.get("urn:xmpp:receipts"));
+
+    /**
+     * Keeps the batches it is called with and the threads calling it, and
+     * answers each batch with the given replies.
+     */
+    private static class RecordingHandler implements BatchHandler<Message> {
+
+        final List<List<Message>> batches = new ArrayList<List<Message>>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        List<? extends Packet> replies = Collections.emptyList();
+
+        @Override
+        public synchronized List<? extends Packet> handle(List<Message> batch) {
+            batches.add(batch);
+            threads.add(Thread.currentThread());
+            notifyAll();
+            return replies;
+        }
+
+        @Override
+        public void setPacketSender(PacketSender packetSender) {
+        }
+
+        synchronized List<List<Message>> awaitBatches(int count)
+                throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (batches.size() < count && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+            return new ArrayList<List<Message>>(batches);
+        }
+
+        synchronized List<List<Message>> getBatches() {
+            return new ArrayList<List<Message>>(batches);
+        }
+    }
+
+    /**
+     * Keeps the packets sent through {@link #sendPackets(Collection)}.
+     */
+    private static class RecordingComponent extends XMPPComponent {
+
+        final List<Collection<? extends Packet>> sent = new ArrayList<Collection<? extends Packet>>();
+
+        RecordingComponent() {
+            super("comp.example.com", "secret", "localhost", 5275);
+        }
+
+        @Override
+        public synchronized void sendPackets(
+                Collection<? extends Packet> packets) {
+            sent.add(packets);
+        }
+    }
+
+    private static Message createMessage(String body) {
+        Message message = new Message();
+        message.setBody(body);
+        message.addChildElement(RECEIPTS.getName(),
+                RECEIPTS.getNamespaceURI());
+        return message;
+    }
+
+    @Test
+    public void testFullBatchIsHandedOverByTheAddingThread() {
+        RecordingHandler handler = new RecordingHandler();
+        PacketBatcher<Message> batcher = new PacketBatcher<Message>(handler,
+                new RecordingComponent(), 3, 60000);
+        batcher.add(createMessage("1"));
+        batcher.add(createMessage("2"));
+        assertTrue(handler.getBatches().isEmpty());
+        batcher.add(createMessage("3"));
+
+        List<List<Message>> batches = handler.getBatches();
+        assertEquals(1, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertEquals("1", batches.get(0).get(0).getBody());
+        assertSame(Thread.currentThread(), handler.threads.get(0));
+    }
+
+    @Test
+    public void testPartialBatchIsHandedOverAfterTheDelay()
+            throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler();
+        PacketBatcher<Message> batcher = new PacketBatcher<Message>(handler,
+                new RecordingComponent(), 10, 30);
+        long start = System.currentTimeMillis();
+        batcher.add(createMessage("1"));
+        batcher.add(createMessage("2"));
+
+        List<List<Message>> batches = handler.awaitBatches(1);
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertTrue(System.currentTimeMillis() - start >= 30);
+        assertTrue(handler.threads.get(0) != Thread.currentThread());
+    }
+
+    @Test
+    public void testStaleTimerDoesNotHandOverTheNextBatch() {
+        RecordingHandler handler = new RecordingHandler();
+        PacketBatcher<Message> batcher = new PacketBatcher<Message>(handler,
+                new RecordingComponent(), 2, 60000);
+        TimerTask stale = new TimerTask() {
+            @Override
+            public void run() {
+            }
+        };
+        batcher.add(createMessage("1"));
+        batcher.add(createMessage("2"));
+        batcher.add(createMessage("3"));
+
+        // Fires as if scheduled for the batch handed over when it filled up
+        batcher.flush(stale);
+        assertEquals(1, handler.getBatches().size());
+
+        batcher.flush();
+        List<List<Message>> batches = handler.getBatches();
+        assertEquals(2, batches.size());
+        assertEquals("3", batches.get(1).get(0).getBody());
+        batcher.flush();
+        assertEquals(2, handler.getBatches().size());
+    }
+
+    @Test
+    public void testShutdownHandsOverCollectedStanzas() {
+        RecordingHandler handler = new RecordingHandler();
+        RecordingComponent component = new RecordingComponent();
+        component.addMessageHandler(RECEIPTS, handler, 10, 60000);
+        component.handleMessage(createMessage("1"));
+        assertTrue(handler.getBatches().isEmpty());
+
+        component.preComponentShutdown();
+        List<List<Message>> batches = handler.getBatches();
+        assertEquals(1, batches.size());
+        assertEquals("1", batches.get(0).get(0).getBody());
+    }
+
+    @Test
+    public void testRemovingTheHandlerHandsOverCollectedStanzas() {
+        RecordingHandler handler = new RecordingHandler();
+        RecordingComponent component = new RecordingComponent();
+        component.addMessageHandler(RECEIPTS, handler, 10, 60000);
+        component.handleMessage(createMessage("1"));
+        component.removeMessageHandler(RECEIPTS);
+        assertEquals(1, handler.getBatches().size());
+
+        // Gone from the component, so no longer flushed on shutdown
+        component.preComponentShutdown();
+        assertEquals(1, handler.getBatches().size());
+    }
+
+    @Test
+    public void testRepliesAreSentTogether() {
+        RecordingHandler handler = new RecordingHandler();
+        RecordingComponent component = new RecordingComponent();
+        PacketBatcher<Message> batcher = new PacketBatcher<Message>(handler,
+                component, 2, 60000);
+        List<Message> replies = new ArrayList<Message>();
+        replies.add(createMessage("reply-1"));
+        replies.add(createMessage("reply-2"));
+        handler.replies = replies;
+        batcher.add(createMessage("1"));
+        batcher.add(createMessage("2"));
+
+        assertEquals(1, component.sent.size());
+        assertSame(replies, component.sent.get(0));
+
+        // No replies, nothing sent
+        handler.replies = null;
+        batcher.add(createMessage("3"));
+        batcher.add(createMessage("4"));
+        assertEquals(1, component.sent.size());
+    }
+}
@@ -0,0 +1,346 @@
+package org.jamppa.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.PacketError.Condition;
+
+public class RequestHedgerTest {
+
+    private static final long DELAY = 30;
+    private static final long TIMEOUT = 200;
+
+    private static final JID PRIMARY = new JID("primary.example.com");
+    private static final JID ALTERNATE = new JID("alternate.example.com");
+
+    /**
+     * Keeps the packets sent and the callbacks awaiting an answer, which the
+     * test answers by hand.
+     */
+    private static class RecordingSender implements AsyncPacketSender {
+
+        final List<IQ> sent = new ArrayList<IQ>();
+        final Map<String, PacketCallback> callbacks = new HashMap<String, PacketCallback>();
+
+        @Override
+        public synchronized void sendPacket(Packet packet) {
+            sent.add((IQ) packet);
+            notifyAll();
+        }
+
+        @Override
+        public Packet syncSendPacket(Packet packet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized void addPacketCallback(Packet packet,
+                PacketCallback packetCallback) {
+            callbacks.put(packet.getID(), packetCallback);
+        }
+
+        @Override
+        public synchronized void removePacketCallback(Packet packet) {
+            callbacks.remove(packet.getID());
+        }
+
+        /**
+         * Waits for the given number of packets, since duplicates are sent
+         * by the timer.
+         */
+        synchronized List<IQ> awaitSent(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (sent.size() < count && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+            return new ArrayList<IQ>(sent);
+        }
+
+        /**
+         * Answers the given request, if still awaited, dropping its callback
+         * like {@link XMPPComponent} does.
+         */
+        void answer(IQ request) {
+            answer(request, IQ.createResultIQ(request));
+        }
+
+        /**
+         * Answers the given request with the given error, if still awaited.
+         */
+        void fail(IQ request, Condition condition) {
+            IQ error = IQ.createResultIQ(request);
+            error.setError(condition);
+            answer(request, error);
+        }
+
+        private void answer(IQ request, IQ response) {
+            PacketCallback callback;
+            synchronized (this) {
+                callback = callbacks.remove(request.getID());
+            }
+            if (callback != null) {
+                callback.handle(response);
+            }
+        }
+
+        synchronized int getCallbackCount() {
+            return callbacks.size();
+        }
+    }
+
+    /**
+     * Keeps the packets it is called with.
+     */
+    private static class RecordingCallback implements PacketCallback {
+
+        final List<IQ> answers = new ArrayList<IQ>();
+
+        @Override
+        public synchronized void handle(Packet packet) {
+            answers.add((IQ) packet);
+            notifyAll();
+        }
+
+        synchronized List<IQ> awaitAnswers(int count)
+                throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (answers.size() < count && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+            return new ArrayList<IQ>(answers);
+        }
+
+        synchronized List<IQ> getAnswers() {
+            return new ArrayList<IQ>(answers);
+        }
+    }
+
+    private static IQ createRequest(String id) {
+        IQ request = new IQ(IQ.Type.get, id);
+        request.setFrom(new JID("comp.example.com"));
+        request.setTo(PRIMARY);
+        request.setChildElement("query", "test");
+        return request;
+    }
+
+    @Test
+    public void testFastAnswerIsNotHedged() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.95, 1, DELAY,
+                TIMEOUT);
+        RecordingCallback callback = new RecordingCallback();
+        IQ request = createRequest("1");
+        hedger.send(request, ALTERNATE, callback);
+        sender.answer(request);
+        Thread.sleep(TIMEOUT * 2);
+
+        assertEquals(1, sender.sent.size());
+        assertEquals(0, hedger.getHedgeCount());
+        List<IQ> answers = callback.getAnswers();
+        assertEquals(1, answers.size());
+        assertEquals(IQ.Type.result, answers.get(0).getType());
+    }
+
+    @Test
+    public void testDuplicateAnswerWins() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.95, 1, DELAY,
+                TIMEOUT);
+        RecordingCallback callback = new RecordingCallback();
+        IQ request = createRequest("1");
+        hedger.send(request, ALTERNATE, callback);
+
+        List<IQ> sent = sender.awaitSent(2);
+        assertEquals(2, sent.size());
+        IQ duplicate = sent.get(1);
+        assertEquals(ALTERNATE, duplicate.getTo());
+        sender.answer(duplicate);
+        // The answer to the first request is no longer awaited
+        assertEquals(0, sender.getCallbackCount());
+        sender.answer(request);
+
+        assertEquals(1, callback.getAnswers().size());
+        assertEquals(1, hedger.getHedgeWinCount());
+    }
+
+    @Test
+    public void testUnansweredRequestTimesOut() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.95, 1, DELAY,
+                TIMEOUT);
+        RecordingCallback callback = new RecordingCallback();
+        hedger.send(createRequest("1"), ALTERNATE, callback);
+
+        List<IQ> answers = callback.awaitAnswers(1);
+        assertEquals(1, answers.size());
+        IQ error = answers.get(0);
+        assertEquals("1", error.getID());
+        assertEquals(PRIMARY, error.getFrom());
+        assertEquals(Condition.remote_server_timeout, error.getError()
+                .getCondition());
+        assertEquals(0, sender.getCallbackCount());
+    }
+
+    @Test
+    public void testTimeoutsCountAsLatencies() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.5, 0, DELAY,
+                TIMEOUT);
+        RecordingCallback callback = new RecordingCallback();
+        for (int i = 0; i < 16; i++) {
+            hedger.send(createRequest(String.valueOf(i)), ALTERNATE, callback);
+        }
+        assertEquals(16, callback.awaitAnswers(16).size());
+        assertTrue(hedger.getDelay() >= TIMEOUT);
+    }
+
+    @Test
+    public void testLatencyIsMeasuredFromTheFirstSend()
+            throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.5, 1, DELAY,
+                TIMEOUT);
+        RecordingCallback callback = new RecordingCallback();
+        for (int i = 0; i < 16; i++) {
+            hedger.send(createRequest(String.valueOf(i)), ALTERNATE, callback);
+            // Answered by the duplicate as soon as it is sent
+            sender.answer(sender.awaitSent(2 * (i + 1)).get(2 * i + 1));
+        }
+        assertEquals(16, callback.getAnswers().size());
+        assertEquals(16, hedger.getHedgeWinCount());
+        assertTrue(hedger.getDelay() >= DELAY);
+    }
+
+    @Test
+    public void testComponentCreatesItsHedgerOnFirstUse() {
+        XMPPComponent component = new XMPPComponent("comp.example.com",
+                "secret", "localhost", 5275, 1000);
+        RequestHedger hedger = component.getRequestHedger();
+        assertEquals(1000, hedger.getTimeout());
+        assertSame(hedger, component.getRequestHedger());
+    }
+
+    @Test
+    public void testFailedRequestIsHedgedAtOnce() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.95, 1, TIMEOUT,
+                TIMEOUT * 10);
+        RecordingCallback callback = new RecordingCallback();
+        IQ request = createRequest("1");
+        hedger.send(request, ALTERNATE, callback);
+        // As answered by an open circuit breaker
+        sender.fail(request, Condition.service_unavailable);
+
+        List<IQ> sent = sender.awaitSent(2);
+        assertEquals(2, sent.size());
+        assertEquals(ALTERNATE, sent.get(1).getTo());
+        assertTrue(callback.getAnswers().isEmpty());
+        sender.answer(sent.get(1));
+
+        List<IQ> answers = callback.getAnswers();
+        assertEquals(1, answers.size());
+        assertEquals(IQ.Type.result, answers.get(0).getType());
+        assertEquals(1, hedger.getHedgeCount());
+        // The timer does not send another duplicate
+        Thread.sleep(TIMEOUT * 2);
+        assertEquals(2, sender.sent.size());
+    }
+
+    @Test
+    public void testFailureIsPassedOnWithoutBudget() {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.95, 0, DELAY,
+                TIMEOUT);
+        RecordingCallback callback = new RecordingCallback();
+        IQ request = createRequest("1");
+        hedger.send(request, ALTERNATE, callback);
+        sender.fail(request, Condition.service_unavailable);
+
+        List<IQ> answers = callback.getAnswers();
+        assertEquals(1, answers.size());
+        assertEquals(Condition.service_unavailable, answers.get(0).getError()
+                .getCondition());
+        assertEquals(1, sender.sent.size());
+    }
+
+    @Test
+    public void testRejectedRequestsWin() {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.95, 1, DELAY,
+                TIMEOUT);
+        RecordingCallback callback = new RecordingCallback();
+        IQ request = createRequest("1");
+        hedger.send(request, ALTERNATE, callback);
+        // The replica is up, the request itself is wrong
+        sender.fail(request, Condition.bad_request);
+
+        assertEquals(1, callback.getAnswers().size());
+        assertEquals(1, sender.sent.size());
+    }
+
+    @Test
+    public void testFailureWaitsForThePendingDuplicate()
+            throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.95, 1, DELAY,
+                TIMEOUT);
+        RecordingCallback callback = new RecordingCallback();
+        IQ request = createRequest("1");
+        hedger.send(request, ALTERNATE, callback);
+        IQ duplicate = sender.awaitSent(2).get(1);
+        sender.fail(request, Condition.internal_server_error);
+        assertTrue(callback.getAnswers().isEmpty());
+
+        // Neither does better, so the first failure is passed on
+        List<IQ> answers = callback.awaitAnswers(1);
+        assertEquals(1, answers.size());
+        assertEquals(Condition.internal_server_error, answers.get(0)
+                .getError().getCondition());
+        assertEquals(0, hedger.getHedgeWinCount());
+        sender.answer(duplicate);
+        assertEquals(1, callback.getAnswers().size());
+    }
+
+    @Test
+    public void testBothFailing() {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.95, 1, TIMEOUT,
+                TIMEOUT * 10);
+        RecordingCallback callback = new RecordingCallback();
+        IQ request = createRequest("1");
+        hedger.send(request, ALTERNATE, callback);
+        sender.fail(request, Condition.service_unavailable);
+        sender.fail(sender.sent.get(1), Condition.remote_server_not_found);
+
+        List<IQ> answers = callback.getAnswers();
+        assertEquals(1, answers.size());
+        assertEquals(Condition.remote_server_not_found, answers.get(0)
+                .getError().getCondition());
+        assertEquals(0, sender.getCallbackCount());
+    }
+
+    @Test
+    public void testFailuresAreNotLatencies() {
+        RecordingSender sender = new RecordingSender();
+        RequestHedger hedger = new RequestHedger(sender, 0.5, 0, DELAY,
+                TIMEOUT);
+        RecordingCallback callback = new RecordingCallback();
+        for (int i = 0; i < 32; i++) {
+            IQ request = createRequest(String.valueOf(i));
+            hedger.send(request, ALTERNATE, callback);
+            sender.fail(request, Condition.service_unavailable);
+        }
+        assertEquals(32, callback.getAnswers().size());
+        assertEquals(DELAY, hedger.getDelay());
+    }
+}
@@ -0,0 +1,168 @@
+package org.jamppa.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jamppa.component.ScatterGather.Outcome;
+import org.jamppa.component.ScatterGather.Status;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.PacketError.Condition;
+
+public class ScatterGatherTest {
+
+    /**
+     * Keeps the packets sent and the callbacks awaiting an answer, and
+     * answers the requests to the recipients it is told to right away.
+     */
+    private static class RecordingSender implements AsyncPacketSender {
+
+        final List<IQ> sent = new ArrayList<IQ>();
+        final Map<String, PacketCallback> callbacks = new HashMap<String, PacketCallback>();
+        final Map<JID, Condition> errors = new HashMap<JID, Condition>();
+        final Set<JID> answered = new HashSet<JID>();
+        int answers = 1;
+
+        @Override
+        public void sendPacket(Packet packet) {
+            IQ request = (IQ) packet;
+            PacketCallback callback;
+            synchronized (this) {
+                sent.add(request);
+                if (!answered.contains(request.getTo())) {
+                    return;
+                }
+                // Dropped once answered, like XMPPComponent does
+                callback = callbacks.remove(request.getID());
+            }
+            IQ response = IQ.createResultIQ(request);
+            Condition condition = errors.get(request.getTo());
+            if (condition != null) {
+                response.setError(condition);
+            }
+            for (int i = 0; i < answers; i++) {
+                callback.handle(response);
+            }
+        }
+
+        @Override
+        public Packet syncSendPacket(Packet packet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized void addPacketCallback(Packet packet,
+                PacketCallback packetCallback) {
+            callbacks.put(packet.getID(), packetCallback);
+        }
+
+        @Override
+        public synchronized void removePacketCallback(Packet packet) {
+            callbacks.remove(packet.getID());
+        }
+    }
+
+    private static List<IQ> createRequests(String... recipients) {
+        IQ template = new IQ(IQ.Type.get, "template");
+        template.setFrom(new JID("comp.example.com"));
+        template.setChildElement("query", "test");
+        List<IQ> requests = new ArrayList<IQ>();
+        for (String recipient : recipients) {
+            IQ request = template.createCopy();
+            request.setTo(recipient);
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    @Test
+    public void testCopiesOfATemplateAreAllAnswered() {
+        RecordingSender sender = new RecordingSender();
+        List<IQ> requests = createRequests("a.example.com", "b.example.com",
+                "c.example.com");
+        for (IQ request : requests) {
+            sender.answered.add(request.getTo());
+        }
+        sender.errors.put(new JID("b.example.com"),
+                Condition.item_not_found);
+
+        List<Outcome> outcomes = ScatterGather.sendAll(sender, requests,
+                1000, 10);
+        assertEquals(3, outcomes.size());
+        assertEquals(Status.RESULT, outcomes.get(0).getStatus());
+        assertEquals(Status.ERROR, outcomes.get(1).getStatus());
+        assertEquals(Status.RESULT, outcomes.get(2).getStatus());
+        Set<String> ids = new HashSet<String>();
+        for (Outcome outcome : outcomes) {
+            assertEquals(outcome.getRequest().getID(), outcome.getResponse()
+                    .getID());
+            ids.add(outcome.getRequest().getID());
+        }
+        assertEquals(3, ids.size());
+    }
+
+    @Test
+    public void testUnansweredRequestsTimeOut() {
+        RecordingSender sender = new RecordingSender();
+        List<IQ> requests = createRequests("a.example.com", "b.example.com",
+                "c.example.com");
+        sender.answered.add(new JID("b.example.com"));
+
+        long start = System.currentTimeMillis();
+        List<Outcome> outcomes = ScatterGather.sendAll(sender, requests, 50,
+                10);
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(Status.TIMEOUT, outcomes.get(0).getStatus());
+        assertNull(outcomes.get(0).getResponse());
+        assertEquals(Status.RESULT, outcomes.get(1).getStatus());
+        assertEquals(Status.TIMEOUT, outcomes.get(2).getStatus());
+        // Nothing is awaited once the deadline passed
+        assertTrue(sender.callbacks.isEmpty());
+    }
+
+    @Test
+    public void testAtMostMaxConcurrencyRequestsAreAwaited() {
+        RecordingSender sender = new RecordingSender();
+        List<IQ> requests = createRequests("a.example.com", "b.example.com",
+                "c.example.com", "d.example.com", "e.example.com");
+        sender.answered.add(new JID("a.example.com"));
+
+        List<Outcome> outcomes = ScatterGather.sendAll(sender, requests, 50,
+                2);
+        // a is answered, b and c hold the permits until the deadline
+        assertEquals(3, sender.sent.size());
+        assertEquals(Status.RESULT, outcomes.get(0).getStatus());
+        for (int i = 1; i < 5; i++) {
+            assertEquals(Status.TIMEOUT, outcomes.get(i).getStatus());
+            assertSame(requests.get(i), outcomes.get(i).getRequest());
+        }
+        assertTrue(sender.callbacks.isEmpty());
+    }
+
+    @Test
+    public void testRepeatedResponsesReleaseOnePermit() {
+        RecordingSender sender = new RecordingSender();
+        sender.answers = 2;
+        List<IQ> requests = createRequests("a.example.com", "b.example.com",
+                "c.example.com");
+        sender.answered.add(new JID("a.example.com"));
+
+        List<Outcome> outcomes = ScatterGather.sendAll(sender, requests, 50,
+                1);
+        assertEquals(2, sender.sent.size());
+        assertEquals(Status.RESULT, outcomes.get(0).getStatus());
+        assertEquals(Status.TIMEOUT, outcomes.get(1).getStatus());
+        assertEquals(Status.TIMEOUT, outcomes.get(2).getStatus());
+    }
+}
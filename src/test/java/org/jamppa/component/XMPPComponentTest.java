@@ -0,0 +1,360 @@
+package org.jamppa.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.jamppa.component.handler.AbstractQueryHandler;
+import org.jamppa.component.handler.MessageHandler;
+import org.jamppa.component.handler.PresenceHandler;
+import org.jivesoftware.whack.util.PacketIDs;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.PacketError.Condition;
+import org.xmpp.packet.Presence;
+
+public class XMPPComponentTest {
+
+    /**
+     * Keeps the packets it is called with.
+     */
+    private static class RecordingCallback implements PacketCallback {
+
+        final List<Packet> packets = new ArrayList<Packet>();
+
+        @Override
+        public void handle(Packet packet) {
+            packets.add(packet);
+        }
+    }
+
+    /**
+     * Answers with a result carrying its own name, so tests can tell which
+     * handler answered.
+     */
+    private static class NamedQueryHandler extends AbstractQueryHandler {
+
+        private final String name;
+
+        NamedQueryHandler(String namespace, String name) {
+            super(namespace);
+            this.name = name;
+        }
+
+        @Override
+        public IQ handle(IQ query) {
+            IQ result = IQ.createResultIQ(query);
+            result.setChildElement("handled", "test").setText(name);
+            return result;
+        }
+    }
+
+    /**
+     * Keeps the messages and presences it is called with.
+     */
+    private static class RecordingHandler implements MessageHandler,
+            PresenceHandler {
+
+        final List<Packet> packets = new ArrayList<Packet>();
+
+        @Override
+        public void handle(Message message) {
+            packets.add(message);
+        }
+
+        @Override
+        public void handle(Presence presence) {
+            packets.add(presence);
+        }
+
+        @Override
+        public void setPacketSender(PacketSender packetSender) {
+        }
+    }
+
+    /**
+     * Answers every IQ sent with a result, remembering how many callbacks
+     * were matched by number when it was sent.
+     */
+    private static class AnsweringComponent extends XMPPComponent {
+
+        final List<Integer> numberedCallbacks = new ArrayList<Integer>();
+        boolean answer = true;
+
+        AnsweringComponent() {
+            super("comp.example.com", "secret", "localhost", 5275);
+        }
+
+        @Override
+        protected void send(Packet packet) {
+            numberedCallbacks.add(getNumberedCallbackCount());
+            if (answer) {
+                handleIQResult(IQ.createResultIQ((IQ) packet));
+            }
+        }
+    }
+
+    private static final QName PUBSUB = QName.get("pubsub",
+            Namespace.get("http://jabber.org/protocol/pubsub"));
+
+    private static String handledBy(IQ response) {
+        assertEquals(IQ.Type.result, response.getType());
+        return response.getChildElement().getText();
+    }
+
+    private static XMPPComponent createComponent() {
+        return new XMPPComponent("comp.example.com", "secret", "localhost",
+                5275);
+    }
+
+    private static IQ createRequest(String id) {
+        IQ request = new IQ(IQ.Type.get, id);
+        request.setFrom(new JID("comp.example.com"));
+        request.setTo(new JID("service.example.com"));
+        request.setChildElement("query", "test");
+        return request;
+    }
+
+    @Test
+    public void testCallbacksKeepTheIdOfTheCaller() {
+        XMPPComponent component = createComponent();
+        String[] ids = { "caller-1", PacketIDs.next() };
+        for (String id : ids) {
+            IQ request = createRequest(id);
+            RecordingCallback callback = new RecordingCallback();
+            component.addPacketCallback(request, callback);
+            assertEquals(id, request.getID());
+
+            IQ response = IQ.createResultIQ(request);
+            component.handleIQResult(response);
+            component.handleIQResult(response);
+            assertEquals(1, callback.packets.size());
+            assertSame(response, callback.packets.get(0));
+        }
+    }
+
+    @Test
+    public void testPacketsWithoutIdAreGivenOne() {
+        XMPPComponent component = createComponent();
+        IQ request = createRequest(null);
+        request.setID(null);
+        component.addPacketCallback(request, new RecordingCallback());
+        assertNotNull(request.getID());
+        assertTrue(PacketIDs.decode(request.getID()) > 0);
+    }
+
+    @Test
+    public void testResponsesFromOtherAddressesAreIgnored() {
+        XMPPComponent component = createComponent();
+        IQ request = createRequest("caller-2");
+        RecordingCallback callback = new RecordingCallback();
+        component.addPacketCallback(request, callback);
+
+        IQ spoofed = IQ.createResultIQ(request);
+        spoofed.setFrom(new JID("other.example.com"));
+        component.handleIQResult(spoofed);
+        assertTrue(callback.packets.isEmpty());
+
+        component.removePacketCallback(request);
+        component.handleIQResult(IQ.createResultIQ(request));
+        assertTrue(callback.packets.isEmpty());
+    }
+
+    @Test
+    public void testQueriesAreRoutedByPayload() throws Exception {
+        XMPPComponent component = createComponent();
+        component.addGetHandler(PUBSUB, new NamedQueryHandler(
+                PUBSUB.getNamespaceURI(), "pubsub-get"));
+        component.addSetHandler(PUBSUB, new NamedQueryHandler(
+                PUBSUB.getNamespaceURI(), "pubsub-set"));
+        component.addGetHandler(new NamedQueryHandler("test", "query-get"));
+
+        IQ get = createRequest("1");
+        get.setChildElement(PUBSUB.getName(), PUBSUB.getNamespaceURI());
+        assertEquals("pubsub-get", handledBy(component.handleIQGet(get)));
+
+        IQ set = createRequest("2");
+        set.setType(IQ.Type.set);
+        set.setChildElement(PUBSUB.getName(), PUBSUB.getNamespaceURI());
+        assertEquals("pubsub-set", handledBy(component.handleIQSet(set)));
+
+        assertEquals("query-get",
+                handledBy(component.handleIQGet(createRequest("3"))));
+    }
+
+    @Test
+    public void testNameAndNamespaceMustBothMatch() throws Exception {
+        XMPPComponent component = createComponent();
+        component.addGetHandler(PUBSUB, new NamedQueryHandler(
+                PUBSUB.getNamespaceURI(), "pubsub"));
+
+        // Same namespace, other element
+        IQ query = createRequest("1");
+        query.setChildElement("query", PUBSUB.getNamespaceURI());
+        assertEquals(Condition.bad_request, component.handleIQGet(query)
+                .getError().getCondition());
+
+        // Same element, other namespace
+        IQ other = createRequest("2");
+        other.setChildElement(PUBSUB.getName(), "other");
+        assertEquals(IQ.Type.error, component.handleIQGet(other).getType());
+
+        // Gets and sets are kept apart
+        IQ set = createRequest("3");
+        set.setType(IQ.Type.set);
+        set.setChildElement(PUBSUB.getName(), PUBSUB.getNamespaceURI());
+        assertEquals(IQ.Type.error, component.handleIQSet(set).getType());
+    }
+
+    @Test
+    public void testMessagesGoToTheHandlerOfTheFirstKnownChild() {
+        XMPPComponent component = createComponent();
+        RecordingHandler chat = new RecordingHandler();
+        RecordingHandler receipt = new RecordingHandler();
+        component.addMessageHandler(QName.get("active",
+                Namespace.get("http://jabber.org/protocol/chatstates")), chat);
+        component.addMessageHandler(QName.get("request",
+                Namespace.get("urn:xmpp:receipts")), receipt);
+
+        Message message = new Message();
+        message.setBody("hello");
+        message.addChildElement("x", "unknown");
+        message.addChildElement("request", "urn:xmpp:receipts");
+        message.addChildElement("active",
+                "http://jabber.org/protocol/chatstates");
+        component.handleMessage(message);
+        assertTrue(chat.packets.isEmpty());
+        assertEquals(1, receipt.packets.size());
+        assertSame(message, receipt.packets.get(0));
+
+        // Nobody handles a message without a known child
+        Message plain = new Message();
+        plain.setBody("hello");
+        component.handleMessage(plain);
+        assertTrue(chat.packets.isEmpty());
+        assertEquals(1, receipt.packets.size());
+    }
+
+    @Test
+    public void testPresencesGoToTheHandlerOfTheFirstKnownChild() {
+        XMPPComponent component = createComponent();
+        RecordingHandler caps = new RecordingHandler();
+        RecordingHandler muc = new RecordingHandler();
+        component.addPresenceHandler(QName.get("c",
+                Namespace.get("http://jabber.org/protocol/caps")), caps);
+        component.addPresenceHandler(QName.get("x",
+                Namespace.get("http://jabber.org/protocol/muc")), muc);
+
+        Presence presence = new Presence();
+        presence.addChildElement("x", "http://jabber.org/protocol/muc");
+        presence.addChildElement("c", "http://jabber.org/protocol/caps");
+        component.handlePresence(presence);
+        assertTrue(caps.packets.isEmpty());
+        assertEquals(1, muc.packets.size());
+        assertSame(presence, muc.packets.get(0));
+    }
+
+    @Test
+    public void testHandlersAreReplacedAndRemovedAtRuntime() throws Exception {
+        XMPPComponent component = createComponent();
+        NamedQueryHandler first = new NamedQueryHandler(
+                PUBSUB.getNamespaceURI(), "first");
+        NamedQueryHandler second = new NamedQueryHandler(
+                PUBSUB.getNamespaceURI(), "second");
+        IQ get = createRequest("1");
+        get.setChildElement(PUBSUB.getName(), PUBSUB.getNamespaceURI());
+
+        component.addGetHandler(PUBSUB, first);
+        assertSame(component, first.getPacketSender());
+        assertEquals("first", handledBy(component.handleIQGet(get)));
+        component.addGetHandler(PUBSUB, second);
+        assertEquals("second", handledBy(component.handleIQGet(get)));
+
+        assertSame(second, component.removeGetHandler(PUBSUB));
+        assertEquals(IQ.Type.error, component.handleIQGet(get).getType());
+        assertNull(component.removeGetHandler(PUBSUB));
+        assertNull(component.removeSetHandler(PUBSUB));
+    }
+
+    @Test
+    public void testMessageHandlersAreReplacedAndRemovedAtRuntime() {
+        XMPPComponent component = createComponent();
+        QName receipts = QName.get("request",
+                Namespace.get("urn:xmpp:receipts"));
+        RecordingHandler first = new RecordingHandler();
+        RecordingHandler second = new RecordingHandler();
+        Message message = new Message();
+        message.addChildElement("request", "urn:xmpp:receipts");
+
+        component.addMessageHandler(receipts, first);
+        component.handleMessage(message);
+        component.addMessageHandler(receipts, second);
+        component.handleMessage(message);
+        component.removeMessageHandler(receipts);
+        component.handleMessage(message);
+
+        assertEquals(1, first.packets.size());
+        assertEquals(1, second.packets.size());
+    }
+
+    @Test
+    public void testSyncRequestsAreMatchedByNumber() {
+        AnsweringComponent component = new AnsweringComponent();
+        // Given a random id by tinder
+        IQ request = new IQ(IQ.Type.get);
+        request.setTo(new JID("service.example.com"));
+        request.setChildElement("query", "test");
+        assertEquals(0, PacketIDs.decode(request.getID()));
+
+        Packet response = component.syncSendPacket(request);
+        assertTrue(PacketIDs.decode(request.getID()) > 0);
+        assertEquals(request.getID(), response.getID());
+        assertEquals(Integer.valueOf(1), component.numberedCallbacks.get(0));
+        assertEquals(0, component.getNumberedCallbackCount());
+    }
+
+    @Test
+    public void testHedgedRequestsAreMatchedByNumber() {
+        AnsweringComponent component = new AnsweringComponent();
+        component.answer = false;
+        IQ request = new IQ(IQ.Type.get);
+        request.setTo(new JID("service.example.com"));
+        request.setChildElement("query", "test");
+
+        component.sendHedged(request, new JID("alternate.example.com"),
+                new RecordingCallback());
+        assertTrue(PacketIDs.decode(request.getID()) > 0);
+        assertEquals(Integer.valueOf(1), component.numberedCallbacks.get(0));
+        component.removePacketCallback(request);
+    }
+
+    @Test
+    public void testScatteredRequestsAreMatchedByNumber() {
+        AnsweringComponent component = new AnsweringComponent();
+        List<IQ> requests = new ArrayList<IQ>();
+        for (int i = 0; i < 3; i++) {
+            IQ request = new IQ(IQ.Type.get);
+            request.setTo(new JID(i + ".example.com"));
+            request.setChildElement("query", "test");
+            requests.add(request);
+        }
+
+        List<ScatterGather.Outcome> outcomes = component.sendAll(requests,
+                1000, 10);
+        for (ScatterGather.Outcome outcome : outcomes) {
+            assertEquals(ScatterGather.Status.RESULT, outcome.getStatus());
+            assertTrue(PacketIDs.decode(outcome.getRequest().getID()) > 0);
+        }
+        assertEquals(Integer.valueOf(1), component.numberedCallbacks.get(2));
+    }
+}
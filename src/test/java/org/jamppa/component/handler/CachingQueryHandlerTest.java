@@ -0,0 +1,159 @@
+package org.jamppa.component.handler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.PacketError;
+
+public class CachingQueryHandlerTest {
+
+    private static final String NAMESPACE = "test";
+
+    /**
+     * Answers with the number of queries handled so far, and with an error
+     * for queries without a value.
+     */
+    static class CountingHandler extends AbstractQueryHandler {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        CountingHandler() {
+            super(NAMESPACE);
+        }
+
+        @Override
+        public IQ handle(IQ query) {
+            int call = calls.incrementAndGet();
+            IQ result = IQ.createResultIQ(query);
+            if (query.getChildElement().attributeValue("value") == null) {
+                result.setError(PacketError.Condition.bad_request);
+                return result;
+            }
+            result.setChildElement("query", NAMESPACE).addAttribute("call",
+                    String.valueOf(call));
+            return result;
+        }
+    }
+
+    static IQ createQuery(String id, String from, String to, String value) {
+        IQ query = new IQ(IQ.Type.get, id);
+        query.setFrom(new JID(from));
+        query.setTo(new JID(to));
+        Element child = query.setChildElement("query", NAMESPACE);
+        if (value != null) {
+            child.addAttribute("value", value);
+        }
+        return query;
+    }
+
+    /**
+     * Reads the call number from the XML, since cached results only hold
+     * the stanza attributes in their element.
+     */
+    static String call(IQ result) {
+        try {
+            return DocumentHelper.parseText(result.toXML()).getRootElement()
+                    .element("query").attributeValue("call");
+        } catch (DocumentException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Test
+    public void testEquivalentQueriesHitTheCache() {
+        CountingHandler handler = new CountingHandler();
+        CachingQueryHandler caching = new CachingQueryHandler(handler, 10,
+                60000);
+        IQ first = caching.handle(createQuery("1", "a@example.com/r",
+                "comp.example.com", "x"));
+        IQ second = caching.handle(createQuery("2", "b@example.com/r",
+                "comp.example.com", "x"));
+        assertEquals(1, handler.calls.get());
+        assertEquals(call(first), call(second));
+        assertEquals("2", second.getID());
+        assertEquals("b@example.com/r", second.getTo().toString());
+        assertEquals("comp.example.com", second.getFrom().toString());
+        assertEquals(1, caching.getStats().getHitCount());
+    }
+
+    @Test
+    public void testDifferentQueriesMiss() {
+        CountingHandler handler = new CountingHandler();
+        CachingQueryHandler caching = new CachingQueryHandler(handler, 10,
+                60000);
+        caching.handle(createQuery("1", "a@example.com", "comp.example.com",
+                "x"));
+        caching.handle(createQuery("2", "a@example.com", "comp.example.com",
+                "y"));
+        assertEquals(2, handler.calls.get());
+    }
+
+    @Test
+    public void testQueriesToDifferentAddressesMiss() {
+        CountingHandler handler = new CountingHandler();
+        CachingQueryHandler caching = new CachingQueryHandler(handler, 10,
+                60000);
+        IQ first = caching.handle(createQuery("1", "u@example.com",
+                "a@comp.example.com", "x"));
+        IQ second = caching.handle(createQuery("2", "u@example.com",
+                "b@comp.example.com", "x"));
+        assertEquals(2, handler.calls.get());
+        assertEquals("1", call(first));
+        assertEquals("2", call(second));
+    }
+
+    @Test
+    public void testErrorsAreNotCached() {
+        CountingHandler handler = new CountingHandler();
+        CachingQueryHandler caching = new CachingQueryHandler(handler, 10,
+                60000);
+        caching.handle(createQuery("1", "a@example.com", "comp.example.com",
+                null));
+        IQ second = caching.handle(createQuery("2", "a@example.com",
+                "comp.example.com", null));
+        assertEquals(2, handler.calls.get());
+        assertEquals(IQ.Type.error, second.getType());
+    }
+
+    @Test
+    public void testResultsExpire() throws InterruptedException {
+        CountingHandler handler = new CountingHandler();
+        CachingQueryHandler caching = new CachingQueryHandler(handler, 10, 20);
+        caching.handle(createQuery("1", "a@example.com", "comp.example.com",
+                "x"));
+        Thread.sleep(50);
+        IQ second = caching.handle(createQuery("2", "a@example.com",
+                "comp.example.com", "x"));
+        assertEquals(2, handler.calls.get());
+        assertEquals("2", call(second));
+    }
+
+    @Test
+    public void testPerRequesterKeys() {
+        CountingHandler handler = new CountingHandler();
+        CachingQueryHandler caching = new CachingQueryHandler(handler, 10,
+                60000, true);
+        caching.handle(createQuery("1", "a@example.com/r1",
+                "comp.example.com", "x"));
+        caching.handle(createQuery("2", "a@example.com/r2",
+                "comp.example.com", "x"));
+        assertEquals(1, handler.calls.get());
+        caching.handle(createQuery("3", "b@example.com/r1",
+                "comp.example.com", "x"));
+        assertEquals(2, handler.calls.get());
+
+        caching.invalidate(new JID("a@example.com"));
+        caching.handle(createQuery("4", "a@example.com/r1",
+                "comp.example.com", "x"));
+        caching.handle(createQuery("5", "b@example.com/r1",
+                "comp.example.com", "x"));
+        assertEquals(3, handler.calls.get());
+    }
+}
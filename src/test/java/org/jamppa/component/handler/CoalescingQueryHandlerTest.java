@@ -0,0 +1,242 @@
+package org.jamppa.component.handler;
+
+import static org.jamppa.component.handler.CachingQueryHandlerTest.call;
+import static org.jamppa.component.handler.CachingQueryHandlerTest.createQuery;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jamppa.component.PacketSender;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.PacketError;
+
+public class CoalescingQueryHandlerTest {
+
+    /**
+     * Keeps the packets sent and the tasks handed over, without running them.
+     */
+    static class RecordingSender implements PacketSender, Executor {
+
+        final List<IQ> sent = new ArrayList<IQ>();
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public synchronized void sendPacket(Packet packet) {
+            sent.add((IQ) packet);
+        }
+
+        @Override
+        public Packet syncSendPacket(Packet packet) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        /**
+         * Waits for the given number of packets sent by other threads.
+         */
+        synchronized List<IQ> awaitSent(int count) throws InterruptedException {
+            long end = System.currentTimeMillis() + 5000;
+            while (sent.size() < count && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+            return new ArrayList<IQ>(sent);
+        }
+    }
+
+    /**
+     * Holds the first query until released, then answers like
+     * {@link CachingQueryHandlerTest.CountingHandler}, asynchronously or by
+     * failing if asked to.
+     */
+    private static class GatedHandler extends AbstractQueryHandler {
+
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean async;
+        volatile boolean failing;
+
+        GatedHandler() {
+            super("test");
+        }
+
+        @Override
+        public IQ handle(IQ query) {
+            int call = calls.incrementAndGet();
+            if (call == 1) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) {
+                throw new IllegalStateException("Failing on purpose");
+            }
+            if (async) {
+                return null;
+            }
+            IQ result = IQ.createResultIQ(query);
+            result.setChildElement("query", "test").addAttribute("call",
+                    String.valueOf(call));
+            return result;
+        }
+    }
+
+    /**
+     * Handles the given query on another thread, and waits until it holds
+     * the handler.
+     */
+    private static Thread lead(final CoalescingQueryHandler coalescing,
+            GatedHandler handler, final IQ query,
+            final AtomicReference<IQ> result) throws InterruptedException {
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result.set(coalescing.handle(query));
+                } catch (RuntimeException e) {
+                    // Checked through what was sent
+                }
+            }
+        };
+        leader.start();
+        assertTrue(handler.entered.await(5, TimeUnit.SECONDS));
+        return leader;
+    }
+
+    @Test
+    public void testLeaderIsAnsweredFirst() throws InterruptedException {
+        GatedHandler handler = new GatedHandler();
+        CoalescingQueryHandler coalescing = new CoalescingQueryHandler(handler);
+        RecordingSender sender = new RecordingSender();
+        coalescing.setPacketSender(sender);
+
+        AtomicReference<IQ> result = new AtomicReference<IQ>();
+        Thread leader = lead(coalescing, handler, createQuery("1",
+                "a@example.com", "comp.example.com", "x"), result);
+        assertNull(coalescing.handle(createQuery("2", "b@example.com",
+                "comp.example.com", "x")));
+        handler.release.countDown();
+        leader.join(5000);
+
+        assertNull(result.get());
+        assertEquals(1, handler.calls.get());
+        assertEquals(1, coalescing.getCoalescedCount());
+        assertEquals(2, sender.sent.size());
+        assertEquals("1", sender.sent.get(0).getID());
+        assertEquals("2", sender.sent.get(1).getID());
+        assertEquals("b@example.com", sender.sent.get(1).getTo().toString());
+        assertEquals("1", call(sender.sent.get(1)));
+    }
+
+    @Test
+    public void testQueriesToDifferentAddressesAreNotCoalesced()
+            throws InterruptedException {
+        GatedHandler handler = new GatedHandler();
+        CoalescingQueryHandler coalescing = new CoalescingQueryHandler(handler);
+        RecordingSender sender = new RecordingSender();
+        coalescing.setPacketSender(sender);
+
+        AtomicReference<IQ> result = new AtomicReference<IQ>();
+        Thread leader = lead(coalescing, handler, createQuery("1",
+                "u@example.com", "a@comp.example.com", "x"), result);
+        IQ other = coalescing.handle(createQuery("2", "u@example.com",
+                "b@comp.example.com", "x"));
+        handler.release.countDown();
+        leader.join(5000);
+
+        assertEquals("2", call(other));
+        assertEquals("1", call(result.get()));
+        assertEquals(0, coalescing.getCoalescedCount());
+        assertTrue(sender.sent.isEmpty());
+    }
+
+    @Test
+    public void testUnsharableResultsHandFollowersToTheSender()
+            throws InterruptedException {
+        GatedHandler handler = new GatedHandler();
+        handler.async = true;
+        CoalescingQueryHandler coalescing = new CoalescingQueryHandler(handler);
+        RecordingSender sender = new RecordingSender();
+        coalescing.setPacketSender(sender);
+
+        AtomicReference<IQ> result = new AtomicReference<IQ>();
+        Thread leader = lead(coalescing, handler, createQuery("1",
+                "a@example.com", "comp.example.com", "x"), result);
+        coalescing.handle(createQuery("2", "b@example.com",
+                "comp.example.com", "x"));
+        handler.release.countDown();
+        leader.join(5000);
+
+        // The follower was not handled on the leader's thread
+        assertEquals(1, handler.calls.get());
+        assertEquals(1, sender.tasks.size());
+
+        handler.async = false;
+        sender.tasks.get(0).run();
+        assertEquals(2, handler.calls.get());
+        assertEquals(1, sender.sent.size());
+        assertEquals("2", sender.sent.get(0).getID());
+        assertEquals("2", call(sender.sent.get(0)));
+    }
+
+    @Test
+    public void testFailuresAnswerLeaderAndFollowers()
+            throws InterruptedException {
+        GatedHandler handler = new GatedHandler();
+        handler.failing = true;
+        CoalescingQueryHandler coalescing = new CoalescingQueryHandler(handler);
+        RecordingSender sender = new RecordingSender();
+        coalescing.setPacketSender(sender);
+
+        AtomicReference<IQ> result = new AtomicReference<IQ>();
+        Thread leader = lead(coalescing, handler, createQuery("1",
+                "a@example.com", "comp.example.com", "x"), result);
+        coalescing.handle(createQuery("2", "b@example.com",
+                "comp.example.com", "x"));
+        handler.release.countDown();
+        leader.join(5000);
+
+        assertNull(result.get());
+        assertEquals(2, sender.sent.size());
+        for (int i = 0; i < 2; i++) {
+            IQ error = sender.sent.get(i);
+            assertEquals(String.valueOf(i + 1), error.getID());
+            assertEquals(PacketError.Condition.internal_server_error, error
+                    .getError().getCondition());
+        }
+    }
+
+    @Test
+    public void testFailuresWithoutFollowersAreThrown() {
+        GatedHandler handler = new GatedHandler();
+        handler.failing = true;
+        handler.release.countDown();
+        CoalescingQueryHandler coalescing = new CoalescingQueryHandler(handler);
+        coalescing.setPacketSender(new RecordingSender());
+        try {
+            coalescing.handle(createQuery("1", "a@example.com",
+                    "comp.example.com", "x"));
+            fail("The failure should be thrown");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.jamppa.component.handler;
+
+import static org.jamppa.component.handler.CachingQueryHandlerTest.createQuery;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jamppa.component.handler.CoalescingQueryHandlerTest.RecordingSender;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.PacketError.Condition;
+
+public class FutureQueryHandlerTest {
+
+    /**
+     * Hands out the future of each query to the test.
+     */
+    private static class PendingHandler extends FutureQueryHandler {
+
+        final AtomicReference<IQFuture> future = new AtomicReference<IQFuture>();
+        volatile RuntimeException failure;
+
+        PendingHandler(long deadline) {
+            super("test", deadline);
+        }
+
+        @Override
+        protected IQFuture handleFuture(IQ query) {
+            if (failure != null) {
+                throw failure;
+            }
+            return future.get();
+        }
+    }
+
+    private static PendingHandler createHandler(long deadline,
+            IQFuture future, RecordingSender sender) {
+        PendingHandler handler = new PendingHandler(deadline);
+        handler.future.set(future);
+        handler.setPacketSender(sender);
+        return handler;
+    }
+
+    private static Condition condition(IQ response) {
+        return response.getError().getCondition();
+    }
+
+    @Test
+    public void testResultIsSentOnceDone() {
+        RecordingSender sender = new RecordingSender();
+        IQFuture future = new IQFuture();
+        PendingHandler handler = createHandler(0, future, sender);
+        IQ query = createQuery("1", "a@example.com", "comp.example.com", "x");
+        assertNull(handler.handle(query));
+        assertTrue(sender.sent.isEmpty());
+
+        IQ result = IQ.createResultIQ(query);
+        future.complete(result);
+        assertEquals(1, sender.sent.size());
+        assertSame(result, sender.sent.get(0));
+    }
+
+    @Test
+    public void testFailuresAreAnsweredWithErrors() {
+        RecordingSender sender = new RecordingSender();
+        IQFuture future = new IQFuture();
+        PendingHandler handler = createHandler(0, future, sender);
+        handler.handle(createQuery("1", "a@example.com", "comp.example.com",
+                "x"));
+        future.fail(new IllegalStateException("Failing on purpose"));
+
+        handler.failure = new IllegalStateException("Failing on purpose");
+        handler.handle(createQuery("2", "a@example.com", "comp.example.com",
+                "x"));
+        handler.failure = null;
+        handler.future.set(null);
+        handler.handle(createQuery("3", "a@example.com", "comp.example.com",
+                "x"));
+        handler.future.set(IQFuture.completed(null));
+        handler.handle(createQuery("4", "a@example.com", "comp.example.com",
+                "x"));
+
+        assertEquals(4, sender.sent.size());
+        for (int i = 0; i < 4; i++) {
+            IQ response = sender.sent.get(i);
+            assertEquals(String.valueOf(i + 1), response.getID());
+            assertEquals(Condition.internal_server_error, condition(response));
+        }
+    }
+
+    @Test
+    public void testLateResultIsDropped() throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        IQFuture future = new IQFuture();
+        PendingHandler handler = createHandler(20, future, sender);
+        IQ query = createQuery("1", "a@example.com", "comp.example.com", "x");
+        handler.handle(query);
+        assertEquals(1, sender.awaitSent(1).size());
+        future.complete(IQ.createResultIQ(query));
+
+        List<IQ> sent = sender.awaitSent(1);
+        assertEquals(1, sent.size());
+        assertEquals(Condition.remote_server_timeout, condition(sent.get(0)));
+    }
+
+    @Test
+    public void testResultInTimeCancelsTheTimeout()
+            throws InterruptedException {
+        RecordingSender sender = new RecordingSender();
+        IQFuture future = new IQFuture();
+        PendingHandler handler = createHandler(20, future, sender);
+        IQ query = createQuery("1", "a@example.com", "comp.example.com", "x");
+        handler.handle(query);
+        future.complete(IQ.createResultIQ(query));
+        Thread.sleep(60);
+
+        List<IQ> sent = sender.awaitSent(1);
+        assertEquals(1, sent.size());
+        assertEquals(IQ.Type.result, sent.get(0).getType());
+    }
+}
@@ -0,0 +1,122 @@
+package org.jamppa.component.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+
+public class IQFutureTest {
+
+    /**
+     * Keeps what it was called with.
+     */
+    private static class RecordingListener implements IQFuture.Listener {
+
+        final List<IQ> results = new ArrayList<IQ>();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+
+        @Override
+        public void done(IQ result, Throwable failure) {
+            results.add(result);
+            failures.add(failure);
+        }
+    }
+
+    @Test
+    public void testListenersAreCalledOnce() {
+        IQFuture future = new IQFuture();
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener);
+        assertTrue(listener.results.isEmpty());
+
+        IQ result = new IQ(IQ.Type.result, "1");
+        assertTrue(future.complete(result));
+        assertFalse(future.complete(new IQ(IQ.Type.result, "2")));
+        assertFalse(future.fail(new IllegalStateException()));
+
+        assertTrue(future.isDone());
+        assertEquals(1, listener.results.size());
+        assertSame(result, listener.results.get(0));
+        assertNull(listener.failures.get(0));
+    }
+
+    @Test
+    public void testListenersAddedLaterAreCalledRightAway() {
+        Exception failure = new IllegalStateException();
+        IQFuture future = IQFuture.failed(failure);
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener);
+        assertEquals(1, listener.failures.size());
+        assertSame(failure, listener.failures.get(0));
+        assertNull(listener.results.get(0));
+    }
+
+    @Test
+    public void testFailingListenersDoNotStopOthers() {
+        IQFuture future = new IQFuture();
+        future.addListener(new IQFuture.Listener() {
+            @Override
+            public void done(IQ result, Throwable failure) {
+                throw new IllegalStateException("Failing on purpose");
+            }
+        });
+        RecordingListener listener = new RecordingListener();
+        future.addListener(listener);
+        future.complete(new IQ(IQ.Type.result, "1"));
+        assertEquals(1, listener.results.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFailureCannotBeNull() {
+        new IQFuture().fail(null);
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        IQ result = new IQ(IQ.Type.result, "1");
+        assertSame(result, IQFuture.completed(result).get(0,
+                TimeUnit.MILLISECONDS));
+        try {
+            new IQFuture().get(10, TimeUnit.MILLISECONDS);
+            fail("Should time out");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+        Exception failure = new IllegalStateException();
+        try {
+            IQFuture.failed(failure).get(10, TimeUnit.MILLISECONDS);
+            fail("Should fail");
+        } catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testGetWaitsForCompletion() throws Exception {
+        final IQFuture future = new IQFuture();
+        final IQ result = new IQ(IQ.Type.result, "1");
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                future.complete(result);
+            }
+        }.start();
+        assertSame(result, future.get(5, TimeUnit.SECONDS));
+    }
+}
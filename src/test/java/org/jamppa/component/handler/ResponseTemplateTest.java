@@ -0,0 +1,109 @@
+package org.jamppa.component.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.jivesoftware.whack.WritablePacket;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+public class ResponseTemplateTest {
+
+    private static IQ createQuery() {
+        IQ query = new IQ(IQ.Type.get, "q1");
+        query.setFrom(new JID("user@example.com/res"));
+        query.setTo(new JID("component.example.com"));
+        return query;
+    }
+
+    private static String write(IQ iq) throws IOException {
+        StringWriter writer = new StringWriter();
+        ((WritablePacket) iq).writeTo(writer);
+        return writer.toString();
+    }
+
+    @Test
+    public void testSlotsAreFilled() throws IOException {
+        ResponseTemplate template = ResponseTemplate
+                .compile("<query xmlns='test' a='{1}'><v>{0}</v><v>{0}</v></query>");
+        assertEquals(2, template.getSlotCount());
+        IQ result = template.createResult(createQuery(), "x", "y");
+        String xml = write(result);
+        assertTrue(xml, xml.startsWith("<iq"));
+        assertTrue(xml, xml.endsWith(
+                "><query xmlns='test' a='y'><v>x</v><v>x</v></query></iq>"));
+        assertTrue(xml, xml.contains(" id=\"q1\""));
+        assertTrue(xml, xml.contains(" type=\"result\""));
+        assertTrue(xml, xml.contains(" to=\"user@example.com/res\""));
+        assertTrue(xml, xml.contains(" from=\"component.example.com\""));
+        assertEquals(xml, result.toXML());
+    }
+
+    @Test
+    public void testValuesAreEscaped() throws IOException {
+        ResponseTemplate template = ResponseTemplate
+                .compile("<query xmlns='test' a='{1}'>{0}</query>");
+        IQ result = template.createResult(createQuery(), "<b>&amp;</b>",
+                "it's \"quoted\"");
+        String xml = write(result);
+        assertTrue(xml, xml.endsWith("<query xmlns='test' "
+                + "a='it&apos;s &quot;quoted&quot;'>"
+                + "&lt;b&gt;&amp;amp;&lt;/b&gt;</query></iq>"));
+    }
+
+    @Test
+    public void testCharacterReferencesAreKept() throws IOException {
+        ResponseTemplate template = ResponseTemplate
+                .compile("<query xmlns='test'>{0}</query>");
+        IQ result = template.createResult(createQuery(), "caf&#233; & bar");
+        String xml = write(result);
+        assertTrue(xml, xml.endsWith(
+                "<query xmlns='test'>caf&#233; &amp; bar</query></iq>"));
+    }
+
+    @Test
+    public void testNullValuesAreEmpty() throws IOException {
+        ResponseTemplate template = ResponseTemplate
+                .compile("<query xmlns='test'>{0}</query>");
+        String xml = write(template.createResult(createQuery(),
+                (String) null));
+        assertTrue(xml, xml.endsWith("<query xmlns='test'></query></iq>"));
+    }
+
+    @Test
+    public void testBracesThatAreNotSlots() throws IOException {
+        ResponseTemplate template = ResponseTemplate
+                .compile("<query xmlns='test'>{}{a}{0</query>");
+        assertEquals(0, template.getSlotCount());
+        String xml = write(template.createResult(createQuery()));
+        assertTrue(xml, xml.endsWith("<query xmlns='test'>{}{a}{0</query></iq>"));
+    }
+
+    @Test
+    public void testCopyKeepsAttributesAndPayload() throws IOException {
+        ResponseTemplate template = ResponseTemplate
+                .compile("<query xmlns='test'>{0}</query>");
+        IQ result = template.createResult(createQuery(), "x");
+        IQ copy = result.createCopy();
+        copy.setTo(new JID("other@example.com"));
+        assertEquals("user@example.com/res", result.getTo().toString());
+        String xml = write(copy);
+        assertTrue(xml, xml.contains(" to=\"other@example.com\""));
+        assertTrue(xml, xml.endsWith("<query xmlns='test'>x</query></iq>"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedPayload() {
+        ResponseTemplate.compile("<query xmlns='test'>{0}</quer>");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingValues() {
+        ResponseTemplate.compile("<query xmlns='test'>{0}{1}</query>")
+                .createResult(createQuery(), "x");
+    }
+}
@@ -0,0 +1,147 @@
+package org.jamppa.component.handler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+
+public class StreamingResultIQTest {
+
+    private static IQ createQuery() {
+        IQ query = new IQ(IQ.Type.get, "q1");
+        query.setFrom(new JID("user@example.com/res"));
+        query.setTo(new JID("component.example.com"));
+        return query;
+    }
+
+    private static Element createPayload() {
+        return DocumentHelper.createElement("query").addAttribute("xmlns",
+                "test");
+    }
+
+    private static List<Element> createItems(int count) {
+        List<Element> items = new ArrayList<Element>();
+        for (int i = 0; i < count; i++) {
+            items.add(DocumentHelper.createElement("item").addAttribute("n",
+                    String.valueOf(i)));
+        }
+        return items;
+    }
+
+    private static Element write(IQ iq) throws IOException,
+            DocumentException {
+        StringWriter writer = new StringWriter();
+        ((StreamingResultIQ) iq).writeTo(writer);
+        return DocumentHelper.parseText(writer.toString()).getRootElement();
+    }
+
+    @Test
+    public void testItemsAreStreamed() throws Exception {
+        StreamingResultIQ result = new StreamingResultIQ(createQuery(),
+                createPayload(), createItems(100).iterator(), 8);
+        Element written = write(result);
+        assertEquals("result", written.attributeValue("type"));
+        assertEquals("q1", written.attributeValue("id"));
+        assertEquals("user@example.com/res", written.attributeValue("to"));
+        assertEquals(100, written.element("query").elements("item").size());
+        assertNull(result.getFailure());
+    }
+
+    @Test
+    public void testCopiesOfIterableResultsAreWritten() throws Exception {
+        StreamingResultIQ result = new StreamingResultIQ(createQuery(),
+                createPayload(), createItems(3));
+        IQ copy = result.createCopy();
+        copy.setTo(new JID("other@example.com"));
+        assertEquals(3, write(result).element("query").elements("item")
+                .size());
+        Element written = write(copy);
+        assertEquals("other@example.com", written.attributeValue("to"));
+        assertEquals(3, written.element("query").elements("item").size());
+    }
+
+    @Test
+    public void testCopiesOfIteratorResultsShareTheItems() throws Exception {
+        StreamingResultIQ result = new StreamingResultIQ(createQuery(),
+                createPayload(), createItems(3).iterator());
+        IQ copy = result.createCopy();
+        assertEquals(3, write(copy).element("query").elements("item").size());
+        Element written = write(result);
+        assertEquals("error", written.attributeValue("type"));
+        assertNotNull(written.element("error").element(
+                "internal-server-error"));
+        assertTrue(result.getFailure() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testFailureBeforeFirstItemIsAnError() throws Exception {
+        Iterator<Element> items = new FailingIterator(0);
+        StreamingResultIQ result = new StreamingResultIQ(createQuery(),
+                createPayload(), items);
+        Element written = write(result);
+        assertEquals("error", written.attributeValue("type"));
+        assertEquals("q1", written.attributeValue("id"));
+        assertNull(written.element("query"));
+        assertNotNull(result.getFailure());
+    }
+
+    @Test
+    public void testFailureMidwayClosesTheResult() throws Exception {
+        FailingIterator items = new FailingIterator(5);
+        StreamingResultIQ result = new StreamingResultIQ(createQuery(),
+                createPayload(), items, 2);
+        Element written = write(result);
+        assertEquals("result", written.attributeValue("type"));
+        assertEquals(5, written.element("query").elements("item").size());
+        assertNotNull(result.getFailure());
+        assertTrue(items.closed);
+    }
+
+    private static class FailingIterator implements Iterator<Element>,
+            Closeable {
+
+        private final Iterator<Element> items;
+        private boolean closed;
+
+        FailingIterator(int count) {
+            this.items = createItems(count).iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+
+        @Override
+        public Element next() {
+            if (!items.hasNext()) {
+                throw new IllegalStateException("Cursor failed");
+            }
+            return items.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
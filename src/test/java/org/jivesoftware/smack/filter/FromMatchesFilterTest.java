@@ -0,0 +1,37 @@
+package org.jivesoftware.smack.filter;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+public class FromMatchesFilterTest {
+
+    private static Message from(String from) {
+        Message message = new Message();
+        if (from != null) {
+            message.getElement().addAttribute("from", from);
+        }
+        return message;
+    }
+
+    @Test
+    public void testBareJID() {
+        FromMatchesFilter filter = new FromMatchesFilter("User@Example.com");
+        assertTrue(filter.accept(from("user@example.com")));
+        assertTrue(filter.accept(from("user@example.com/res")));
+        assertFalse(filter.accept(from("other@example.com/res")));
+        assertFalse(filter.accept(from(null)));
+    }
+
+    @Test
+    public void testFullJID() {
+        FromMatchesFilter filter = new FromMatchesFilter(
+                "user@example.com/Res");
+        assertTrue(filter.accept(from("User@example.com/Res")));
+        assertTrue(filter.accept(from("user@example.com/res")));
+        assertFalse(filter.accept(from("user@example.com/other")));
+        assertFalse(filter.accept(from("user@example.com")));
+    }
+}
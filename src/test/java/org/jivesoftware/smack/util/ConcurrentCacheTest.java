@@ -0,0 +1,206 @@
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConcurrentCacheTest {
+
+    @Test
+    public void testPutGetRemove() {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(
+                10, -1);
+        assertNull(cache.put("a", "1"));
+        assertEquals("1", cache.put("a", "2"));
+        assertEquals("2", cache.get("a"));
+        assertEquals("2", cache.remove("a"));
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getStats().getHitCount());
+        assertEquals(1, cache.getStats().getMissCount());
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<Integer, Integer>(
+                100, -1);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, i);
+        }
+        assertTrue(cache.size() <= 100);
+        assertEquals(10000 - cache.size(), cache.getStats().getEvictionCount());
+    }
+
+    @Test
+    public void testFrequentKeysSurviveScans() {
+        ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<Integer, Integer>(
+                100, -1);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                cache.put(i, i);
+                cache.get(i);
+            }
+        }
+        for (int i = 1000; i < 11000; i++) {
+            cache.put(i, i);
+        }
+        int survivors = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.containsKey(i)) {
+                survivors++;
+            }
+        }
+        assertTrue("Only " + survivors + " hot keys left", survivors >= 45);
+    }
+
+    @Test
+    public void testWeightIsBounded() {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(
+                100, -1, new ConcurrentCache.Weigher<String, String>() {
+                    public int weigh(String key, String value) {
+                        return value.length();
+                    }
+                });
+        cache.put("big", "0123456789012345678901234567890123456789"
+                + "0123456789012345678901234567890123456789"
+                + "0123456789012345678901234567890123456789");
+        assertNull(cache.get("big"));
+        for (int i = 0; i < 100; i++) {
+            cache.put("k" + i, "0123456789");
+        }
+        assertTrue(cache.size() <= 10);
+    }
+
+    @Test
+    public void testEntriesExpire() throws InterruptedException {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(
+                10, -1);
+        cache.put("a", "1", 1);
+        cache.put("b", "2");
+        Thread.sleep(10);
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        assertEquals(1, cache.getStats().getExpirationCount());
+    }
+
+    @Test
+    public void testEntryHeavierThanASegmentFits() {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(
+                100, -1, new ConcurrentCache.Weigher<String, String>() {
+                    public int weigh(String key, String value) {
+                        return value.length();
+                    }
+                });
+        String value = "0123456789012345678901234567890123456789"
+                + "01234567890123456789";
+        cache.put("heavy", value);
+        assertEquals(value, cache.get("heavy"));
+    }
+
+    @Test
+    public void testMissThenPutCountsOnce() {
+        ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<Integer, Integer>(
+                100, -1);
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i);
+        }
+        // Keys looked up and then added are used as often as the ones in the
+        // cache, so they must not push them out
+        for (int i = 1000; i < 1200; i++) {
+            assertNull(cache.get(i));
+            cache.put(i, i);
+        }
+        int survivors = 0;
+        for (int i = 0; i < 100; i++) {
+            if (cache.containsKey(i)) {
+                survivors++;
+            }
+        }
+        assertTrue("Only " + survivors + " keys left", survivors >= 90);
+        assertEquals(200, cache.getStats().getMissCount());
+    }
+
+    @Test
+    public void testMaxCacheSizeLikeCache() {
+        ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<Integer, Integer>(
+                100, -1);
+        assertEquals(100, cache.getMaxCacheSize());
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, i);
+        }
+        cache.setMaxCacheSize(10);
+        assertEquals(10, cache.getMaxCacheSize());
+        assertTrue(cache.size() <= 10);
+
+        cache.setMaxCacheSize(-1);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+        }
+        assertEquals(1000, cache.size());
+    }
+
+    /**
+     * A key whose lookups by another instance wait until released, which
+     * holds the lock of its segment while it is put.
+     */
+    private static class GatedKey {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public int hashCode() {
+            return 1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return o instanceof GatedKey;
+        }
+    }
+
+    @Test
+    public void testRenewedEntriesAreNotExpiredByReaders()
+            throws InterruptedException {
+        final ConcurrentCache<GatedKey, String> cache = new ConcurrentCache<GatedKey, String>(
+                10, -1);
+        final GatedKey key = new GatedKey();
+        cache.put(key, "old", 1);
+        Thread.sleep(10);
+
+        // Renews the entry, waiting in the segment lock until released
+        final GatedKey renewal = new GatedKey();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                cache.put(renewal, "new", -1);
+            }
+        };
+        writer.start();
+        assertTrue(renewal.entered.await(5, TimeUnit.SECONDS));
+        // Finds the entry expired, and waits for the lock to drop it
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                cache.get(key);
+            }
+        };
+        reader.start();
+        Thread.sleep(50);
+        renewal.release.countDown();
+        writer.join(5000);
+        reader.join(5000);
+
+        assertEquals("new", cache.get(key));
+    }
+}
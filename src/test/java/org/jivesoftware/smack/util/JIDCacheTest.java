@@ -0,0 +1,60 @@
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.After;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+public class JIDCacheTest {
+
+    @After
+    public void tearDown() {
+        JIDCache.setMaxSize(JIDCache.DEFAULT_MAX_SIZE);
+        JIDCache.clear();
+    }
+
+    @Test
+    public void testPreparedJIDsAreShared() {
+        JIDCache.clear();
+        JID jid = JIDCache.getJID("User@Example.com/Res");
+        assertEquals(new JID("User@Example.com/Res"), jid);
+        assertEquals("user@example.com/Res", jid.toString());
+        assertSame(jid, JIDCache.getJID("User@Example.com/Res"));
+        assertEquals(1, JIDCache.getHits());
+        assertEquals(1, JIDCache.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidJID() {
+        JIDCache.getJID("user@@example.com");
+    }
+
+    @Test
+    public void testDisabledCache() {
+        JIDCache.setMaxSize(0);
+        assertEquals(0, JIDCache.getMaxSize());
+        assertNotSame(JIDCache.getJID("user@example.com"),
+                JIDCache.getJID("user@example.com"));
+        assertEquals(0, JIDCache.size());
+    }
+
+    @Test
+    public void testPrimeRewritesValidAddresses() {
+        Element element = DocumentHelper.createElement("message");
+        element.addAttribute("from", "User@Example.com/Res");
+        element.addAttribute("to", "user@@example.com");
+        Message message = new Message(element, true);
+        JIDCache.prime(message);
+        assertEquals("user@example.com/Res", element.attributeValue("from"));
+        assertSame(JIDCache.getJID("User@Example.com/Res"),
+                message.getFrom());
+        // Left as received
+        assertEquals("user@@example.com", element.attributeValue("to"));
+    }
+}
@@ -0,0 +1,84 @@
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class StringUtilsTest {
+
+    @Test
+    public void testCleanStringsAreReturnedAsIs() {
+        String clean = "nothing to escape here";
+        assertSame(clean, StringUtils.escapeForXML(clean));
+        assertNull(StringUtils.escapeForXML(null));
+    }
+
+    @Test
+    public void testSpecialCharactersAreEscaped() {
+        assertEquals("a &amp; b &lt;c&gt; &quot;d&quot; &apos;e&apos;",
+                StringUtils.escapeForXML("a & b <c> \"d\" 'e'"));
+    }
+
+    @Test
+    public void testCharacterReferencesAreKept() {
+        assertEquals("caf&#233;", StringUtils.escapeForXML("caf&#233;"));
+        // The text around the reference is copied once
+        assertEquals("a &lt; caf&#233; &gt; b",
+                StringUtils.escapeForXML("a < caf&#233; > b"));
+        assertEquals("x&#233;y&#234;z&amp;",
+                StringUtils.escapeForXML("x&#233;y&#234;z&"));
+        // Only references with three decimal digits are recognized
+        assertEquals("&amp;#9; &amp;#x41; &amp;#1234;",
+                StringUtils.escapeForXML("&#9; &#x41; &#1234;"));
+        assertEquals("&amp;#23", StringUtils.escapeForXML("&#23"));
+    }
+
+    @Test
+    public void testControlCharactersAreNotEscapedInText() {
+        assertEquals("a\tb\nc\u0001", StringUtils.escapeForXML("a\tb\nc\u0001"));
+    }
+
+    @Test
+    public void testEscapingAppends() throws IOException {
+        StringWriter writer = new StringWriter();
+        writer.write("<v>");
+        StringUtils.escapeForXML("1 < 2 & caf&#233;", writer);
+        StringUtils.escapeForXML(null, writer);
+        assertEquals("<v>1 &lt; 2 &amp; caf&#233;", writer.toString());
+    }
+
+    @Test
+    public void testAttributesAreEscaped() {
+        assertEquals("a=\"x\"", StringUtils.xmlAttrib("a", "x"));
+        assertEquals("a=\"&lt;&gt;&amp;&quot;&apos;\"",
+                StringUtils.xmlAttrib("a", "<>&\"'"));
+        // Character references are escaped in attributes
+        assertEquals("a=\"&amp;#233;\"", StringUtils.xmlAttrib("a", "&#233;"));
+    }
+
+    @Test
+    public void testAttributeControlCharactersAreReferences() {
+        assertEquals("a=\"x&#x9;y&#xA;z&#xD;&#x0;&#x1F;&#x7F;&#x9F;\"",
+                StringUtils.xmlAttrib("a", "x\ty\nz\r\u0000\u001f\u007f\u009f"));
+        // Printable characters beyond the control ranges are kept
+        assertEquals("a=\" é\"",
+                StringUtils.xmlAttrib("a", " é"));
+    }
+
+    @Test
+    public void testAttributesAppend() throws IOException {
+        StringWriter writer = new StringWriter();
+        writer.write("<e ");
+        StringUtils.xmlAttrib(writer, "a", "1\t<2>");
+        assertEquals("<e a=\"1&#x9;&lt;2&gt;\"", writer.toString());
+
+        StringBuilder builder = new StringBuilder("<e ");
+        assertSame(builder, StringUtils.xmlAttrib(builder, "b", "'"));
+        assertEquals("<e b=\"&apos;\"", builder.toString());
+    }
+}
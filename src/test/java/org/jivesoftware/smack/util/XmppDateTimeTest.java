@@ -0,0 +1,56 @@
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class XmppDateTimeTest {
+
+    @Test
+    public void testParseDateTime() throws ParseException {
+        assertEquals(1393936205123L,
+                XmppDateTime.parseMillis("2014-03-04T12:30:05.123Z"));
+        assertEquals(1393936205000L,
+                XmppDateTime.parseMillis("2014-03-04T12:30:05Z"));
+        assertEquals(1393936205000L,
+                XmppDateTime.parseMillis("2014-03-04T12:30:05"));
+        assertEquals(1393936205123L,
+                XmppDateTime.parseMillis("2014-03-04T12:30:05.123456Z"));
+        assertEquals(1393936205100L,
+                XmppDateTime.parseMillis("2014-03-04T12:30:05.1Z"));
+        assertEquals(1393936205123L,
+                XmppDateTime.parseMillis("2014-03-04T09:30:05.123-03:00"));
+        assertEquals(1393936205123L,
+                XmppDateTime.parseMillis("2014-03-04T14:00:05.123+01:30"));
+        assertEquals(1393891200000L, XmppDateTime.parseMillis("2014-03-04"));
+    }
+
+    @Test
+    public void testFormatMatchesSimpleDateFormat() throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long[] samples = { 0L, 951782400000L, 1393936205123L, -1L,
+                4102444799999L };
+        for (long millis : samples) {
+            String formatted = XmppDateTime.format(millis);
+            assertEquals(format.format(millis), formatted);
+            assertEquals(millis, XmppDateTime.parseMillis(formatted));
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void testInvalidDay() throws ParseException {
+        XmppDateTime.parseMillis("2014-02-29T12:30:05Z");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testInvalidTimeZone() throws ParseException {
+        XmppDateTime.parseMillis("2014-03-04T12:30:05+0100");
+    }
+
+}
@@ -0,0 +1,175 @@
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyControllerTest {
+
+    private SharedWorkerPool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Queues the given number of tasks sleeping for the given time, and
+     * waits for all of them to be counted by the lane.
+     */
+    private static void runTasks(SharedWorkerPool.Lane lane, int count,
+            final long sleep) throws InterruptedException {
+        long completed = lane.getCompletedCount() + count;
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            lane.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(sleep);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        // The lane counts a task once it returned
+        long end = System.currentTimeMillis() + 5000;
+        while (lane.getCompletedCount() < completed
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimits() {
+        new AdaptiveConcurrencyController(2, 1);
+    }
+
+    @Test
+    public void testLimitsGrowWhileQueueingUpToThePoolSize()
+            throws InterruptedException {
+        pool = new SharedWorkerPool(4, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 1, 1000);
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                1, 100);
+        controller.control(lane);
+        int highest = 0;
+        for (int round = 0; round < 30; round++) {
+            runTasks(lane, 20, 1);
+            controller.adjust();
+            highest = Math.max(highest, lane.getMaxConcurrency());
+            assertTrue(lane.getMaxConcurrency() <= 4);
+        }
+        assertTrue(highest > 1);
+    }
+
+    @Test
+    public void testLimitsAreLoweredToThePoolSize() {
+        pool = new SharedWorkerPool(4, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 25, 1000);
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                1, 100);
+        controller.control(lane);
+        controller.adjust();
+        assertEquals(4, lane.getMaxConcurrency());
+
+        // A priority lane leaves one thread less to the others
+        pool.createPriorityLane(1, 4, 1000);
+        controller.adjust();
+        assertEquals(3, lane.getMaxConcurrency());
+    }
+
+    @Test
+    public void testLimitsGoDownWhenProcessingSlowsDown()
+            throws InterruptedException {
+        pool = new SharedWorkerPool(8, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 4, 1000);
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                2, 8);
+        controller.control(lane);
+        runTasks(lane, 1, 1);
+        controller.adjust();
+        for (int round = 0; round < 10; round++) {
+            runTasks(lane, 1, 20);
+            controller.adjust();
+        }
+        assertEquals(2, lane.getMaxConcurrency());
+        assertTrue(controller.getLatency(lane) >= 20);
+    }
+
+    @Test
+    public void testShutDownLanesAreReleased() throws InterruptedException {
+        pool = new SharedWorkerPool(2, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 1, 10);
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                1, 2);
+        controller.control(lane);
+        runTasks(lane, 1, 1);
+        controller.adjust();
+        assertTrue(controller.getLatency(lane) > 0);
+
+        lane.shutdown();
+        controller.adjust();
+        assertEquals(0, controller.getLatency(lane), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPoolBounds() {
+        new AdaptiveConcurrencyController(1, 2).control(new SharedWorkerPool(
+                1), 2, 1);
+    }
+
+    @Test
+    public void testPoolGrowsForWaitingHandlers() throws InterruptedException {
+        pool = new SharedWorkerPool(2, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 1, 1000);
+        pool.createPriorityLane(1, 1, 1000);
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                1, 16);
+        controller.control(lane);
+        controller.control(pool, 2, 16);
+        for (int round = 0; round < 30 && pool.getThreads() < 8; round++) {
+            // Handlers waiting on I/O take as long however many run
+            runTasks(lane, 40, 2);
+            controller.adjust();
+            assertTrue(pool.getThreads() <= 16);
+        }
+        assertTrue(pool.getThreads() >= 8);
+        // A thread is kept for the priority lane
+        assertEquals(lane.getMaxConcurrency() + 1, pool.getThreads());
+        assertEquals(pool.getThreads() - 1, lane.getAvailableThreads());
+    }
+
+    @Test
+    public void testPoolShrinksWithTheLimits() throws InterruptedException {
+        pool = new SharedWorkerPool(8, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 4, 1000);
+        AdaptiveConcurrencyController controller = new AdaptiveConcurrencyController(
+                2, 8);
+        controller.control(lane);
+        controller.control(pool, 1, 8);
+        runTasks(lane, 1, 1);
+        controller.adjust();
+        for (int round = 0; round < 10; round++) {
+            runTasks(lane, 1, 20);
+            controller.adjust();
+        }
+        assertEquals(2, lane.getMaxConcurrency());
+        assertEquals(2, pool.getThreads());
+
+        // A released pool keeps its size
+        controller.release(pool);
+        lane.setMaxConcurrency(8);
+        controller.adjust();
+        assertEquals(2, pool.getThreads());
+    }
+}
@@ -0,0 +1,159 @@
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.whack.CircuitBreaker.State;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+public class CircuitBreakerTest {
+
+    private static final long OPEN_DURATION = 20;
+
+    /**
+     * Returns a breaker over 4 requests, opened by half of them failing.
+     */
+    private static CircuitBreaker open() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 0.5, OPEN_DURATION);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    private static void waitOpenDuration() throws InterruptedException {
+        Thread.sleep(OPEN_DURATION * 2);
+    }
+
+    @Test
+    public void testWaitsForHalfAWindowBeforeOpening() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 0.5, OPEN_DURATION);
+        breaker.recordFailure();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testStaysClosedBelowTheThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 0.5, OPEN_DURATION);
+        for (int i = 0; i < 10; i++) {
+            breaker.recordSuccess();
+            breaker.recordSuccess();
+            breaker.recordSuccess();
+            breaker.recordFailure();
+        }
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(0.25, breaker.getFailureRate(), 0.001);
+        assertEquals(30, breaker.getSuccessCount());
+        assertEquals(10, breaker.getFailureCount());
+    }
+
+    @Test
+    public void testOpenBreakerRejectsRequests() {
+        CircuitBreaker breaker = open();
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(2, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void testLetsASingleProbeThrough() throws InterruptedException {
+        CircuitBreaker breaker = open();
+        waitOpenDuration();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+
+        // The probe never got an outcome, another one is let through
+        waitOpenDuration();
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testSuccessfulProbeCloses() throws InterruptedException {
+        CircuitBreaker breaker = open();
+        waitOpenDuration();
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailureRate(), 0);
+
+        // The window starts over
+        breaker.recordFailure();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testFailedProbeReopens() throws InterruptedException {
+        CircuitBreaker breaker = open();
+        waitOpenDuration();
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testOneBreakerPerBareJID() {
+        CircuitBreakers breakers = new CircuitBreakers();
+        CircuitBreaker breaker = breakers.get(new JID("a@example.com/r1"));
+        assertSame(breaker, breakers.get(new JID("a@example.com/r2")));
+        assertTrue(breaker != breakers.get(new JID("b@example.com")));
+        assertNull(breakers.get(null));
+        assertEquals(2, breakers.getBreakers().size());
+    }
+
+    @Test
+    public void testConcurrentCallersShareTheBreaker()
+            throws InterruptedException {
+        final CircuitBreakers breakers = new CircuitBreakers();
+        final Set<CircuitBreaker> seen = Collections
+                .newSetFromMap(new ConcurrentHashMap<CircuitBreaker, Boolean>());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        seen.add(breakers.get(new JID("a@example.com")));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        start.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, seen.size());
+    }
+
+    @Test
+    public void testBreakersOfManyDestinationsAreKept() {
+        CircuitBreakers breakers = new CircuitBreakers();
+        CircuitBreaker first = breakers.get(new JID("0@example.com"));
+        first.recordFailure();
+        for (int i = 1; i < 2000; i++) {
+            breakers.get(new JID(i + "@example.com"));
+        }
+        // None is idle, so the failing destination keeps its breaker
+        assertSame(first, breakers.get(new JID("0@example.com")));
+        assertEquals(2000, breakers.getBreakers().size());
+    }
+}
@@ -0,0 +1,214 @@
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.component.AbstractComponent;
+import org.xmpp.component.Component;
+import org.xmpp.component.ComponentException;
+
+public class ExternalComponentManagerTest {
+
+    private SharedWorkerPool pool;
+    private RecordingController controller;
+    private ExternalComponentManager manager;
+
+    /**
+     * Keeps the lanes and pools it was asked to control and has not
+     * released.
+     */
+    private static class RecordingController extends
+            AdaptiveConcurrencyController {
+
+        final List<SharedWorkerPool.Lane> controlled = new ArrayList<SharedWorkerPool.Lane>();
+        final List<SharedWorkerPool> pools = new ArrayList<SharedWorkerPool>();
+        int created;
+
+        RecordingController() {
+            super(1, 4);
+        }
+
+        @Override
+        public synchronized void control(SharedWorkerPool.Lane lane) {
+            super.control(lane);
+            controlled.add(lane);
+            created++;
+        }
+
+        @Override
+        public synchronized void release(SharedWorkerPool.Lane lane) {
+            super.release(lane);
+            controlled.remove(lane);
+        }
+
+        @Override
+        public synchronized void control(SharedWorkerPool pool,
+                int minThreads, int maxThreads) {
+            super.control(pool, minThreads, maxThreads);
+            pools.add(pool);
+        }
+
+        @Override
+        public synchronized void release(SharedWorkerPool pool) {
+            super.release(pool);
+            pools.remove(pool);
+        }
+    }
+
+    /**
+     * Accepts a single component connection and completes its handshake.
+     */
+    private static class HandshakingServer extends Thread {
+
+        final ServerSocket serverSocket;
+
+        HandshakingServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket socket = serverSocket.accept();
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                readUntil(in, ">");
+                out.write(("<stream:stream xmlns='jabber:component:accept'"
+                        + " xmlns:stream='http://etherx.jabber.org/streams'"
+                        + " id='1'>").getBytes("UTF-8"));
+                out.flush();
+                readUntil(in, "</handshake>");
+                out.write("<handshake/>".getBytes("UTF-8"));
+                out.flush();
+                readUntil(in, "</stream:stream>");
+                socket.close();
+            } catch (IOException e) {
+                // The test fails on its own
+            }
+        }
+
+        private static void readUntil(InputStream in, String end)
+                throws IOException {
+            StringBuilder read = new StringBuilder();
+            int b;
+            while (read.indexOf(end) < 0 && (b = in.read()) != -1) {
+                read.append((char) b);
+            }
+        }
+    }
+
+    private static Component createComponent() {
+        return new AbstractComponent() {
+
+            @Override
+            public String getName() {
+                return "test";
+            }
+
+            @Override
+            public String getDescription() {
+                return "test";
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        pool = new SharedWorkerPool(4, 1, "test-pool-");
+        controller = new RecordingController();
+        manager = new ExternalComponentManager("localhost");
+        manager.setSharedWorkerPool(pool);
+        manager.setConcurrencyController(controller);
+        manager.setSecretKey("comp", "secret");
+        manager.setConnectTimeout(1000);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testFailedConnectionReleasesTheLanes() throws IOException {
+        // Nothing listens on the port once the socket is closed
+        ServerSocket closed = new ServerSocket(0);
+        closed.close();
+        Component component = createComponent();
+        try {
+            manager.addComponent("comp", component, closed.getLocalPort());
+            fail();
+        } catch (ComponentException e) {
+            // Expected
+        }
+        assertTrue(controller.created > 0);
+        assertTrue(controller.controlled.isEmpty());
+        assertNull(manager.getExternalComponent(component));
+    }
+
+    @Test
+    public void testDuplicateAddsCreateNoLanes() throws Exception {
+        HandshakingServer server = new HandshakingServer();
+        server.start();
+        int port = server.serverSocket.getLocalPort();
+        Component component = createComponent();
+        manager.addComponent("comp", component, port);
+        ExternalComponent externalComponent = manager
+                .getExternalComponent(component);
+        assertNotNull(externalComponent);
+        int created = controller.created;
+
+        manager.addComponent("comp", component, port);
+        try {
+            manager.addComponent("comp", createComponent(), port);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(created, controller.created);
+        assertEquals(created, controller.controlled.size());
+
+        manager.removeComponent("comp");
+        assertTrue(controller.controlled.isEmpty());
+        for (SharedWorkerPool.Lane lane : externalComponent.getLanes()) {
+            assertTrue(lane.isShutdown());
+        }
+        server.join(5000);
+        server.serverSocket.close();
+    }
+
+    @Test
+    public void testOwnPoolsAreResized() throws Exception {
+        HandshakingServer server = new HandshakingServer();
+        server.start();
+        manager.setSharedWorkerPool(null);
+        Component component = createComponent();
+        manager.addComponent("comp", component,
+                server.serverSocket.getLocalPort());
+        ExternalComponent externalComponent = manager
+                .getExternalComponent(component);
+        assertNotNull(externalComponent.getPool());
+        assertEquals(1, controller.pools.size());
+        assertTrue(controller.pools.contains(externalComponent.getPool()));
+
+        manager.removeComponent("comp");
+        assertTrue(controller.pools.isEmpty());
+        assertTrue(externalComponent.getPool().isShutdown());
+        server.join(5000);
+        server.serverSocket.close();
+    }
+}
@@ -0,0 +1,182 @@
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.component.Component;
+import org.xmpp.component.ComponentManager;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+public class ReadBatchingTest {
+
+    private SharedWorkerPool pool;
+    private SharedWorkerPool.Lane lane;
+    private RecordingComponent component;
+    private ExternalComponent externalComponent;
+
+    /**
+     * Keeps the bodies of the messages it processes.
+     */
+    private static class RecordingComponent implements Component {
+
+        final List<String> processed = new ArrayList<String>();
+
+        public synchronized void processPacket(Packet packet) {
+            processed.add(((Message) packet).getBody());
+            notifyAll();
+        }
+
+        List<String> awaitProcessed(int count) throws InterruptedException {
+            return awaitProcessed(count, 5000);
+        }
+
+        synchronized List<String> awaitProcessed(int count, long timeout)
+                throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            while (processed.size() < count
+                    && System.currentTimeMillis() < end) {
+                wait(10);
+            }
+            return new ArrayList<String>(processed);
+        }
+
+        public String getName() {
+            return "test";
+        }
+
+        public String getDescription() {
+            return "test";
+        }
+
+        public void initialize(JID jid, ComponentManager componentManager) {
+        }
+
+        public void start() {
+        }
+
+        public void shutdown() {
+        }
+    }
+
+    /**
+     * Holds the thread of the lane until released.
+     */
+    private static class Blocker implements Runnable {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public void run() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        pool = new SharedWorkerPool(1, 1, "test-pool-");
+        lane = pool.createLane(1, 1, 1000);
+        component = new RecordingComponent();
+        externalComponent = new ExternalComponent(component,
+                new ExternalComponentManager("localhost", 5275), lane);
+        // Only a full batch or a read that would wait hands packets over
+        externalComponent.setReadBatching(16, 60000);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    private static Message createMessage(String body) {
+        Message message = new Message();
+        message.setBody(body);
+        return message;
+    }
+
+    /**
+     * Reads from the given input as the parser does.
+     */
+    private void read(byte[] input) throws IOException {
+        InputStream in = externalComponent.new ReadBatchingStream(
+                new ByteArrayInputStream(input));
+        in.read(new byte[16], 0, 16);
+    }
+
+    private Blocker blockLane() throws InterruptedException {
+        Blocker blocker = new Blocker();
+        lane.execute(blocker);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        return blocker;
+    }
+
+    @Test
+    public void testLonePacketsAreHandedOverAtOnce()
+            throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            externalComponent.processReadPacket(createMessage("m" + i));
+            // Without a backlog, batches keep a single packet
+            assertEquals(i + 1, component.awaitProcessed(i + 1).size());
+        }
+    }
+
+    @Test
+    public void testBatchesGrowWithTheBacklog() throws Exception {
+        Blocker blocker = blockLane();
+        externalComponent.processReadPacket(createMessage("m1"));
+        externalComponent.processReadPacket(createMessage("m2"));
+        assertEquals(2, lane.getQueueSize());
+
+        // The lane is behind, so the next packet waits for company
+        externalComponent.processReadPacket(createMessage("m3"));
+        assertEquals(2, lane.getQueueSize());
+        read("<message".getBytes("UTF-8"));
+        assertEquals(2, lane.getQueueSize());
+
+        // But not for input that is not there yet
+        read(new byte[0]);
+        assertEquals(3, lane.getQueueSize());
+
+        blocker.release.countDown();
+        List<String> processed = component.awaitProcessed(3);
+        assertEquals("[m1, m2, m3]", processed.toString());
+    }
+
+    @Test
+    public void testBatchesShrinkOnceTheLaneKeepsUp() throws Exception {
+        Blocker blocker = blockLane();
+        for (int i = 0; i < 4; i++) {
+            externalComponent.processReadPacket(createMessage("m" + i));
+        }
+        read(new byte[0]);
+        blocker.release.countDown();
+        assertEquals(4, component.awaitProcessed(4).size());
+
+        // Each hand-over to an idle lane halves the batch, from 4 to 2 to 1
+        for (int i = 4; i < 6; i++) {
+            externalComponent.processReadPacket(createMessage("m" + i));
+            assertEquals(i, component.awaitProcessed(i + 1, 100).size());
+            read(new byte[0]);
+            assertEquals(i + 1, component.awaitProcessed(i + 1).size());
+        }
+        externalComponent.processReadPacket(createMessage("m6"));
+        assertEquals(7, component.awaitProcessed(7).size());
+    }
+}
@@ -0,0 +1,83 @@
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+public class SenderQuotaTest {
+
+    /**
+     * Returns the address as the reader creates it, without preparing it.
+     */
+    private static JID unprepared(String node, String domain, String resource) {
+        return new JID(node, domain, resource, true);
+    }
+
+    @Test
+    public void testBurstIsAdmittedThenRejected() {
+        SenderQuota quota = new SenderQuota(0.001, 3);
+        JID sender = new JID("user@example.com/phone");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(quota.tryAcquire(sender));
+        }
+        assertFalse(quota.tryAcquire(sender));
+        assertFalse(quota.tryAcquire(sender));
+
+        assertEquals(3, quota.getAdmittedCount());
+        assertEquals(2, quota.getRejectedCount());
+        assertEquals(2, quota.getRejectedCount(sender));
+        assertEquals(0, quota.getRejectedCount(new JID("other@example.com")));
+        // Other senders have buckets of their own
+        assertTrue(quota.tryAcquire(new JID("other@example.com")));
+    }
+
+    @Test
+    public void testBucketsRefillAtTheRate() throws InterruptedException {
+        SenderQuota quota = new SenderQuota(100, 1);
+        JID sender = new JID("user@example.com");
+        assertTrue(quota.tryAcquire(sender));
+        assertFalse(quota.tryAcquire(sender));
+        Thread.sleep(30);
+        assertTrue(quota.tryAcquire(sender));
+        // Never more than the burst however long the sender waited
+        Thread.sleep(30);
+        assertTrue(quota.tryAcquire(sender));
+        assertFalse(quota.tryAcquire(sender));
+    }
+
+    @Test
+    public void testPacketsFromTheServerAreAdmitted() {
+        SenderQuota quota = new SenderQuota(0.001, 1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(quota.tryAcquire(null));
+        }
+        assertEquals(10, quota.getAdmittedCount());
+        assertEquals(0, quota.getSenderCount());
+    }
+
+    @Test
+    public void testAddressesShareTheBucketOfTheirPreparedForm() {
+        SenderQuota quota = new SenderQuota(0.001, 2);
+        assertTrue(quota.tryAcquire(unprepared("User", "Example.COM", "a")));
+        assertTrue(quota.tryAcquire(unprepared("user", "example.com", "b")));
+        assertFalse(quota.tryAcquire(unprepared("USER", "EXAMPLE.com", null)));
+        assertEquals(1, quota.getSenderCount());
+        assertEquals(1, quota.getRejectedCount(new JID("user@example.com")));
+    }
+
+    @Test
+    public void testExpiredBucketsStartOverFull() throws InterruptedException {
+        SenderQuota quota = new SenderQuota(0.001, 1, 100, 20);
+        JID sender = new JID("user@example.com");
+        assertTrue(quota.tryAcquire(sender));
+        assertFalse(quota.tryAcquire(sender));
+        Thread.sleep(40);
+        assertEquals(0, quota.getRejectedCount(sender));
+        assertTrue(quota.tryAcquire(sender));
+        assertEquals(2, quota.getAdmittedCount());
+        assertEquals(1, quota.getRejectedCount());
+    }
+}
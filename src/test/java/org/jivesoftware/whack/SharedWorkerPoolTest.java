@@ -0,0 +1,252 @@
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SharedWorkerPoolTest {
+
+    private SharedWorkerPool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Holds a thread of the pool until released.
+     */
+    private static class Blocker implements Runnable {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public void run() {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Appends its name to the given order once run.
+     */
+    private static Runnable append(final StringBuffer order,
+            final String name, final CountDownLatch done) {
+        return new Runnable() {
+            public void run() {
+                order.append(name);
+                done.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testTasksRunOnPoolThreads() throws InterruptedException {
+        pool = new SharedWorkerPool(2, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 2, 10);
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+        final CountDownLatch done = new CountDownLatch(1);
+        lane.execute(new Runnable() {
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(threadName.get().startsWith("test-pool-"));
+    }
+
+    @Test
+    public void testLanesUseAtMostTheirConcurrency()
+            throws InterruptedException {
+        pool = new SharedWorkerPool(4, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 1, 100);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            lane.execute(new Runnable() {
+                public void run() {
+                    int current = running.incrementAndGet();
+                    if (current > maxRunning.get()) {
+                        maxRunning.set(current);
+                    }
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void testTurnsFollowWeights() throws InterruptedException {
+        pool = new SharedWorkerPool(1, 1, "test-pool-");
+        SharedWorkerPool.Lane heavy = pool.createLane(2, 1, 100);
+        SharedWorkerPool.Lane light = pool.createLane(1, 1, 100);
+        SharedWorkerPool.Lane other = pool.createLane(1, 1, 100);
+
+        // Queue both lanes while the only thread is busy
+        Blocker blocker = new Blocker();
+        other.execute(blocker);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        StringBuffer order = new StringBuffer();
+        CountDownLatch done = new CountDownLatch(12);
+        for (int i = 0; i < 6; i++) {
+            heavy.execute(append(order, "H", done));
+        }
+        for (int i = 0; i < 6; i++) {
+            light.execute(append(order, "L", done));
+        }
+        blocker.release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("HHLHHLHHLLLL", order.toString());
+    }
+
+    @Test
+    public void testFullLaneRunsTasksOnTheCaller() throws InterruptedException {
+        pool = new SharedWorkerPool(1, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 1, 1);
+        Blocker blocker = new Blocker();
+        lane.execute(blocker);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch queuedDone = new CountDownLatch(1);
+        lane.execute(new Runnable() {
+            public void run() {
+                queuedDone.countDown();
+            }
+        });
+        assertEquals(1, lane.getQueueSize());
+
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        lane.execute(new Runnable() {
+            public void run() {
+                thread.set(Thread.currentThread());
+            }
+        });
+        assertSame(Thread.currentThread(), thread.get());
+
+        blocker.release.countDown();
+        assertTrue(queuedDone.await(5, TimeUnit.SECONDS));
+        assertEquals(0, lane.getQueueSize());
+    }
+
+    @Test
+    public void testShutdownLaneDropsNewTasks() throws InterruptedException {
+        pool = new SharedWorkerPool(1, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 1, 10);
+        Blocker blocker = new Blocker();
+        lane.execute(blocker);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+
+        StringBuffer order = new StringBuffer();
+        CountDownLatch done = new CountDownLatch(1);
+        lane.execute(append(order, "queued", done));
+        lane.shutdown();
+        lane.execute(append(order, "dropped", new CountDownLatch(1)));
+        blocker.release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(lane.isShutdown());
+        assertEquals("queued", order.toString());
+    }
+
+    @Test
+    public void testRaisingConcurrencyStartsQueuedTasks()
+            throws InterruptedException {
+        pool = new SharedWorkerPool(2, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 1, 10);
+        Blocker first = new Blocker();
+        Blocker second = new Blocker();
+        lane.execute(first);
+        lane.execute(second);
+        assertTrue(first.started.await(5, TimeUnit.SECONDS));
+        assertFalse(second.started.await(50, TimeUnit.MILLISECONDS));
+
+        lane.setMaxConcurrency(2);
+        assertTrue(second.started.await(5, TimeUnit.SECONDS));
+        first.release.countDown();
+        second.release.countDown();
+    }
+
+    @Test
+    public void testPriorityLanesKeepAThread() throws InterruptedException {
+        pool = new SharedWorkerPool(2, 1, "test-pool-");
+        SharedWorkerPool.Lane queries = pool.createLane(1, 2, 10);
+        SharedWorkerPool.Lane bulk = pool.createLane(1, 2, 10);
+        SharedWorkerPool.Lane control = pool.createPriorityLane(1, 2, 10);
+        assertTrue(control.isPriority());
+
+        Blocker first = new Blocker();
+        Blocker second = new Blocker();
+        Blocker third = new Blocker();
+        queries.execute(first);
+        queries.execute(second);
+        bulk.execute(third);
+        assertTrue(first.started.await(5, TimeUnit.SECONDS));
+        // The other lanes share a single thread between them
+        assertFalse(second.started.await(50, TimeUnit.MILLISECONDS));
+        assertFalse(third.started.await(0, TimeUnit.MILLISECONDS));
+
+        StringBuffer order = new StringBuffer();
+        CountDownLatch done = new CountDownLatch(1);
+        control.execute(append(order, "control", done));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // Waiting lanes get the thread back once released
+        first.release.countDown();
+        assertTrue(second.started.await(5, TimeUnit.SECONDS)
+                || third.started.await(5, TimeUnit.SECONDS));
+        second.release.countDown();
+        third.release.countDown();
+        assertTrue(second.started.await(5, TimeUnit.SECONDS));
+        assertTrue(third.started.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAddedThreadsStartWaitingLanes() throws InterruptedException {
+        pool = new SharedWorkerPool(1, 1, "test-pool-");
+        SharedWorkerPool.Lane lane = pool.createLane(1, 2, 10);
+        Blocker first = new Blocker();
+        Blocker second = new Blocker();
+        lane.execute(first);
+        lane.execute(second);
+        assertTrue(first.started.await(5, TimeUnit.SECONDS));
+        assertFalse(second.started.await(50, TimeUnit.MILLISECONDS));
+
+        pool.setThreads(2);
+        assertEquals(2, lane.getAvailableThreads());
+        assertTrue(second.started.await(5, TimeUnit.SECONDS));
+        first.release.countDown();
+        second.release.countDown();
+
+        pool.setThreads(1);
+        assertEquals(1, pool.getThreads());
+        assertFalse(pool.isShutdown());
+        pool.shutdown();
+        assertTrue(pool.isShutdown());
+    }
+}
@@ -0,0 +1,112 @@
+package org.jivesoftware.whack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.Message;
+
+public class SocketWriteThreadTest {
+
+    private ExternalComponent component;
+    private StringWriter socket;
+
+    @Before
+    public void setUp() {
+        component = new ExternalComponent(null, new ExternalComponentManager(
+                "localhost", 5275), 1);
+        socket = new StringWriter();
+    }
+
+    /**
+     * Writes a fixed stanza, remembering the thread that wrote it.
+     */
+    private static class FixedPacket extends IQ implements WritablePacket {
+
+        private final String xml;
+        volatile Thread writtenBy;
+
+        FixedPacket(String xml) {
+            this.xml = xml;
+        }
+
+        @Override
+        public void writeTo(Writer writer) throws IOException {
+            writtenBy = Thread.currentThread();
+            writer.write(xml);
+        }
+    }
+
+    private static Message createMessage(String body) {
+        Message message = new Message();
+        message.setBody(body);
+        return message;
+    }
+
+    private SocketWriteThread start(long lowWatermark, long highWatermark) {
+        SocketWriteThread writeThread = new SocketWriteThread(component,
+                socket, lowWatermark, highWatermark);
+        writeThread.setDaemon(true);
+        writeThread.start();
+        return writeThread;
+    }
+
+    @Test
+    public void testWritablePacketsAreWrittenByTheThread() {
+        SocketWriteThread writeThread = start(0, 100000);
+        FixedPacket packet = new FixedPacket("<iq id='1'/>");
+        assertTrue(writeThread.offer(packet, false));
+        writeThread.close(5000);
+
+        assertEquals(writeThread, packet.writtenBy);
+        assertEquals("<iq id='1'/>", socket.toString());
+    }
+
+    @Test
+    public void testCloseWritesQueuedPackets() throws InterruptedException {
+        SocketWriteThread writeThread;
+        synchronized (socket) {
+            // The thread cannot write until the lock is released
+            writeThread = start(0, 100000);
+            writeThread.offer(createMessage("first"), true);
+            writeThread.offer(Arrays.asList(new FixedPacket("<iq id='2'/>"),
+                    createMessage("third")));
+        }
+        writeThread.close(5000);
+        writeThread.offer(createMessage("dropped"), true);
+
+        String written = socket.toString();
+        assertTrue(written.indexOf("first") < written.indexOf("<iq id='2'/>"));
+        assertTrue(written.indexOf("<iq id='2'/>") < written
+                .indexOf("third"));
+        assertFalse(written.contains("dropped"));
+        writeThread.join(5000);
+        assertFalse(writeThread.isAlive());
+    }
+
+    @Test
+    public void testWritablePacketsCountTowardsTheWatermarks() {
+        SocketWriteThread writeThread;
+        synchronized (socket) {
+            writeThread = start(0,
+                    SocketWriteThread.WRITABLE_PACKET_LENGTH + 1);
+            writeThread.offer(new FixedPacket("<iq id='1'/>"), false);
+            assertFalse(writeThread.isCongested());
+            writeThread.offer(new FixedPacket("<iq id='2'/>"), false);
+            assertTrue(writeThread.isCongested());
+            assertFalse(writeThread.offer(new FixedPacket("<iq id='3'/>"),
+                    false));
+        }
+        writeThread.close(5000);
+        assertEquals("<iq id='1'/><iq id='2'/>", socket.toString());
+        assertEquals(0, writeThread.getQueued());
+    }
+}
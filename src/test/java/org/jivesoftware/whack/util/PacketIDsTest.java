@@ -0,0 +1,40 @@
+package org.jivesoftware.whack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PacketIDsTest {
+
+    @Test
+    public void testRoundTrip() {
+        long[] values = { 1, 35, 36, 1234567890L, Long.MAX_VALUE };
+        for (long value : values) {
+            String id = PacketIDs.encode(value);
+            assertEquals('w', id.charAt(0));
+            assertEquals(value, PacketIDs.decode(id));
+        }
+    }
+
+    @Test
+    public void testNextIdsArePositiveAndDistinct() {
+        long first = PacketIDs.decode(PacketIDs.next());
+        long second = PacketIDs.nextLong();
+        assertTrue(first > 0);
+        assertTrue(second > first);
+    }
+
+    @Test
+    public void testOnlyExactEncodingsAreDecoded() {
+        String max = Long.toString(Long.MAX_VALUE, 36);
+        String[] ids = { null, "", "w", "x1", "W1", "w0", "w01", "wA", "w-1",
+                "w1 ", "purple1a2b", "abc-12",
+                // Overflows, by value and by length
+                "w" + max.substring(0, max.length() - 1) + "z",
+                "w" + max + "0" };
+        for (String id : ids) {
+            assertEquals(String.valueOf(id), 0, PacketIDs.decode(id));
+        }
+    }
+}
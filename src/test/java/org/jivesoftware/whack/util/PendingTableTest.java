@@ -0,0 +1,109 @@
+package org.jivesoftware.whack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PendingTableTest {
+
+    @Test
+    public void testPutGetRemove() {
+        PendingTable<String> table = new PendingTable<String>();
+        table.put(1, "a", 0);
+        table.put(2, "b", 0);
+        table.put(1, "c", 0);
+        assertEquals(2, table.size());
+        assertEquals("c", table.get(1));
+
+        assertFalse(table.remove(1, "a"));
+        assertTrue(table.remove(1, "c"));
+        assertNull(table.get(1));
+        assertEquals("b", table.remove(2));
+        assertNull(table.remove(2));
+        assertEquals(0, table.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeysMustBePositive() {
+        new PendingTable<String>().put(0, "a", 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValuesCannotBeNull() {
+        new PendingTable<String>().put(1, null, 0);
+    }
+
+    @Test
+    public void testGrowsPastItsInitialCapacity() {
+        PendingTable<Long> table = new PendingTable<Long>();
+        for (long key = 1; key <= 10000; key++) {
+            table.put(key, key, 0);
+        }
+        assertEquals(10000, table.size());
+        for (long key = 1; key <= 10000; key++) {
+            assertEquals(Long.valueOf(key), table.get(key));
+        }
+        assertNull(table.get(10001));
+    }
+
+    /**
+     * Mixes additions and removals of a few keys, so that probe sequences
+     * wrap around and removals shift entries back, and checks every key
+     * against a map after each step.
+     */
+    @Test
+    public void testRemovalsKeepOtherKeysReachable() {
+        PendingTable<Long> table = new PendingTable<Long>();
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random random = new Random(42);
+        for (int step = 0; step < 20000; step++) {
+            long key = 1 + random.nextInt(200);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), table.remove(key));
+            } else {
+                Long value = Long.valueOf(step);
+                expected.put(key, value);
+                table.put(key, value, 0);
+            }
+            if (step % 100 == 0) {
+                for (long k = 1; k <= 200; k++) {
+                    assertEquals(expected.get(k), table.get(k));
+                }
+                assertEquals(expected.size(), table.size());
+            }
+        }
+    }
+
+    @Test
+    public void testExpire() {
+        PendingTable<String> table = new PendingTable<String>();
+        table.put(1, "expired", 100);
+        table.put(2, "later", 300);
+        table.put(3, "never", 0);
+        table.put(4, "due", 200);
+
+        final Map<Long, String> notified = new HashMap<Long, String>();
+        int expired = table.expire(200,
+                new PendingTable.ExpiryListener<String>() {
+                    @Override
+                    public void expired(long key, String value) {
+                        notified.put(key, value);
+                    }
+                });
+
+        assertEquals(2, expired);
+        assertEquals(2, notified.size());
+        assertEquals("expired", notified.get(1L));
+        assertEquals("due", notified.get(4L));
+        assertEquals(2, table.size());
+        assertEquals("later", table.get(2));
+        assertEquals("never", table.get(3));
+    }
+}
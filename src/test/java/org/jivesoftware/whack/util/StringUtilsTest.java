@@ -0,0 +1,52 @@
+package org.jivesoftware.whack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class StringUtilsTest {
+
+    @Test
+    public void testCleanStringsAreReturnedAsIs() {
+        String clean = "nothing to escape here";
+        assertSame(clean, StringUtils.escapeForXML(clean));
+        assertNull(StringUtils.escapeForXML(null));
+    }
+
+    @Test
+    public void testSpecialCharactersAreEscaped() {
+        assertEquals("a &amp; b &lt;c&gt; &quot;d&quot;",
+                StringUtils.escapeForXML("a & b <c> \"d\""));
+        // Apostrophes are left as they are
+        assertEquals("it's", StringUtils.escapeForXML("it's"));
+    }
+
+    @Test
+    public void testCharacterReferencesAreKept() {
+        assertEquals("caf&#233;", StringUtils.escapeForXML("caf&#233;"));
+        // The text around the reference is copied once
+        assertEquals("a &lt; caf&#233; &gt; b",
+                StringUtils.escapeForXML("a < caf&#233; > b"));
+        assertEquals("&amp;#9; &amp;#x41; &amp;#1234;",
+                StringUtils.escapeForXML("&#9; &#x41; &#1234;"));
+    }
+
+    @Test
+    public void testControlCharactersAreNotEscaped() {
+        assertEquals("a\tb\nc\u0001", StringUtils.escapeForXML("a\tb\nc\u0001"));
+    }
+
+    @Test
+    public void testEscapingAppends() throws IOException {
+        StringWriter writer = new StringWriter();
+        writer.write("<v>");
+        StringUtils.escapeForXML("1 < 2 & caf&#233;", writer);
+        StringUtils.escapeForXML(null, writer);
+        assertEquals("<v>1 &lt; 2 &amp; caf&#233;", writer.toString());
+    }
+}
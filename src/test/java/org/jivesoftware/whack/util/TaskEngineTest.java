@@ -0,0 +1,61 @@
+package org.jivesoftware.whack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TaskEngineTest {
+
+    private static TimerTask count(final AtomicInteger runs,
+            final CountDownLatch done) {
+        return new TimerTask() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                done.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testScheduledTaskRuns() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        TaskEngine.getInstance().schedule(count(runs, done), 10);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testCancelledTaskDoesNotRun() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        TimerTask task = count(runs, done);
+        TaskEngine.getInstance().schedule(task, 50);
+        TaskEngine.getInstance().cancelScheduledTask(task);
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void testPurgingKeepsPendingTasks() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < TaskEngine.PURGE_INTERVAL * 2; i++) {
+            TimerTask task = count(runs, done);
+            TaskEngine.getInstance().schedule(task, 60000);
+            TaskEngine.getInstance().cancelScheduledTask(task);
+        }
+        TimerTask last = count(runs, done);
+        TaskEngine.getInstance().schedule(last, 10);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, runs.get());
+    }
+}